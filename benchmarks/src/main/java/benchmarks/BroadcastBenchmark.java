@@ -0,0 +1,254 @@
+package benchmarks;
+
+import shared.Message;
+import shared.Protocol;
+import shared.StreamEndpoint;
+import shared.VideoFile;
+import shared.WireCodec;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// What each TCP/UDP viewer of one title costs the server, with one FFMPEG per viewer (-Dstream.broadcast=false)
+// and with a shared broadcast (-Dstream.broadcast=true). For each mode a server JVM is started on a TestClips clip,
+// and 1, 2, 4... viewers play it at once; while they all receive, the server's FFMPEG CPU time is read from
+// ffmpeg_cpu_seconds_total on its metrics endpoint and the server JVM's own CPU time from
+// ProcessHandle.Info.totalCpuDuration. Prints both in cores (CPU seconds per second) for every viewer count, and
+// the cost of each added viewer: the slope between the smallest and the largest count. The per-viewer servers run
+// with -Dstream.native=false, so that UDP viewers get an FFMPEG each rather than the Java paced sender.
+//
+//   java -cp benchmarks.jar benchmarks.BroadcastBenchmark [viewers=1,2,4] [seconds=20] [protocol=UDP] [resolution=360p]
+public class BroadcastBenchmark {
+
+    private static final int PORT = 19290;
+    private static final int HLS_PORT = 18280;
+    private static final int METRICS_PORT = 9300;
+    private static final long WARMUP_MILLIS = 3000; // every viewer started and receiving before the measurement
+    private static final List<String> FORMATS = List.of("mp4", "avi", "mkv");
+    private static final List<String> RESOLUTIONS = List.of("240p", "360p", "480p", "720p", "1080p");
+
+    public static void main(String[] args) throws Exception {
+        int[] viewerCounts = Arrays.stream((args.length > 0 ? args[0] : "1,2,4").split(",")).mapToInt(Integer::parseInt).toArray();
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        Protocol protocol = Protocol.valueOf((args.length > 2 ? args[2] : "UDP").toUpperCase(Locale.ROOT));
+        String resolution = args.length > 3 ? args[3] : "360p";
+        if (protocol != Protocol.TCP && protocol != Protocol.UDP) {
+            throw new IllegalArgumentException("Broadcasts serve TCP and UDP viewers only, not " + protocol);
+        }
+
+        Path dir = Files.createTempDirectory("broadcast-benchmark");
+        try {
+            // Long enough for every round of a mode: a broadcast is not restarted between rounds
+            int clipSeconds = viewerCounts.length * (seconds + 10) + 30;
+            VideoFile clip = prepare(dir.resolve("videos"), clipSeconds, resolution);
+            System.out.printf("%s viewers of a %s clip, %d s per count, %d cores%n", protocol, resolution, seconds,
+                    Runtime.getRuntime().availableProcessors());
+            System.out.printf("%-10s %8s %18s %16s %14s%n", "mode", "viewers", "FFMPEG CPU (cores)", "JVM CPU (cores)", "Mbps/viewer");
+            for (boolean broadcast : new boolean[]{false, true}) {
+                String mode = broadcast ? "broadcast" : "per-viewer";
+                List<Round> rounds = new ArrayList<>();
+                Process server = startServer(dir, broadcast);
+                try {
+                    awaitPort(PORT);
+                    Thread.sleep(2000); // the startup probes are over
+                    for (int viewers : viewerCounts) {
+                        Round round = measure(server, clip, protocol, viewers, seconds);
+                        rounds.add(round);
+                        System.out.printf("%-10s %8d %18.3f %16.3f %14.2f%s%n", mode, viewers, round.ffmpegCores,
+                                round.jvmCores, round.mbpsPerViewer, round.failed > 0 ? "   " + round.failed + " viewer(s) got no data" : "");
+                    }
+                } finally {
+                    server.destroy();
+                    server.waitFor();
+                }
+                Round first = rounds.getFirst();
+                Round last = rounds.getLast();
+                if (last.viewers > first.viewers) {
+                    int added = last.viewers - first.viewers;
+                    System.out.printf("%-10s per added viewer: FFMPEG %.3f cores, JVM %.3f cores%n", mode,
+                            (last.ffmpegCores - first.ffmpegCores) / added, (last.jvmCores - first.jvmCores) / added);
+                }
+            }
+        } finally {
+            try (Stream<Path> paths = Files.walk(dir)) {
+                for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+    }
+
+    // The clip, and placeholders for every other format and every lower resolution of its title so that the
+    // server has no conversion to queue; they are never played
+    private static VideoFile prepare(Path videos, int seconds, String resolution) throws IOException, InterruptedException {
+        TestClips.generate(videos, 0, seconds, resolution);
+        VideoFile clip = new VideoFile("loadclip00", "mp4", resolution);
+        for (String format : FORMATS) {
+            for (String lower : RESOLUTIONS.subList(0, RESOLUTIONS.indexOf(resolution) + 1)) {
+                VideoFile placeholder = new VideoFile(clip.getName(), format, lower);
+                if (!placeholder.equals(clip)) {
+                    Files.writeString(videos.resolve(placeholder.getFilename()), "-");
+                }
+            }
+        }
+        return clip;
+    }
+
+    private static Process startServer(Path dir, boolean broadcast) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(ProcessHandle.current().info().command().orElse("java"));
+        command.add("-cp");
+        command.add(Arrays.stream(System.getProperty("java.class.path").split(File.pathSeparator))
+                .map(entry -> Path.of(entry).toAbsolutePath().toString())
+                .collect(Collectors.joining(File.pathSeparator)));
+        command.add("-Dserver.port=" + PORT);
+        command.add("-Dhls.port=" + HLS_PORT);
+        command.add("-Dprobe.port=" + (PORT + 1));
+        command.add("-Dmetrics.port=" + METRICS_PORT);
+        command.add("-Dstream.portBase=30500");
+        command.add("-Dstream.native=false");
+        command.add("-Dstream.broadcast=" + broadcast);
+        command.add("server.StreamingServer");
+        return new ProcessBuilder(command)
+                .directory(dir.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(dir.resolve("server-" + (broadcast ? "broadcast" : "per-viewer") + ".log").toFile())
+                .start();
+    }
+
+    // Starts the viewers, lets them settle, then reads the server's CPU time over the measurement
+    private static Round measure(Process server, VideoFile clip, Protocol protocol, int viewers, int seconds)
+            throws Exception {
+        List<Viewer> started = new ArrayList<>();
+        try {
+            for (int v = 0; v < viewers; v++) {
+                started.add(Viewer.start(clip, protocol));
+            }
+            Thread.sleep(WARMUP_MILLIS);
+            long bytesBefore = started.stream().mapToLong(viewer -> viewer.bytes.sum()).sum();
+            double ffmpegBefore = ffmpegCpuSeconds();
+            double jvmBefore = cpuSeconds(server);
+            long start = System.nanoTime();
+            Thread.sleep(seconds * 1000L);
+            double ffmpegAfter = ffmpegCpuSeconds();
+            double jvmAfter = cpuSeconds(server);
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            long bytes = started.stream().mapToLong(viewer -> viewer.bytes.sum()).sum() - bytesBefore;
+            int failed = (int) started.stream().filter(viewer -> viewer.bytes.sum() == 0).count();
+            return new Round(viewers, (ffmpegAfter - ffmpegBefore) / elapsed, (jvmAfter - jvmBefore) / elapsed,
+                    bytes * 8 / elapsed / 1e6 / viewers, failed);
+        } finally {
+            for (Viewer viewer : started) {
+                viewer.close();
+            }
+            Thread.sleep(2000); // per-viewer FFMPEGs have exited before the next count
+        }
+    }
+
+    private static double cpuSeconds(Process process) {
+        return process.toHandle().info().totalCpuDuration().map(Duration::toNanos).orElse(0L) / 1e9;
+    }
+
+    private static double ffmpegCpuSeconds() throws IOException, InterruptedException {
+        String text = HttpClient.newHttpClient().send(
+                HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + METRICS_PORT + "/metrics")).build(),
+                HttpResponse.BodyHandlers.ofString()).body();
+        for (String line : text.split("\n")) {
+            if (line.startsWith("ffmpeg_cpu_seconds_total ")) {
+                return Double.parseDouble(line.substring(line.indexOf(' ') + 1).trim());
+            }
+        }
+        throw new IOException("ffmpeg_cpu_seconds_total missing from the server's metrics");
+    }
+
+    private static void awaitPort(int port) throws Exception {
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (true) {
+            try {
+                SocketChannel.open(new InetSocketAddress("127.0.0.1", port)).close();
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IOException("Server on port " + port + " did not start", e);
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    // One viewer: its control connection (closing it stops the stream) and a thread reading the stream
+    private static final class Viewer implements AutoCloseable {
+        private final SocketChannel control;
+        private final LoadGenerator.Receiver receiver;
+        private final AtomicBoolean running = new AtomicBoolean(true);
+        private final LongAdder bytes = new LongAdder();
+        private final Thread reader;
+
+        private Viewer(SocketChannel control, LoadGenerator.Receiver receiver) {
+            this.control = control;
+            this.receiver = receiver;
+            this.reader = Thread.ofVirtual().start(() -> {
+                byte[] buffer = new byte[65536];
+                try {
+                    while (running.get()) {
+                        int received = receiver.receive(buffer);
+                        if (received < 0) break;
+                        bytes.add(received);
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            });
+        }
+
+        static Viewer start(VideoFile clip, Protocol protocol) throws IOException, InterruptedException {
+            SocketChannel control = SocketChannel.open(new InetSocketAddress("127.0.0.1", PORT));
+            try {
+                WireCodec codec = new WireCodec(control);
+                long start = System.nanoTime();
+                codec.write(1, new Message.PlayRequest(clip, protocol));
+                WireCodec.Frame frame = codec.read();
+                if (frame == null || !(frame.message() instanceof Message.StreamReady ready)) {
+                    throw new IOException("Play refused: " + (frame == null ? "closed" : frame.message()));
+                }
+                StreamEndpoint endpoint = ready.endpoint();
+                LoadGenerator.Receiver receiver = protocol == Protocol.TCP
+                        ? LoadGenerator.connectTcp(endpoint, start)
+                        : new LoadGenerator.UdpReceiver(endpoint.getVideoPort());
+                return new Viewer(control, receiver);
+            } catch (IOException | InterruptedException e) {
+                control.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() throws IOException, InterruptedException {
+            running.set(false);
+            control.close();
+            receiver.close();
+            reader.join();
+        }
+    }
+
+    private record Round(int viewers, double ffmpegCores, double jvmCores, double mbpsPerViewer, int failed) {
+    }
+}
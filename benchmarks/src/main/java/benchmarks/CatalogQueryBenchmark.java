@@ -0,0 +1,95 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import server.Catalog;
+import shared.MediaInfo;
+import shared.VideoFile;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// What the server does for every catalog query and play request: the filtered view of one format at a bitrate,
+// and the lookup of the file a client asks to play, over catalogs of 10k, 100k and 1M entries. Titles have every
+// resolution in every format (15 entries each), with probed peak bitrates spread around the nominal ones.
+// Allocation per call is gc.alloc.rate.norm of the GC profiler:
+//
+//   java -jar benchmarks.jar CatalogQuery -prof gc
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class CatalogQueryBenchmark {
+
+    private static final List<String> FORMATS = List.of("mp4", "avi", "mkv");
+    private static final List<String> RESOLUTIONS = List.of("240p", "360p", "480p", "720p", "1080p");
+    private static final long[] NOMINAL_KBPS = {700, 1000, 2000, 4000, 6000};
+
+    @Param({"10000", "100000", "1000000"})
+    public int entries;
+
+    private Catalog catalog;
+    private double[] bitrates;
+    private VideoFile[] requests;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        List<VideoFile> files = new ArrayList<>(entries);
+        int titles = 0;
+        for (; files.size() < entries; titles++) {
+            for (int r = 0; r < RESOLUTIONS.size(); r++) {
+                long peak = NOMINAL_KBPS[r] / 2 + random.nextInt((int) NOMINAL_KBPS[r]);
+                for (int f = 0; f < FORMATS.size() && files.size() < entries; f++) {
+                    files.add(new VideoFile("title" + titles, FORMATS.get(f), RESOLUTIONS.get(r),
+                            new MediaInfo(5400, peak * 2 / 3, peak, "h264", 2)));
+                }
+            }
+        }
+        catalog = new Catalog();
+        catalog.addAll(files);
+
+        bitrates = new double[1024];
+        requests = new VideoFile[1024];
+        for (int i = 0; i < bitrates.length; i++) {
+            bitrates[i] = 0.5 + random.nextDouble() * 8;
+            requests[i] = new VideoFile("title" + random.nextInt(titles), FORMATS.get(random.nextInt(FORMATS.size())),
+                    RESOLUTIONS.get(random.nextInt(RESOLUTIONS.size())));
+        }
+    }
+
+    @Benchmark
+    public List<VideoFile> query() {
+        return catalog.query(FORMATS.get(next % FORMATS.size()), bitrates[next++ & 1023]);
+    }
+
+    // The first page a client shows, as the server encodes it
+    @Benchmark
+    public int queryFirstPage() {
+        List<VideoFile> files = catalog.query(FORMATS.get(next % FORMATS.size()), bitrates[next++ & 1023]);
+        int length = 0;
+        for (VideoFile file : files.subList(0, Math.min(200, files.size()))) {
+            length += file.getFilename().length();
+        }
+        return length;
+    }
+
+    @Benchmark
+    public VideoFile lookupPlayRequest() {
+        return catalog.get(requests[next++ & 1023]);
+    }
+}
@@ -0,0 +1,65 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import shared.VideoFile;
+
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+// The filename step of the video directory scan: every name of a listing parsed as "<name>-<resolution>.<format>"
+// and kept when its format and resolution are known, as CatalogIndex does at startup. One operation is one listing;
+// a tenth of its names are not videos (index files, notes, unknown resolutions or containers).
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FilenameParsingBenchmark {
+
+    private static final Set<String> FORMATS = Set.of("mp4", "avi", "mkv");
+    private static final Set<String> RESOLUTIONS = Set.of("240p", "360p", "480p", "720p", "1080p");
+    private static final String[] OTHER_NAMES = {".catalog-index", "REQUIREMENTS.txt", "holiday-4k.mov", "clip.mp4",
+            "trailer-2160p.mp4"};
+
+    @Param({"1000", "100000"})
+    public int files;
+
+    private String[] names;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        String[] formats = FORMATS.toArray(new String[0]);
+        String[] resolutions = RESOLUTIONS.toArray(new String[0]);
+        names = new String[files];
+        for (int i = 0; i < files; i++) {
+            names[i] = random.nextInt(10) == 0
+                    ? OTHER_NAMES[random.nextInt(OTHER_NAMES.length)]
+                    : "the-movie-title-" + i + "-" + resolutions[random.nextInt(resolutions.length)] + "."
+                    + formats[random.nextInt(formats.length)];
+        }
+    }
+
+    @Benchmark
+    public void parseListing(Blackhole blackhole) {
+        for (String name : names) {
+            VideoFile file = VideoFile.fromFilename(name);
+            if (file != null && FORMATS.contains(file.getFormat()) && RESOLUTIONS.contains(file.getResolution())) {
+                blackhole.consume(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package benchmarks;
+
+import utils.FfmpegCommandRunner;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// The two ways the transcoder fills in the missing resolutions of a title, timed on a clip from TestClips: one
+// FFMPEG per variant, each decoding the whole source (FfmpegCommandRunner.convert, -Dtranscode.ladder=false), against
+// one FFMPEG decoding it once for every variant (convertLadder). Reports the wall time of each path and the CPU time
+// of its FFMPEG processes. The CPU time comes from ProcessHandle.Info.totalCpuDuration, which is only readable while
+// a process runs, so the children are sampled every 50 ms and the last 50 ms of each are missed. The two paths
+// alternate over the runs so that neither always gets the warm disk cache.
+//
+//   java -cp benchmarks.jar benchmarks.LadderBenchmark [seconds=60] [source=1080p] [ladder=720p,480p,360p,240p] [runs=1]
+public class LadderBenchmark {
+
+    private static final long SAMPLE_MILLIS = 50;
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 60;
+        String source = args.length > 1 ? args[1] : "1080p";
+        List<String> ladder = Arrays.asList((args.length > 2 ? args[2] : "720p,480p,360p,240p").split(","));
+        int runs = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+
+        Path dir = Files.createTempDirectory("ladder-benchmark");
+        try {
+            Path clip = TestClips.generate(dir, 0, seconds, source);
+            System.out.printf("%d s %s clip to %s, %d run(s), %d cores%n", seconds, source, ladder, runs,
+                    Runtime.getRuntime().availableProcessors());
+            List<Result> perVariant = new ArrayList<>();
+            List<Result> single = new ArrayList<>();
+            for (int run = 0; run < runs; run++) {
+                if (run % 2 == 0) {
+                    perVariant.add(perVariant(clip, ladder, dir));
+                    single.add(ladder(clip, ladder, dir));
+                } else {
+                    single.add(ladder(clip, ladder, dir));
+                    perVariant.add(perVariant(clip, ladder, dir));
+                }
+            }
+
+            Result before = Result.mean(perVariant);
+            Result after = Result.mean(single);
+            System.out.printf("%-22s %10s %12s%n", "path", "wall (s)", "FFMPEG CPU (s)");
+            System.out.printf("%-22s %10.1f %12.1f%n", "one FFMPEG per variant", before.wallSeconds, before.cpuSeconds);
+            System.out.printf("%-22s %10.1f %12.1f%n", "one decode (ladder)", after.wallSeconds, after.cpuSeconds);
+            System.out.printf("ladder: %.0f%% of the wall time, %.0f%% of the CPU time%n",
+                    100 * after.wallSeconds / before.wallSeconds, 100 * after.cpuSeconds / before.cpuSeconds);
+        } finally {
+            try (Stream<Path> paths = Files.walk(dir)) {
+                for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+    }
+
+    // The variants one after the other, as a single transcoder worker does them
+    private static Result perVariant(Path clip, List<String> ladder, Path dir) throws IOException, InterruptedException {
+        return measure(() -> {
+            for (String resolution : ladder) {
+                Path output = dir.resolve("variant-" + resolution + ".mp4");
+                if (!FfmpegCommandRunner.convert(clip.toString(), output.toString(), resolution)) {
+                    throw new IOException("FFMPEG failed on " + output);
+                }
+                Files.delete(output);
+            }
+        });
+    }
+
+    private static Result ladder(Path clip, List<String> ladder, Path dir) throws IOException, InterruptedException {
+        List<String> outputs = ladder.stream().map(resolution -> dir.resolve("ladder-" + resolution + ".mp4").toString()).toList();
+        return measure(() -> {
+            if (!FfmpegCommandRunner.convertLadder(clip.toString(), outputs, ladder)) {
+                throw new IOException("FFMPEG failed on the ladder");
+            }
+            for (String output : outputs) {
+                Files.delete(Path.of(output));
+            }
+        });
+    }
+
+    private static Result measure(Work work) throws IOException, InterruptedException {
+        Map<Long, Duration> cpuByPid = new ConcurrentHashMap<>();
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+        sampler.scheduleAtFixedRate(() -> ProcessHandle.current().descendants().forEach(child ->
+                        child.info().totalCpuDuration().ifPresent(cpu -> cpuByPid.merge(child.pid(), cpu,
+                                (previous, latest) -> latest.compareTo(previous) > 0 ? latest : previous))),
+                0, SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+        long start = System.nanoTime();
+        try {
+            work.run();
+        } finally {
+            sampler.shutdownNow();
+            sampler.awaitTermination(1, TimeUnit.SECONDS);
+        }
+        double wallSeconds = (System.nanoTime() - start) / 1e9;
+        double cpuSeconds = cpuByPid.values().stream().mapToLong(Duration::toNanos).sum() / 1e9;
+        return new Result(wallSeconds, cpuSeconds);
+    }
+
+    private interface Work {
+        void run() throws IOException, InterruptedException;
+    }
+
+    private record Result(double wallSeconds, double cpuSeconds) {
+        static Result mean(List<Result> results) {
+            return new Result(results.stream().mapToDouble(Result::wallSeconds).average().orElse(0),
+                    results.stream().mapToDouble(Result::cpuSeconds).average().orElse(0));
+        }
+    }
+}
@@ -0,0 +1,392 @@
+package benchmarks;
+
+import shared.Message;
+import shared.Protocol;
+import shared.StreamEndpoint;
+import shared.VideoFile;
+import shared.WireCodec;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Headless load against a running server: simulated clients, each on a control connection of its own, repeat
+// catalog query, play of a random file of the catalog (protocols assigned to clients in turn), reading of the
+// stream for a while and stop, until the run is over. Reports per protocol the startup latency (play request to
+// first stream byte), the received throughput and the errors by reason, into a flat JSON file. Given the file of
+// an earlier run, every figure that got worse by more than the tolerance is flagged and the exit status is 2.
+// Serve the clips of TestClips so runs stay comparable.
+//
+//   java -cp benchmarks.jar benchmarks.LoadGenerator [clients=10] [seconds=60] [protocols=TCP,UDP]
+//        [results=load-results.json] [baseline.json]
+//   -Dload.host=localhost -Dload.port=9090 -Dload.format=mp4 -Dload.playSeconds=10 -Dload.tolerancePercent=10
+public class LoadGenerator {
+
+    private static final String HOST = System.getProperty("load.host", "localhost");
+    private static final int PORT = Integer.getInteger("load.port", 9090);
+    private static final String FORMAT = System.getProperty("load.format", "mp4");
+    private static final int PLAY_SECONDS = Integer.getInteger("load.playSeconds", 10);
+    private static final double TOLERANCE_PERCENT = Double.parseDouble(System.getProperty("load.tolerancePercent", "10"));
+    private static final long FIRST_BYTE_TIMEOUT_NANOS = 15_000_000_000L;
+    private static final int CATALOG_PAGE_SIZE = 2000;
+    private static final Pattern JSON_NUMBER = Pattern.compile("\"([^\"]+)\"\\s*:\\s*(-?\\d+(?:\\.\\d+)?(?:[eE][-+]?\\d+)?)");
+
+    private final Samples catalogLatency = new Samples();
+    private final Map<Protocol, ProtocolStats> stats = new ConcurrentHashMap<>();
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 60;
+        List<Protocol> protocols = Arrays.stream((args.length > 2 ? args[2] : "TCP,UDP").split(","))
+                .map(name -> Protocol.valueOf(name.trim().toUpperCase(Locale.ROOT)))
+                .toList();
+        Path results = Path.of(args.length > 3 ? args[3] : "load-results.json");
+        Path baseline = args.length > 4 ? Path.of(args[4]) : null;
+        for (Protocol protocol : protocols) {
+            if (protocol != Protocol.TCP && protocol != Protocol.UDP) {
+                throw new IllegalArgumentException("Only TCP and UDP streams are read by the load generator, not " + protocol);
+            }
+        }
+
+        System.out.printf("%d clients for %d s against %s:%d (%s, %d s per play)%n",
+                clients, seconds, HOST, PORT, protocols, PLAY_SECONDS);
+        LoadGenerator generator = new LoadGenerator();
+        Map<String, Object> report = generator.run(clients, seconds, protocols);
+        report.forEach((key, value) -> System.out.println("  " + key + " = " + value));
+        Files.writeString(results, toJson(report));
+        System.out.println("Results written to " + results);
+
+        if (baseline != null && compare(parseNumbers(Files.readString(baseline)), report)) {
+            System.exit(2);
+        }
+    }
+
+    private Map<String, Object> run(int clients, int seconds, List<Protocol> protocols) {
+        for (Protocol protocol : protocols) {
+            stats.put(protocol, new ProtocolStats());
+        }
+        long start = System.nanoTime();
+        long deadline = start + seconds * 1_000_000_000L;
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int c = 0; c < clients; c++) {
+                Protocol protocol = protocols.get(c % protocols.size());
+                executor.submit(() -> runClient(protocol, deadline));
+            }
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("run.finished", Instant.now().toString());
+        report.put("run.server", HOST + ":" + PORT);
+        report.put("run.clients", clients);
+        report.put("run.seconds", seconds);
+        report.put("run.protocols", protocols.toString());
+        report.put("run.format", FORMAT);
+        report.put("run.playSeconds", PLAY_SECONDS);
+        report.put("catalog.queries", catalogLatency.count());
+        putPercentiles(report, "catalog.latency_ms", catalogLatency);
+
+        long totalBytes = 0;
+        long totalPlays = 0;
+        long totalErrors = 0;
+        for (Protocol protocol : protocols) {
+            ProtocolStats figures = stats.get(protocol);
+            String prefix = protocol.name().toLowerCase(Locale.ROOT);
+            long plays = figures.plays.sum();
+            long errors = figures.errors.values().stream().mapToLong(LongAdder::sum).sum();
+            report.put(prefix + ".plays", plays);
+            report.put(prefix + ".errors", errors);
+            report.put(prefix + ".error_rate", rate(errors, plays + errors));
+            putPercentiles(report, prefix + ".startup_ms", figures.startup);
+            report.put(prefix + ".throughput_mbps", round(figures.bytes.sum() * 8 / elapsed / 1e6));
+            double streamSeconds = figures.streamNanos.sum() / 1e9;
+            report.put(prefix + ".stream_mbps", streamSeconds > 0 ? round(figures.bytes.sum() * 8 / streamSeconds / 1e6) : 0.0);
+            figures.errors.forEach((reason, count) -> report.put(prefix + ".errors." + reason, count.sum()));
+            totalBytes += figures.bytes.sum();
+            totalPlays += plays;
+            totalErrors += errors;
+        }
+        report.put("total.throughput_mbps", round(totalBytes * 8 / elapsed / 1e6));
+        report.put("total.error_rate", rate(totalErrors, totalPlays + totalErrors));
+        return report;
+    }
+
+    // One simulated client: catalog, play, stop, over and over on one connection
+    private void runClient(Protocol protocol, long deadline) {
+        ProtocolStats figures = stats.get(protocol);
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(HOST, PORT))) {
+            WireCodec codec = new WireCodec(channel);
+            int requestId = 0;
+            while (System.nanoTime() < deadline) {
+                long start = System.nanoTime();
+                Message answer = request(codec, ++requestId, new Message.CatalogQuery(FORMAT, Double.MAX_VALUE, 0, CATALOG_PAGE_SIZE));
+                catalogLatency.add((System.nanoTime() - start) / 1000);
+                if (!(answer instanceof Message.CatalogResponse catalog) || catalog.files().isEmpty()) {
+                    figures.error("empty_catalog");
+                    Thread.sleep(1000);
+                    continue;
+                }
+                VideoFile file = catalog.files().get(ThreadLocalRandom.current().nextInt(catalog.files().size()));
+                requestId = play(codec, requestId, file, protocol, figures);
+            }
+        } catch (IOException e) {
+            figures.error("connection");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Returns the last request id used
+    private static int play(WireCodec codec, int requestId, VideoFile file, Protocol protocol, ProtocolStats figures)
+            throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        Message answer = request(codec, ++requestId, new Message.PlayRequest(file, protocol));
+        if (answer instanceof Message.Busy busy) {
+            figures.error("busy");
+            Thread.sleep(Math.min(busy.retryAfterSeconds(), 5) * 1000L);
+            return requestId;
+        }
+        if (answer instanceof Message.Error error) {
+            figures.error(error.reason());
+            return requestId;
+        }
+        if (!(answer instanceof Message.StreamReady ready)) {
+            figures.error("unexpected_" + answer.getClass().getSimpleName());
+            return requestId;
+        }
+
+        StreamEndpoint endpoint = ready.endpoint();
+        try (Receiver receiver = protocol == Protocol.TCP ? connectTcp(endpoint, start) : new UdpReceiver(endpoint.getVideoPort())) {
+            byte[] buffer = new byte[65536];
+            long firstByteAt = 0;
+            long playEnd = 0;
+            long bytes = 0;
+            long now;
+            while (true) {
+                int received = receiver.receive(buffer);
+                now = System.nanoTime();
+                if (received < 0) break; // the stream ended before the play time
+                if (received > 0) {
+                    if (firstByteAt == 0) {
+                        firstByteAt = now;
+                        playEnd = now + PLAY_SECONDS * 1_000_000_000L;
+                    }
+                    bytes += received;
+                }
+                if (firstByteAt == 0 ? now - start > FIRST_BYTE_TIMEOUT_NANOS : now >= playEnd) break;
+            }
+            if (firstByteAt == 0) {
+                figures.error("no_data");
+            } else {
+                figures.startup.add((firstByteAt - start) / 1000);
+                figures.bytes.add(bytes);
+                figures.streamNanos.add(now - firstByteAt);
+                figures.plays.increment();
+            }
+        } catch (IOException e) {
+            figures.error("stream_unreachable");
+        } finally {
+            codec.write(++requestId, new Message.Stop(endpoint.getSessionId()));
+        }
+        return requestId;
+    }
+
+    private static Message request(WireCodec codec, int requestId, Message request) throws IOException {
+        codec.write(requestId, request);
+        WireCodec.Frame frame = codec.read();
+        if (frame == null) {
+            throw new EOFException("Server closed the connection");
+        }
+        if (frame.requestId() != requestId) {
+            throw new ProtocolException("Answer to request " + frame.requestId() + " instead of " + requestId);
+        }
+        return frame.message();
+    }
+
+    // FFMPEG opens its listening socket shortly after the server answers: retried until the first-byte timeout
+    static Receiver connectTcp(StreamEndpoint endpoint, long start) throws IOException, InterruptedException {
+        while (true) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(endpoint.getHost(), endpoint.getVideoPort()), 1000);
+                socket.setSoTimeout(1000);
+                return new TcpReceiver(socket);
+            } catch (IOException e) {
+                socket.close();
+                if (System.nanoTime() - start > FIRST_BYTE_TIMEOUT_NANOS) throw e;
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    // Flags figures worse than the baseline by more than the tolerance; true if any was found
+    private static boolean compare(Map<String, Double> baseline, Map<String, Object> report) {
+        boolean regression = false;
+        System.out.printf("Compared with the baseline (tolerance %.0f%%):%n", TOLERANCE_PERCENT);
+        for (Map.Entry<String, Object> entry : report.entrySet()) {
+            String key = entry.getKey();
+            Double before = baseline.get(key);
+            if (before == null || !(entry.getValue() instanceof Number number) || key.startsWith("run.")) continue;
+            double now = number.doubleValue();
+            boolean worse;
+            if (key.contains("_ms.")) {
+                worse = now > before * (1 + TOLERANCE_PERCENT / 100) && now - before > 1; // sub-millisecond noise ignored
+            } else if (key.endsWith("_mbps")) {
+                worse = now < before * (1 - TOLERANCE_PERCENT / 100);
+            } else if (key.endsWith("error_rate")) {
+                worse = now > before + 0.01;
+            } else {
+                continue; // counts depend on the run length and the server's speed, not compared
+            }
+            regression |= worse;
+            System.out.printf("  %-32s %12s -> %12s%s%n", key, before, now, worse ? "   REGRESSION" : "");
+        }
+        return regression;
+    }
+
+    private static Map<String, Double> parseNumbers(String json) {
+        Map<String, Double> numbers = new LinkedHashMap<>();
+        Matcher matcher = JSON_NUMBER.matcher(json);
+        while (matcher.find()) {
+            numbers.put(matcher.group(1), Double.parseDouble(matcher.group(2)));
+        }
+        return numbers;
+    }
+
+    private static String toJson(Map<String, Object> report) {
+        StringBuilder out = new StringBuilder("{\n");
+        for (Map.Entry<String, Object> entry : report.entrySet()) {
+            if (out.length() > 2) out.append(",\n");
+            out.append("  \"").append(escape(entry.getKey())).append("\": ");
+            if (entry.getValue() instanceof Number number) {
+                out.append(number);
+            } else {
+                out.append('"').append(escape(String.valueOf(entry.getValue()))).append('"');
+            }
+        }
+        return out.append("\n}\n").toString();
+    }
+
+    private static String escape(String text) {
+        return text.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    private static void putPercentiles(Map<String, Object> report, String prefix, Samples micros) {
+        for (int percentile : new int[]{50, 95, 99}) {
+            report.put(prefix + ".p" + percentile, round(micros.percentile(percentile) / 1000.0));
+        }
+    }
+
+    private static double rate(long part, long total) {
+        return total == 0 ? 0.0 : round((double) part / total);
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 1000) / 1000.0;
+    }
+
+    // Figures of the clients playing one protocol
+    private static final class ProtocolStats {
+        final Samples startup = new Samples();
+        final LongAdder plays = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final LongAdder streamNanos = new LongAdder();
+        final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+
+        void error(String reason) {
+            errors.computeIfAbsent(reason, r -> new LongAdder()).increment();
+        }
+    }
+
+    // Every value recorded, for exact percentiles: a run records a few per play, not per packet
+    private static final class Samples {
+        private final List<Long> values = new ArrayList<>();
+
+        synchronized void add(long value) {
+            values.add(value);
+        }
+
+        synchronized int count() {
+            return values.size();
+        }
+
+        synchronized long percentile(int percent) {
+            if (values.isEmpty()) return 0;
+            long[] sorted = values.stream().mapToLong(Long::longValue).sorted().toArray();
+            return sorted[Math.max(0, (int) Math.ceil(percent / 100.0 * sorted.length) - 1)];
+        }
+    }
+
+    // A stream being read: bytes received, 0 when nothing came for a second, -1 once it ended
+    interface Receiver extends Closeable {
+        int receive(byte[] buffer) throws IOException;
+    }
+
+    record TcpReceiver(Socket socket) implements Receiver {
+        @Override
+        public int receive(byte[] buffer) throws IOException {
+            try {
+                InputStream in = socket.getInputStream();
+                return in.read(buffer);
+            } catch (SocketTimeoutException e) {
+                return 0;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    // The server sends to the port it allocated to the session, on the address the control connection came from
+    static final class UdpReceiver implements Receiver {
+        private final DatagramSocket socket;
+
+        UdpReceiver(int port) throws IOException {
+            socket = new DatagramSocket(port);
+            socket.setSoTimeout(1000);
+            socket.setReceiveBufferSize(4 * 1024 * 1024);
+        }
+
+        @Override
+        public int receive(byte[] buffer) throws IOException {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(packet);
+                return packet.getLength();
+            } catch (SocketTimeoutException e) {
+                return 0;
+            }
+        }
+
+        @Override
+        public void close() {
+            socket.close();
+        }
+    }
+}
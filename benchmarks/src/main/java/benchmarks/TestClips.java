@@ -0,0 +1,53 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+// Synthetic clips for load tests, generated by FFMPEG (test pattern and a tone, H.264/AAC, a keyframe every 2 s),
+// so every run plays the same content. Clips already present are kept. Point the server at the directory:
+//
+//   java -cp benchmarks.jar benchmarks.TestClips [dir=videos] [count=4] [seconds=120] [resolution=720p]
+public class TestClips {
+
+    private static final Map<String, String> SIZES = Map.of("240p", "426x240", "360p", "640x360",
+            "480p", "854x480", "720p", "1280x720", "1080p", "1920x1080");
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Path dir = Path.of(args.length > 0 ? args[0] : "videos");
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 120;
+        String resolution = args.length > 3 ? args[3] : "720p";
+        for (int i = 0; i < count; i++) {
+            generate(dir, i, seconds, resolution);
+        }
+    }
+
+    // Generates clip number index of the set, unless it is already there; returns its path
+    public static Path generate(Path dir, int index, int seconds, String resolution) throws IOException, InterruptedException {
+        String size = SIZES.get(resolution);
+        if (size == null) {
+            throw new IllegalArgumentException("Unknown resolution " + resolution + ", expected one of " + SIZES.keySet());
+        }
+        Files.createDirectories(dir);
+        Path clip = dir.resolve(String.format("loadclip%02d-%s.mp4", index, resolution));
+        if (Files.exists(clip)) {
+            System.out.println("Keeping " + clip);
+            return clip;
+        }
+        List<String> command = List.of("ffmpeg", "-y", "-loglevel", "error",
+                "-f", "lavfi", "-i", "testsrc2=size=" + size + ":rate=24:duration=" + seconds,
+                "-f", "lavfi", "-i", "sine=frequency=" + (220 + 110 * index) + ":sample_rate=48000:duration=" + seconds,
+                "-c:v", "libx264", "-preset", "veryfast", "-pix_fmt", "yuv420p", "-g", "48", "-keyint_min", "48",
+                "-c:a", "aac", "-b:a", "128k", "-shortest", clip.toString());
+        Process process = new ProcessBuilder(command).inheritIO().start();
+        if (process.waitFor() != 0) {
+            Files.deleteIfExists(clip);
+            throw new IOException("FFMPEG failed to generate " + clip);
+        }
+        System.out.println("Generated " + clip);
+        return clip;
+    }
+}
@@ -0,0 +1,178 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import shared.MediaInfo;
+import shared.Message;
+import shared.Protocol;
+import shared.VideoFile;
+import shared.WireCodec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Encoding and decoding of control messages, without the socket: a catalog page (the largest message, sent
+// page after page while a client loads the catalog) and a play request, each with WireCodec and with the Java
+// serialization the control port used before it. The serialized side writes what that protocol wrote: the
+// catalog as an ArrayList of Serializable files, the play request as a command string, the file and the
+// protocol name, on a new ObjectOutputStream per message (one connection per command). The bytes on the wire
+// of each are printed when the benchmark sets up.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WireCodecBenchmark {
+
+    @Param({"200", "1000", "2000"})
+    public int pageSize;
+
+    private Message.CatalogResponse page;
+    private Message.PlayRequest play;
+    private ByteBuffer out;
+    private ByteBuffer encodedPage;
+    private ByteBuffer encodedPlay;
+
+    private ArrayList<SerializedFile> serializedPage;
+    private SerializedFile serializedPlayFile;
+    private byte[] serializedPageBytes;
+    private byte[] serializedPlayBytes;
+
+    @Setup
+    public void setUp() throws IOException {
+        List<VideoFile> files = new ArrayList<>();
+        serializedPage = new ArrayList<>();
+        for (int i = 0; i < pageSize; i++) {
+            MediaInfo info = new MediaInfo(5400, 2800, 4100, "h264", 2);
+            files.add(new VideoFile("some-movie-title-" + i, "mp4", "720p", info));
+            serializedPage.add(new SerializedFile("some-movie-title-" + i, "mp4", "720p", info));
+        }
+        page = new Message.CatalogResponse(files, 0, 100_000);
+        play = new Message.PlayRequest(files.get(0), Protocol.UDP, 120);
+        serializedPlayFile = serializedPage.get(0);
+        out = ByteBuffer.allocate(WireCodec.MAX_FRAME_SIZE);
+        encodedPage = encode(page);
+        encodedPlay = encode(play);
+        serializedPageBytes = serializePage();
+        serializedPlayBytes = serializePlayRequest();
+
+        System.out.printf("%n%d-entry catalog page: WireCodec %d bytes, Java serialization %d bytes%n",
+                pageSize, encodedPage.remaining() + 4, serializedPageBytes.length);
+        System.out.printf("Play request: WireCodec %d bytes, Java serialization %d bytes%n",
+                encodedPlay.remaining() + 4, serializedPlayBytes.length);
+    }
+
+    private static ByteBuffer encode(Message message) {
+        ByteBuffer buffer = ByteBuffer.allocate(WireCodec.MAX_FRAME_SIZE);
+        WireCodec.encode(1, message, buffer);
+        return buffer.flip().position(4).slice(); // decode takes the frame without its length prefix
+    }
+
+    @Benchmark
+    public int encodeCatalogPage() {
+        out.clear();
+        WireCodec.encode(1, page, out);
+        return out.position();
+    }
+
+    @Benchmark
+    public WireCodec.Frame decodeCatalogPage() throws ProtocolException {
+        return WireCodec.decode(encodedPage.duplicate());
+    }
+
+    @Benchmark
+    public int encodePlayRequest() {
+        out.clear();
+        WireCodec.encode(2, play, out);
+        return out.position();
+    }
+
+    @Benchmark
+    public WireCodec.Frame decodePlayRequest() throws ProtocolException {
+        return WireCodec.decode(encodedPlay.duplicate());
+    }
+
+    @Benchmark
+    public byte[] encodeCatalogPageJavaSerialization() throws IOException {
+        return serializePage();
+    }
+
+    @Benchmark
+    public Object decodeCatalogPageJavaSerialization() throws IOException, ClassNotFoundException {
+        try (ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(serializedPageBytes))) {
+            return input.readObject();
+        }
+    }
+
+    @Benchmark
+    public byte[] encodePlayRequestJavaSerialization() throws IOException {
+        return serializePlayRequest();
+    }
+
+    @Benchmark
+    public Object decodePlayRequestJavaSerialization() throws IOException, ClassNotFoundException {
+        try (ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(serializedPlayBytes))) {
+            input.readObject();
+            Object file = input.readObject();
+            input.readObject();
+            return file;
+        }
+    }
+
+    private byte[] serializePage() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream output = new ObjectOutputStream(bytes)) {
+            output.writeObject(serializedPage);
+        }
+        return bytes.toByteArray();
+    }
+
+    private byte[] serializePlayRequest() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream output = new ObjectOutputStream(bytes)) {
+            output.writeObject("play");
+            output.writeObject(serializedPlayFile);
+            output.writeObject(play.protocol().name());
+        }
+        return bytes.toByteArray();
+    }
+
+    // VideoFile and MediaInfo as they would travel if they were still Serializable
+    private static final class SerializedFile implements Serializable {
+        private final String name;
+        private final String format;
+        private final String resolution;
+        private final SerializedMediaInfo mediaInfo;
+
+        SerializedFile(String name, String format, String resolution, MediaInfo info) {
+            this.name = name;
+            this.format = format;
+            this.resolution = resolution;
+            this.mediaInfo = new SerializedMediaInfo(info.durationSeconds(), info.averageBitrateKbps(),
+                    info.peakBitrateKbps(), info.videoCodec(), info.keyframeIntervalSeconds());
+        }
+    }
+
+    private record SerializedMediaInfo(double durationSeconds, long averageBitrateKbps, long peakBitrateKbps,
+                                       String videoCodec, double keyframeIntervalSeconds) implements Serializable {
+    }
+}
@@ -0,0 +1,86 @@
+package client;
+
+import shared.Message;
+import shared.Protocol;
+import shared.VideoFile;
+import utils.LoggerConfig;
+import utils.ThrottlingProxy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Plays an ADAPTIVE session headlessly through a throttling proxy that replays a bandwidth trace, then prints
+// the stall count and the average resolution delivered. The player keeps at most MAX_BUFFER_SECONDS ahead;
+// once the last segment is in, no stall can happen any more, so the run ends without playing the buffer out.
+//
+//   java -cp benchmarks.jar client.AbrSimulation <video filename> <trace file> [server host]
+public class AbrSimulation {
+
+    private static final int SERVER_PORT = 9090;
+    private static final double MAX_BUFFER_SECONDS = 30;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: java -cp benchmarks.jar client.AbrSimulation <video filename> <trace file> [server host]");
+            System.exit(2);
+        }
+        LoggerConfig.configureSimpleLogging();
+        VideoFile file = VideoFile.fromFilename(args[0]);
+        List<ThrottlingProxy.Step> trace = ThrottlingProxy.readTrace(Path.of(args[1]));
+        String host = args.length > 2 ? args[2] : "localhost";
+
+        try (ClientSession session = new ClientSession(host, SERVER_PORT)) {
+            Message response = session.request(new Message.PlayRequest(file, Protocol.ADAPTIVE));
+            if (!(response instanceof Message.StreamReady ready)) {
+                System.err.println("Server refused the stream: " + response);
+                System.exit(1);
+                return;
+            }
+            URI url = URI.create(ready.endpoint().getUrl());
+
+            try (ThrottlingProxy link = new ThrottlingProxy(new InetSocketAddress(url.getHost(), url.getPort()), trace)) {
+                int proxyPort = link.start();
+                URI throttled = URI.create("http://127.0.0.1:" + proxyPort + url.getRawPath());
+                try (AdaptivePlayback playback = new AdaptivePlayback(session, ready.endpoint().getSessionId(), throttled)) {
+                    run(playback, link);
+                }
+            } finally {
+                session.sendOneWay(new Message.Stop(ready.endpoint().getSessionId()));
+            }
+        }
+    }
+
+    private static void run(AdaptivePlayback playback, ThrottlingProxy link) throws IOException, InterruptedException {
+        playback.fetchPlaylist();
+        PlaybackModel model = playback.getModel();
+        Map<String, Integer> segmentsPerResolution = new HashMap<>();
+        long heightSum = 0;
+        int previousHeight = -1;
+        int switches = 0;
+
+        for (String name : playback.getSegmentNames()) {
+            while (model.getBufferSeconds() > MAX_BUFFER_SECONDS) {
+                Thread.sleep(100);
+            }
+            AdaptivePlayback.Segment segment = playback.fetchSegment(name);
+            String resolution = segment.resolution() != null ? segment.resolution() : "unknown";
+            segmentsPerResolution.merge(resolution, 1, Integer::sum);
+            int height = resolution.endsWith("p") ? Integer.parseInt(resolution.substring(0, resolution.length() - 1)) : 0;
+            heightSum += height;
+            if (previousHeight >= 0 && height != previousHeight) switches++;
+            previousHeight = height;
+            System.out.printf("%s  %-6s  link %.2f Mbps  buffer %.1f s%n", name, resolution, link.currentMbps(), model.getBufferSeconds());
+        }
+
+        int segments = playback.getSegmentNames().size();
+        System.out.println("Segments:            " + segments + " " + segmentsPerResolution);
+        System.out.println("Stalls:              " + model.getStallCount() + String.format(" (%.1f s)", model.getStallSeconds()));
+        System.out.println("Rendition switches:  " + switches);
+        System.out.printf("Average resolution:  %.0fp%n", segments == 0 ? 0.0 : (double) heightSum / segments);
+    }
+}
@@ -0,0 +1,145 @@
+package client;
+
+import shared.MediaInfo;
+import shared.Message;
+import shared.VideoFile;
+import shared.WireCodec;
+
+import javax.swing.JList;
+import javax.swing.JScrollPane;
+import javax.swing.SwingUtilities;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Measures the catalog screen with a large catalog and no server: a loopback stand-in answers catalog pages
+// from a synthetic list, and the client loads them into the same list model and renderer as ClientGUI, painted
+// off screen. Prints, for a first load and a reload, when the first page was on screen, when the whole catalog was
+// loaded and the longest the event dispatch thread was busy meanwhile, then the time of a few searches.
+//
+//   java -cp benchmarks.jar client.CatalogLoadBenchmark [titles=100000]
+public class CatalogLoadBenchmark {
+
+    private static final String[] SEARCHES = {"star", "star 720", "title 4242", "zzz"};
+
+    public static void main(String[] args) throws Exception {
+        if (System.getProperty("java.awt.headless") == null) {
+            System.setProperty("java.awt.headless", "true");
+        }
+        int titles = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        List<VideoFile> catalog = syntheticCatalog(titles);
+
+        try (ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+            Thread.ofVirtual().start(() -> serve(server, catalog));
+            InetSocketAddress address = (InetSocketAddress) server.getLocalAddress();
+            StreamingClient client = new StreamingClient(new ClientSession(address.getHostString(), address.getPort()));
+
+            CatalogListModel model = new CatalogListModel();
+            JList<VideoFile> list = new JList<>(model);
+            JScrollPane view = new JScrollPane(list);
+            BufferedImage screen = new BufferedImage(700, 400, BufferedImage.TYPE_INT_RGB);
+            SwingUtilities.invokeAndWait(() -> {
+                list.setCellRenderer(new ClientGUI.VideoFileRenderer());
+                list.setPrototypeCellValue(catalog.getFirst());
+                view.setSize(screen.getWidth(), screen.getHeight());
+                paint(view, screen); // fonts and look and feel, loaded by ClientGUI before any catalog is fetched
+            });
+
+            // A no-op posted to the EDT every 5 ms: how late it runs is how long the EDT was busy
+            AtomicLong worstEdtDelay = new AtomicLong();
+            Thread probe = Thread.ofPlatform().daemon().start(() -> {
+                while (!Thread.currentThread().isInterrupted()) {
+                    long posted = System.nanoTime();
+                    SwingUtilities.invokeLater(() -> worstEdtDelay.accumulateAndGet(System.nanoTime() - posted, Math::max));
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            });
+
+            // The first load includes connecting and a cold JVM, the second is a "Get files" click in a running client
+            for (String round : new String[]{"first load", "reload"}) {
+                SwingUtilities.invokeAndWait(model::clear);
+                worstEdtDelay.set(0);
+                long start = System.nanoTime();
+                AtomicLong firstPageNanos = new AtomicLong();
+                client.fetchCatalog("mp4", 100, page -> {
+                    CatalogListModel.Page prepared = CatalogListModel.prepare(page.files());
+                    CompletableFuture<Void> shown = new CompletableFuture<>();
+                    SwingUtilities.invokeLater(() -> {
+                        model.append(prepared);
+                        if (page.offset() == 0) {
+                            paint(view, screen);
+                            firstPageNanos.set(System.nanoTime() - start);
+                        }
+                        shown.complete(null);
+                    });
+                    return shown;
+                }).join();
+                SwingUtilities.invokeAndWait(() -> paint(view, screen));
+                long loadedNanos = System.nanoTime() - start;
+                System.out.printf("%s of %,d titles: first page on screen in %.1f ms, all loaded in %.1f ms, EDT busy at most %.1f ms%n",
+                        round, model.getLoadedCount(), firstPageNanos.get() / 1e6, loadedNanos / 1e6, worstEdtDelay.get() / 1e6);
+            }
+            probe.interrupt();
+
+            for (String search : SEARCHES) {
+                SwingUtilities.invokeAndWait(() -> {
+                    long searchStart = System.nanoTime();
+                    model.setFilter(search);
+                    paint(view, screen);
+                    System.out.printf("  search \"%s\": %,d matches, on screen in %.2f ms%n",
+                            search, model.getSize(), (System.nanoTime() - searchStart) / 1e6);
+                });
+            }
+            client.close();
+        }
+    }
+
+    private static void paint(JScrollPane view, BufferedImage screen) {
+        view.doLayout();
+        view.getViewport().doLayout();
+        Graphics2D graphics = screen.createGraphics();
+        view.paint(graphics);
+        graphics.dispose();
+    }
+
+    // Answers catalog queries the way StreamingServer does, from the given list
+    private static void serve(ServerSocketChannel server, List<VideoFile> catalog) {
+        try (SocketChannel channel = server.accept()) {
+            WireCodec codec = new WireCodec(channel);
+            WireCodec.Frame frame;
+            while ((frame = codec.read()) != null) {
+                if (frame.message() instanceof Message.CatalogQuery query) {
+                    int from = Math.clamp(query.offset(), 0, catalog.size());
+                    int to = (int) Math.min(catalog.size(), (long) from + Math.max(0, query.limit()));
+                    codec.write(frame.requestId(), new Message.CatalogResponse(catalog.subList(from, to), from, catalog.size()));
+                }
+            }
+        } catch (IOException e) {
+            // the client closed the connection
+        }
+    }
+
+    private static List<VideoFile> syntheticCatalog(int titles) {
+        String[] words = {"star", "river", "night", "city", "ocean", "storm", "garden", "winter"};
+        String[] resolutions = {"240p", "360p", "480p", "720p", "1080p"};
+        List<VideoFile> files = new ArrayList<>(titles);
+        for (int i = 0; i < titles; i++) {
+            String name = words[i % words.length] + "-" + words[(i / words.length) % words.length] + "-title-" + i;
+            files.add(new VideoFile(name, "mp4", resolutions[i % resolutions.length],
+                    new MediaInfo(600 + i % 7200, 1000 + i % 5000, 2000 + i % 8000, "h264", 2)));
+        }
+        return files;
+    }
+}
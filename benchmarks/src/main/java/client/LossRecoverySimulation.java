@@ -0,0 +1,80 @@
+package client;
+
+import shared.Message;
+import shared.Protocol;
+import shared.Recovery;
+import shared.StreamEndpoint;
+import shared.VideoFile;
+import utils.LoggerConfig;
+import utils.LossyUdpProxy;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+
+// Plays an RTP stream headlessly through a proxy that drops a share of the datagrams, once without loss recovery,
+// then with FEC only, NACKs only and both, and prints for each how many of the lost datagrams were recovered and
+// the bytes spent on it. The server must run on this machine, with the native sender.
+//
+//   java -cp benchmarks.jar client.LossRecoverySimulation <video filename> [loss percent=1] [seconds=20] [fec group=10]
+public class LossRecoverySimulation {
+
+    private static final int SERVER_PORT = 9090;
+    private static final long PLAYOUT_DELAY_MILLIS = 300;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: java -cp benchmarks.jar client.LossRecoverySimulation <video filename> [loss percent=1] [seconds=20] [fec group=10]");
+            System.exit(2);
+        }
+        LoggerConfig.configureSimpleLogging();
+        VideoFile file = VideoFile.fromFilename(args[0]);
+        double lossPercent = args.length > 1 ? Double.parseDouble(args[1]) : 1;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        int fecGroup = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        List<Recovery> configurations = List.of(Recovery.NONE, new Recovery(fecGroup, false),
+                new Recovery(0, true), new Recovery(fecGroup, true));
+
+        System.out.printf("%s through %.1f %% loss, %d s per run%n", file.getFilename(), lossPercent, seconds);
+        System.out.printf("%-12s %9s %9s %7s %7s %7s %10s %9s%n",
+                "recovery", "received", "dropped", "fec", "nack", "lost", "recovered", "overhead");
+        try (ClientSession session = new ClientSession("localhost", SERVER_PORT)) {
+            for (Recovery requested : configurations) {
+                run(session, file, requested, lossPercent, seconds);
+            }
+        }
+    }
+
+    private static void run(ClientSession session, VideoFile file, Recovery requested, double lossPercent, int seconds)
+            throws Exception {
+        Message response = session.request(new Message.PlayRequest(file, Protocol.RTP_UDP, 0, requested));
+        if (!(response instanceof Message.StreamReady ready)) {
+            System.err.println("Server refused the stream: " + response);
+            System.exit(1);
+            return;
+        }
+        StreamEndpoint endpoint = ready.endpoint();
+        if (!endpoint.getRecovery().equals(requested)) {
+            System.err.println("Server granted " + endpoint.getRecovery() + " instead of " + requested);
+        }
+
+        // The server streams to the session's port, where the proxy drops its share before the receiver
+        try (RecoveringReceiver receiver = new RecoveringReceiver(0, Protocol.RTP_UDP, endpoint.getRecovery(), PLAYOUT_DELAY_MILLIS);
+             LossyUdpProxy link = new LossyUdpProxy(endpoint.getVideoPort(),
+                     new InetSocketAddress(InetAddress.getLoopbackAddress(), receiver.getPort()), lossPercent, 42)) {
+            receiver.start();
+            link.start();
+            Thread.sleep(seconds * 1000L);
+            session.sendOneWay(new Message.Stop(endpoint.getSessionId()));
+            Thread.sleep(PLAYOUT_DELAY_MILLIS * 2); // retransmissions still on their way
+
+            RecoveringReceiver.Stats stats = receiver.getStats();
+            String name = !requested.isEnabled() ? "off"
+                    : requested.fecGroupSize() > 0 && requested.nack() ? "fec+nack"
+                    : requested.nack() ? "nack" : "fec/" + requested.fecGroupSize();
+            System.out.printf("%-12s %9d %9d %7d %7d %7d %9.1f%% %8.1f%%%n", name, stats.received(), link.getDropped(),
+                    stats.recoveredByFec(), stats.recoveredByNack(), stats.lost(),
+                    100 * stats.recoveredRatio(), 100 * stats.overhead());
+        }
+    }
+}
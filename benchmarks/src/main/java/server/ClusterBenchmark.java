@@ -0,0 +1,286 @@
+package server;
+
+import shared.Message;
+import shared.Protocol;
+import shared.VideoFile;
+import shared.WireCodec;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Runs an origin and 1, 2, then 4 edges as separate JVMs on this machine, each in a directory of its own and on
+// ports of its own, and has simulated HLS viewers play random titles through the origin's control port: every play
+// request is redirected to the edge the title hashes to, which pulls what it lacks from the origin. Prints the
+// aggregate throughput for each edge count, the plays each edge served and how much it pulled from the origin.
+// Titles are synthetic segmented files (random bytes), so FFMPEG is not needed. The processes share the machine's
+// cores: throughput can only grow with the edge count as far as there are cores to run the edges on.
+//
+//   java -cp benchmarks.jar server.ClusterBenchmark [titles=16] [segments=20] [segmentKB=512] [viewers=32] [seconds=15]
+public class ClusterBenchmark {
+
+    private static final int ORIGIN_PORT = 19090;
+    private static final int ORIGIN_HLS_PORT = 18080;
+    private static final int EDGE_PORT_BASE = 19100;
+
+    public static void main(String[] args) throws Exception {
+        int titles = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int segments = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int segmentBytes = (args.length > 2 ? Integer.parseInt(args[2]) : 512) * 1024;
+        int viewers = args.length > 3 ? Integer.parseInt(args[3]) : 32;
+        int seconds = args.length > 4 ? Integer.parseInt(args[4]) : 15;
+
+        System.out.printf("%d titles x %d segments of %d KB, %d viewers, %d s per run, %d cores%n",
+                titles, segments, segmentBytes / 1024, viewers, seconds, Runtime.getRuntime().availableProcessors());
+        Path root = Files.createTempDirectory("cluster-benchmark");
+        try {
+            Path originDir = root.resolve("origin");
+            List<VideoFile> files = prepareOrigin(originDir, titles, segments, segmentBytes);
+            for (int edges : new int[]{1, 2, 4}) {
+                run(root, originDir, files, edges, viewers, seconds);
+            }
+        } finally {
+            deleteRecursively(root);
+        }
+    }
+
+    // Catalog files (placeholders) in every format, so the origin queues no conversion, and the mp4 ones segmented
+    private static List<VideoFile> prepareOrigin(Path dir, int titles, int segments, int segmentBytes) throws IOException {
+        Files.createDirectories(dir.resolve("videos"));
+        List<VideoFile> files = new ArrayList<>();
+        byte[] content = new byte[segmentBytes];
+        for (int t = 0; t < titles; t++) {
+            for (String format : List.of("mp4", "avi", "mkv")) {
+                Files.writeString(dir.resolve("videos").resolve(new VideoFile("title" + t, format, "240p").getFilename()), "-");
+            }
+            VideoFile file = new VideoFile("title" + t, "mp4", "240p");
+            Path hls = Files.createDirectories(dir.resolve("hls").resolve(file.getFilename()));
+            StringBuilder playlist = new StringBuilder("#EXTM3U\n#EXT-X-TARGETDURATION:4\n");
+            for (int s = 0; s < segments; s++) {
+                ThreadLocalRandom.current().nextBytes(content);
+                String segment = String.format("seg%05d.ts", s);
+                Files.write(hls.resolve(segment), content);
+                playlist.append("#EXTINF:4.0,\n").append(segment).append('\n');
+            }
+            Files.writeString(hls.resolve(HlsSegmenter.PLAYLIST), playlist.append("#EXT-X-ENDLIST\n"));
+            files.add(file);
+        }
+        return files;
+    }
+
+    private static void run(Path root, Path originDir, List<VideoFile> files, int edges, int viewers, int seconds)
+            throws Exception {
+        List<String> nodes = new ArrayList<>();
+        for (int i = 0; i < edges; i++) {
+            nodes.add("127.0.0.1:" + (EDGE_PORT_BASE + i));
+        }
+        String nodeList = String.join(",", nodes);
+        List<Process> processes = new ArrayList<>();
+        try {
+            processes.add(startServer(originDir, ORIGIN_PORT, ORIGIN_HLS_PORT, 0, "-Dcluster.nodes=" + nodeList));
+            awaitPort(ORIGIN_PORT);
+            for (int i = 0; i < edges; i++) {
+                Path edgeDir = Files.createDirectories(root.resolve("edges" + edges + "-" + i));
+                processes.add(startServer(edgeDir, EDGE_PORT_BASE + i, ORIGIN_HLS_PORT + 100 + i, 100 + i,
+                        "-Dcluster.nodes=" + nodeList, "-Dcluster.self=" + nodes.get(i),
+                        "-Dcluster.origin=127.0.0.1:" + ORIGIN_PORT, "-Dcluster.originHlsPort=" + ORIGIN_HLS_PORT));
+            }
+            for (int i = 0; i < edges; i++) {
+                awaitPort(EDGE_PORT_BASE + i);
+            }
+
+            // A first pass over every title fills the edges, the timed run is then served from them
+            play(files, 1, 0, files.size());
+            Result result = play(files, viewers, seconds, Integer.MAX_VALUE);
+            System.out.printf("%d edge(s): %,.0f MB/s aggregate, %,d plays, %,d failed%n",
+                    edges, result.bytes.sum() / 1e6 / result.seconds, result.plays.sum(), result.failures.sum());
+            for (int i = 0; i < edges; i++) {
+                Map<String, Double> metrics = scrapeMetrics(9200 + 100 + i);
+                System.out.printf("  edge %d: %,d plays, %,.0f pulls / %,.0f MB from the origin%n", i,
+                        result.playsByEdge.getOrDefault(EDGE_PORT_BASE + i, 0L),
+                        metrics.getOrDefault("edge_origin_fetches_total", 0.0),
+                        metrics.getOrDefault("edge_origin_bytes_total", 0.0) / 1e6);
+            }
+        } finally {
+            for (Process process : processes) {
+                process.destroy();
+            }
+            for (Process process : processes) {
+                process.waitFor();
+            }
+        }
+    }
+
+    // A server JVM with this benchmark's classpath, its ports offset so several run side by side
+    private static Process startServer(Path dir, int port, int hlsPort, int offset, String... clusterProperties)
+            throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(ProcessHandle.current().info().command().orElse("java"));
+        command.add("-cp");
+        command.add(Arrays.stream(System.getProperty("java.class.path").split(File.pathSeparator))
+                .map(entry -> Path.of(entry).toAbsolutePath().toString())
+                .collect(Collectors.joining(File.pathSeparator)));
+        command.add("-Dserver.port=" + port);
+        command.add("-Dhls.port=" + hlsPort);
+        command.add("-Dprobe.port=" + (9191 + offset));
+        command.add("-Dmetrics.port=" + (9200 + offset));
+        command.add("-Dstream.portBase=" + (30000 + offset * 100));
+        command.add("-Dstream.slots=16");
+        command.addAll(List.of(clusterProperties));
+        command.add(StreamingServer.class.getName());
+        return new ProcessBuilder(command)
+                .directory(dir.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(dir.resolve("server.log").toFile())
+                .start();
+    }
+
+    private static void awaitPort(int port) throws Exception {
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (true) {
+            try {
+                SocketChannel.open(new InetSocketAddress("127.0.0.1", port)).close();
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IOException("Server on port " + port + " did not start", e);
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    // Viewers each play random titles start to end, one after the other, for the given time or number of plays:
+    // play request to the origin, redirect, play request to the edge, then the playlist and every segment over HTTP
+    private static Result play(List<VideoFile> files, int viewers, int seconds, int playsPerViewer) throws Exception {
+        Result result = new Result();
+        HttpClient http = HttpClient.newHttpClient();
+        long deadline = seconds > 0 ? System.nanoTime() + seconds * 1_000_000_000L : Long.MAX_VALUE;
+        long start = System.nanoTime();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int v = 0; v < viewers; v++) {
+                int first = v;
+                executor.submit(() -> {
+                    Map<Integer, Connection> connections = new HashMap<>();
+                    try {
+                        for (int p = 0; p < playsPerViewer && System.nanoTime() < deadline; p++) {
+                            VideoFile file = playsPerViewer < Integer.MAX_VALUE
+                                    ? files.get((first + p) % files.size())
+                                    : files.get(ThreadLocalRandom.current().nextInt(files.size()));
+                            try {
+                                playOnce(file, connections, http, result);
+                            } catch (IOException e) {
+                                result.failures.increment();
+                            }
+                        }
+                    } finally {
+                        for (Connection connection : connections.values()) {
+                            connection.channel.close();
+                        }
+                    }
+                    return null;
+                });
+            }
+        }
+        result.seconds = (System.nanoTime() - start) / 1e9;
+        return result;
+    }
+
+    private static void playOnce(VideoFile file, Map<Integer, Connection> connections, HttpClient http, Result result)
+            throws IOException, InterruptedException {
+        Message.PlayRequest request = new Message.PlayRequest(file, Protocol.HLS);
+        Message response = exchange(connections, ORIGIN_PORT, request);
+        if (response instanceof Message.Redirect redirect) {
+            result.playsByEdge.merge(redirect.port(), 1L, Long::sum);
+            response = exchange(connections, redirect.port(), request);
+        }
+        if (!(response instanceof Message.StreamReady ready)) {
+            throw new IOException("Play refused: " + response);
+        }
+        URI playlist = URI.create(ready.endpoint().getUrl());
+        String body = get(http, playlist, HttpResponse.BodyHandlers.ofString());
+        for (String line : body.split("\n")) {
+            if (!line.isBlank() && !line.startsWith("#")) {
+                byte[] segment = get(http, playlist.resolve(line.trim()), HttpResponse.BodyHandlers.ofByteArray());
+                result.bytes.add(segment.length);
+            }
+        }
+        result.plays.increment();
+    }
+
+    private static <T> T get(HttpClient http, URI uri, HttpResponse.BodyHandler<T> handler)
+            throws IOException, InterruptedException {
+        HttpResponse<T> response = http.send(HttpRequest.newBuilder(uri).build(), handler);
+        if (response.statusCode() != 200) {
+            throw new IOException("HTTP " + response.statusCode() + " for " + uri);
+        }
+        return response.body();
+    }
+
+    private static Message exchange(Map<Integer, Connection> connections, int port, Message request) throws IOException {
+        Connection connection = connections.get(port);
+        if (connection == null) {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+            connection = new Connection(channel, new WireCodec(channel));
+            connections.put(port, connection);
+        }
+        connection.codec.write(1, request);
+        WireCodec.Frame frame = connection.codec.read();
+        if (frame == null) {
+            throw new IOException("Connection closed by port " + port);
+        }
+        return frame.message();
+    }
+
+    private static Map<String, Double> scrapeMetrics(int port) throws IOException, InterruptedException {
+        String text = HttpClient.newHttpClient().send(HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + port + "/metrics")).build(),
+                HttpResponse.BodyHandlers.ofString()).body();
+        Map<String, Double> metrics = new HashMap<>();
+        for (String line : text.split("\n")) {
+            String[] parts = line.split(" ");
+            if (parts.length == 2 && !line.startsWith("#")) {
+                metrics.put(parts[0], Double.parseDouble(parts[1]));
+            }
+        }
+        return metrics;
+    }
+
+    private record Connection(SocketChannel channel, WireCodec codec) {
+    }
+
+    private static final class Result {
+        final LongAdder bytes = new LongAdder();
+        final LongAdder plays = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        final Map<Integer, Long> playsByEdge = new ConcurrentHashMap<>();
+        double seconds;
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package server;
+
+import shared.Recovery;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+// Measures the native sender without FFMPEG: writes a synthetic MPEG-TS file at a given bitrate (a PCR every
+// 20 ms), streams it to local UDP receivers and prints, per sender thread, datagrams per second and how far
+// from its due time each datagram left.
+//
+//   java -cp benchmarks.jar server.PacerBenchmark [streams=50] [senderThreads=2] [bitrateMbps=4] [seconds=10] [rtp=false]
+public class PacerBenchmark {
+
+    private static final int PCR_PID = 0x100;
+    private static final double PCR_PERIOD_SECONDS = 0.02;
+
+    public static void main(String[] args) throws Exception {
+        int streams = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        double bitrateMbps = args.length > 2 ? Double.parseDouble(args[2]) : 4;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        boolean rtp = args.length > 4 && Boolean.parseBoolean(args[4]);
+
+        Path tsFile = Files.createTempFile("pacer-benchmark", ".ts");
+        tsFile.toFile().deleteOnExit();
+        writeSyntheticTs(tsFile, bitrateMbps, seconds);
+
+        List<PacedSender> senders = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            senders.add(new PacedSender("paced-sender-" + i));
+        }
+
+        SegmentCache cache = new SegmentCache(512L * 1024 * 1024, 0);
+        LongAdder received = new LongAdder();
+        CountDownLatch ended = new CountDownLatch(streams);
+        List<DatagramChannel> receivers = new ArrayList<>();
+        long start = System.nanoTime() + 1_000_000_000L; // time to open every stream before the first datagram
+        for (int i = 0; i < streams; i++) {
+            DatagramChannel receiver = DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            receiver.setOption(java.net.StandardSocketOptions.SO_RCVBUF, 4 * 1024 * 1024);
+            receivers.add(receiver);
+            Thread.ofVirtual().start(() -> drain(receiver, received));
+            PacedStream stream = new PacedStream("bench-" + i, tsFile, cache, (InetSocketAddress) receiver.getLocalAddress(),
+                    rtp, Recovery.NONE, 0, start, ended::countDown);
+            senders.get(i % threads).add(stream);
+        }
+
+        ended.await();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        Thread.sleep(200); // let the receivers drain their socket buffers
+        receivers.forEach(receiver -> {
+            try {
+                receiver.close();
+            } catch (IOException ignored) {}
+        });
+
+        System.out.printf("%d streams x %.1f Mbps over %d sender thread(s), %.1f s%n", streams, bitrateMbps, threads, elapsed);
+        long sent = 0;
+        for (int i = 0; i < threads; i++) {
+            PacedSender.Stats stats = senders.get(i).getStats();
+            sent += stats.getPackets();
+            System.out.printf("  thread %d: %,d datagrams, %,.0f/s, deviation p50 < %d us, p99 < %d us, max %d us, %d errors%n",
+                    i, stats.getPackets(), stats.getPackets() / elapsed, stats.getDeviationPercentileMicros(50),
+                    stats.getDeviationPercentileMicros(99), stats.getMaxDeviationMicros(), stats.getErrors());
+        }
+        System.out.printf("  received %,d of %,d datagrams (%.2f%% lost on loopback)%n",
+                received.sum(), sent, sent == 0 ? 0 : 100.0 * (sent - received.sum()) / sent);
+    }
+
+    private static void drain(DatagramChannel receiver, LongAdder received) {
+        ByteBuffer buffer = ByteBuffer.allocate(2048);
+        try {
+            while (true) {
+                buffer.clear();
+                receiver.receive(buffer);
+                received.increment();
+            }
+        } catch (IOException e) {
+            // closed at the end of the run
+        }
+    }
+
+    // TS packets on one PID, each PCR_PERIOD_SECONDS worth of bytes starting with a PCR-bearing packet
+    private static void writeSyntheticTs(Path file, double bitrateMbps, int seconds) throws IOException {
+        int packetsPerPeriod = Math.max(1, (int) (bitrateMbps * 1_000_000 * PCR_PERIOD_SECONDS / 8 / PacedStream.TS_PACKET_SIZE));
+        int periods = (int) (seconds / PCR_PERIOD_SECONDS);
+        byte[] packet = new byte[PacedStream.TS_PACKET_SIZE];
+        int continuity = 0;
+        try (OutputStream out = new java.io.BufferedOutputStream(Files.newOutputStream(file))) {
+            for (int period = 0; period < periods; period++) {
+                long pcrBase = Math.round(period * PCR_PERIOD_SECONDS * 90_000);
+                for (int i = 0; i < packetsPerPeriod; i++) {
+                    java.util.Arrays.fill(packet, (byte) 0xFF);
+                    packet[0] = 0x47;
+                    packet[1] = (byte) (PCR_PID >> 8);
+                    packet[2] = (byte) PCR_PID;
+                    if (i == 0) {
+                        packet[3] = (byte) (0x30 | continuity);
+                        packet[4] = 7; // adaptation field length
+                        packet[5] = 0x10; // PCR flag
+                        packet[6] = (byte) (pcrBase >> 25);
+                        packet[7] = (byte) (pcrBase >> 17);
+                        packet[8] = (byte) (pcrBase >> 9);
+                        packet[9] = (byte) (pcrBase >> 1);
+                        packet[10] = (byte) ((pcrBase & 1) << 7 | 0x7E);
+                        packet[11] = 0;
+                    } else {
+                        packet[3] = (byte) (0x10 | continuity);
+                    }
+                    continuity = (continuity + 1) & 0x0F;
+                    out.write(packet);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package server;
+
+import shared.Recovery;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+// Measures a seek into the middle of a long file without FFMPEG: writes a synthetic MPEG-TS file (a PCR every
+// 20 ms, a video keyframe every 2 s), then times building its keyframe index, looking a position up in it, and
+// how long a native stream started at that position takes to deliver its first datagram on loopback.
+// Before keyframe indexes, a viewer could only play from the start and reach the middle in real time.
+//
+//   java -cp benchmarks.jar server.SeekBenchmark [hours=2] [bitrateMbps=0.5]
+public class SeekBenchmark {
+
+    private static final int VIDEO_PID = 0x100;
+    private static final double PCR_PERIOD_SECONDS = 0.02;
+    private static final double KEYFRAME_PERIOD_SECONDS = 2;
+    private static final int LOOKUPS = 1_000_000;
+
+    public static void main(String[] args) throws Exception {
+        double hours = args.length > 0 ? Double.parseDouble(args[0]) : 2;
+        double bitrateMbps = args.length > 1 ? Double.parseDouble(args[1]) : 0.5;
+        double seekSeconds = hours * 3600 / 2;
+
+        Path tsFile = Files.createTempFile("seek-benchmark", ".ts");
+        Path indexFile = tsFile.resolveSibling(tsFile.getFileName() + ".kfi");
+        tsFile.toFile().deleteOnExit();
+        indexFile.toFile().deleteOnExit();
+        writeSyntheticTs(tsFile, bitrateMbps, hours * 3600);
+        System.out.printf("%.1f h at %.1f Mbps: %,d MB, seek to %.0f s%n", hours, bitrateMbps, Files.size(tsFile) >> 20, seekSeconds);
+
+        // Done once per file, when it is remuxed
+        long start = System.nanoTime();
+        KeyframeIndex built = KeyframeIndex.scanTs(tsFile);
+        built.write(indexFile);
+        System.out.printf("  index build (full scan) and save: %d ms, %,d keyframes, %,d bytes%n",
+                (System.nanoTime() - start) / 1_000_000, built.size(), Files.size(indexFile));
+
+        // Done on every seek
+        start = System.nanoTime();
+        KeyframeIndex keyframes = KeyframeIndex.read(indexFile);
+        long readNanos = System.nanoTime() - start;
+        int found = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            found += keyframes.floor(seekSeconds + (i & 1));
+        }
+        long lookupNanos = (System.nanoTime() - start) / LOOKUPS;
+        int keyframe = keyframes.floor(seekSeconds);
+        if (found < 0) throw new IllegalStateException("empty index"); // keeps the lookups from being optimized away
+        System.out.printf("  index load: %d us, lookup: %d ns -> keyframe %.1f s at byte %,d%n",
+                readNanos / 1000, lookupNanos, keyframes.timeAt(keyframe), keyframes.offsetAt(keyframe));
+
+        firstDatagramMillis(tsFile, 0); // warm-up: class loading and compilation of the send path
+        System.out.printf("  first datagram from the start: %.1f ms%n", firstDatagramMillis(tsFile, 0));
+        System.out.printf("  first datagram at %.0f s: %.1f ms (was: %.0f s of playback from the start)%n",
+                seekSeconds, firstDatagramMillis(tsFile, keyframes.offsetAt(keyframe) / PacedStream.CHUNK_SIZE),
+                keyframes.timeAt(keyframe));
+    }
+
+    // From opening the stream to the first datagram received, including the index-free PCR scan at the position
+    private static double firstDatagramMillis(Path tsFile, long firstChunk) throws Exception {
+        PacedSender sender = new PacedSender("seek-sender");
+        SegmentCache cache = new SegmentCache(64L * 1024 * 1024, 0);
+        try (DatagramChannel receiver = DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+            CountDownLatch received = new CountDownLatch(1);
+            Thread.ofVirtual().start(() -> {
+                try {
+                    receiver.receive(ByteBuffer.allocate(2048));
+                    received.countDown();
+                } catch (IOException ignored) {
+                    // closed at the end of the run
+                }
+            });
+            long start = System.nanoTime();
+            PacedStream stream = new PacedStream("seek", tsFile, cache, (InetSocketAddress) receiver.getLocalAddress(),
+                    false, Recovery.NONE, firstChunk, System.nanoTime(), () -> {});
+            sender.add(stream);
+            received.await();
+            double millis = (System.nanoTime() - start) / 1e6;
+            stream.stop();
+            return millis;
+        }
+    }
+
+    // One video PID; every PCR_PERIOD_SECONDS worth of bytes starts with a PCR-bearing packet, which also starts a
+    // keyframe PES (random access indicator and PTS) every KEYFRAME_PERIOD_SECONDS
+    private static void writeSyntheticTs(Path file, double bitrateMbps, double seconds) throws IOException {
+        int packetsPerPeriod = Math.max(1, (int) (bitrateMbps * 1_000_000 * PCR_PERIOD_SECONDS / 8 / PacedStream.TS_PACKET_SIZE));
+        long periods = (long) (seconds / PCR_PERIOD_SECONDS);
+        long periodsPerKeyframe = Math.round(KEYFRAME_PERIOD_SECONDS / PCR_PERIOD_SECONDS);
+        byte[] packet = new byte[PacedStream.TS_PACKET_SIZE];
+        int continuity = 0;
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), 1 << 20)) {
+            for (long period = 0; period < periods; period++) {
+                long pcrBase = Math.round(period * PCR_PERIOD_SECONDS * 90_000);
+                boolean keyframe = period % periodsPerKeyframe == 0;
+                for (int i = 0; i < packetsPerPeriod; i++) {
+                    Arrays.fill(packet, (byte) 0xFF);
+                    packet[0] = 0x47;
+                    packet[1] = (byte) ((i == 0 && keyframe ? 0x40 : 0) | VIDEO_PID >> 8);
+                    packet[2] = (byte) VIDEO_PID;
+                    if (i == 0) {
+                        packet[3] = (byte) (0x30 | continuity);
+                        packet[4] = 7; // adaptation field length
+                        packet[5] = (byte) (keyframe ? 0x50 : 0x10); // random access indicator, PCR flag
+                        packet[6] = (byte) (pcrBase >> 25);
+                        packet[7] = (byte) (pcrBase >> 17);
+                        packet[8] = (byte) (pcrBase >> 9);
+                        packet[9] = (byte) (pcrBase >> 1);
+                        packet[10] = (byte) ((pcrBase & 1) << 7 | 0x7E);
+                        packet[11] = 0;
+                        if (keyframe) {
+                            writePesHeader(packet, 12, pcrBase);
+                        }
+                    } else {
+                        packet[3] = (byte) (0x10 | continuity);
+                    }
+                    continuity = (continuity + 1) & 0x0F;
+                    out.write(packet);
+                }
+            }
+        }
+    }
+
+    // Video PES header (stream id 0xE0, unbounded length) carrying a PTS
+    private static void writePesHeader(byte[] packet, int p, long pts) {
+        packet[p] = 0;
+        packet[p + 1] = 0;
+        packet[p + 2] = 1;
+        packet[p + 3] = (byte) 0xE0;
+        packet[p + 4] = 0;
+        packet[p + 5] = 0;
+        packet[p + 6] = (byte) 0x80;
+        packet[p + 7] = (byte) 0x80; // PTS only
+        packet[p + 8] = 5;
+        packet[p + 9] = (byte) (0x21 | (pts >> 29) & 0x0E);
+        packet[p + 10] = (byte) (pts >> 22);
+        packet[p + 11] = (byte) ((pts >> 14) & 0xFE | 1);
+        packet[p + 12] = (byte) (pts >> 7);
+        packet[p + 13] = (byte) ((pts << 1) & 0xFE | 1);
+    }
+}
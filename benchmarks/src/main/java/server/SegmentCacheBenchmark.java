@@ -0,0 +1,93 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+// Many simulated viewers reading the segments of one title, each from its own position, first straight from the
+// files (one open and read per viewer and segment, as before the cache) and then through a SegmentCache.
+// Prints throughput and how many times the files were actually read.
+//
+//   java -cp benchmarks.jar server.SegmentCacheBenchmark [viewers=200] [segments=60] [segmentKB=2048] [cacheMB=512]
+public class SegmentCacheBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int viewers = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int segments = args.length > 1 ? Integer.parseInt(args[1]) : 60;
+        int segmentBytes = (args.length > 2 ? Integer.parseInt(args[2]) : 2048) * 1024;
+        long cacheBytes = (args.length > 3 ? Long.parseLong(args[3]) : 512) * 1024 * 1024;
+
+        Path dir = Files.createTempDirectory("segment-cache-benchmark");
+        List<Path> files = new ArrayList<>();
+        byte[] content = new byte[segmentBytes];
+        for (int i = 0; i < segments; i++) {
+            ThreadLocalRandom.current().nextBytes(content);
+            files.add(Files.write(dir.resolve(String.format("seg%05d.ts", i)), content));
+        }
+
+        System.out.printf("%d viewers x %d segments of %d KB, cache budget %d MB%n",
+                viewers, segments, segmentBytes / 1024, cacheBytes / 1024 / 1024);
+        try {
+            LongAdder fileReads = new LongAdder();
+            run("files", viewers, files, segmentBytes, file -> {
+                fileReads.increment();
+                ByteBuffer buffer = ByteBuffer.allocateDirect(segmentBytes);
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    while (buffer.hasRemaining() && channel.read(buffer) >= 0) {}
+                }
+                return buffer.flip();
+            });
+            System.out.printf("  files: %,d file reads%n", fileReads.sum());
+
+            SegmentCache cache = new SegmentCache(cacheBytes, segmentBytes);
+            run("cache", viewers, files, segmentBytes, cache::read);
+            System.out.printf("  cache: %,d hits, %,d misses (file reads), %,d evictions, %d MB held%n",
+                    cache.getHits(), cache.getMisses(), cache.getEvictions(), cache.getBytes() / 1024 / 1024);
+        } finally {
+            try (Stream<Path> paths = Files.walk(dir)) {
+                for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+    }
+
+    // Every viewer reads all segments in order, starting from a random one, and copies each out as a
+    // socket write would; the copy is the same in both modes
+    private static void run(String name, int viewers, List<Path> files, int segmentBytes, Reader reader) throws Exception {
+        long start = System.nanoTime();
+        LongAdder bytes = new LongAdder();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int v = 0; v < viewers; v++) {
+                int first = ThreadLocalRandom.current().nextInt(files.size());
+                executor.submit(() -> {
+                    ByteBuffer sink = ByteBuffer.allocateDirect(segmentBytes);
+                    for (int i = 0; i < files.size(); i++) {
+                        ByteBuffer segment = reader.read(files.get((first + i) % files.size()));
+                        sink.clear();
+                        bytes.add(segment.remaining());
+                        sink.put(segment);
+                    }
+                    return null;
+                });
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("  %s: %.2f s, %,.0f MB/s served%n", name, seconds, bytes.sum() / 1e6 / seconds);
+    }
+
+    private interface Reader {
+        ByteBuffer read(Path file) throws IOException;
+    }
+}
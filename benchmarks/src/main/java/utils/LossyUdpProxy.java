@@ -0,0 +1,83 @@
+package utils;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+// UDP relay that drops a share of the datagrams at random, in both directions, to try loss recovery in front of
+// a local server. It listens on the port the server streams to and forwards to the real receiver; datagrams from
+// the receiver (NACKs) go back to wherever the stream comes from.
+public class LossyUdpProxy implements AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger(LossyUdpProxy.class.getName());
+    private static final int MAX_DATAGRAM = 1500;
+
+    private final DatagramSocket socket;
+    private final InetSocketAddress receiver;
+    private final double lossRate;
+    private final Random random;
+    private final LongAdder forwarded = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private SocketAddress sender; // learned from the first datagram that is not the receiver's
+    private Thread thread;
+
+    // The seed makes the drops of two runs fall on the same datagram numbers
+    public LossyUdpProxy(int port, InetSocketAddress receiver, double lossPercent, long seed) throws IOException {
+        this.socket = new DatagramSocket(port);
+        this.receiver = receiver;
+        this.lossRate = lossPercent / 100;
+        this.random = new Random(seed);
+        socket.setReceiveBufferSize(4 * 1024 * 1024);
+    }
+
+    public void start() {
+        thread = new Thread(this::relay, "lossy-udp-proxy");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public long getForwarded() {
+        return forwarded.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+    }
+
+    private void relay() {
+        DatagramPacket packet = new DatagramPacket(new byte[MAX_DATAGRAM], MAX_DATAGRAM);
+        while (!socket.isClosed()) {
+            try {
+                packet.setLength(MAX_DATAGRAM);
+                socket.receive(packet);
+                SocketAddress destination;
+                if (packet.getSocketAddress().equals(receiver)) {
+                    destination = sender;
+                } else {
+                    sender = packet.getSocketAddress();
+                    destination = receiver;
+                }
+                if (destination == null) continue;
+                if (random.nextDouble() < lossRate) {
+                    dropped.increment();
+                    continue;
+                }
+                packet.setSocketAddress(destination);
+                socket.send(packet);
+                forwarded.increment();
+            } catch (IOException e) {
+                if (!socket.isClosed()) logger.fine("Proxy datagram lost: " + e.getMessage());
+            }
+        }
+    }
+}
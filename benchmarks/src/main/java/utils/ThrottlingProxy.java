@@ -0,0 +1,132 @@
+package utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+// TCP proxy whose server-to-client direction follows a scripted bandwidth trace. All connections share the
+// same budget, like a single access link, so it can replay network conditions in front of a local server.
+public class ThrottlingProxy implements AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger(ThrottlingProxy.class.getName());
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    private final InetSocketAddress target;
+    private final List<Step> trace;
+    private ServerSocket serverSocket;
+    private long startNanos;
+    private long linkFreeAtNanos; // guarded by this: when the bytes already sent have left the simulated link
+
+    public ThrottlingProxy(InetSocketAddress target, List<Step> trace) {
+        this.target = target;
+        this.trace = List.copyOf(trace);
+    }
+
+    // Trace file: one "<duration seconds> <rate Mbps>" step per line, '#' starts a comment.
+    // The last rate holds once the trace is over.
+    public static List<Step> readTrace(Path file) throws IOException {
+        List<Step> steps = new ArrayList<>();
+        for (String line : Files.readAllLines(file)) {
+            int comment = line.indexOf('#');
+            String content = (comment >= 0 ? line.substring(0, comment) : line).trim();
+            if (content.isEmpty()) continue;
+            String[] fields = content.split("\\s+");
+            steps.add(new Step(Double.parseDouble(fields[0]), Double.parseDouble(fields[1])));
+        }
+        if (steps.isEmpty()) {
+            throw new IOException("Empty trace: " + file);
+        }
+        return steps;
+    }
+
+    // Starts listening on a free loopback port and returns it; the trace clock starts now
+    public int start() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        startNanos = System.nanoTime();
+        Thread acceptor = new Thread(() -> {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket client = serverSocket.accept();
+                    Thread.ofVirtual().start(() -> relay(client));
+                } catch (IOException e) {
+                    if (!serverSocket.isClosed()) logger.warning("Proxy accept error: " + e.getMessage());
+                }
+            }
+        }, "throttling-proxy");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return serverSocket.getLocalPort();
+    }
+
+    // Rate of the trace step in effect now
+    public double currentMbps() {
+        double elapsed = (System.nanoTime() - startNanos) / 1e9;
+        for (Step step : trace) {
+            if (elapsed < step.seconds()) {
+                return step.mbps();
+            }
+            elapsed -= step.seconds();
+        }
+        return trace.get(trace.size() - 1).mbps();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (serverSocket != null) serverSocket.close();
+    }
+
+    private void relay(Socket client) {
+        try (Socket downstream = client; Socket upstream = new Socket(target.getAddress(), target.getPort())) {
+            Thread requests = Thread.ofVirtual().start(() -> copy(downstream, upstream, false));
+            copy(upstream, downstream, true);
+            requests.join();
+        } catch (IOException | InterruptedException e) {
+            logger.fine("Proxy connection ended: " + e.getMessage());
+        }
+    }
+
+    // Copies until end of stream, then half-closes the destination so the other direction can finish
+    private void copy(Socket from, Socket to, boolean throttled) {
+        byte[] buffer = new byte[CHUNK_SIZE];
+        try {
+            InputStream in = from.getInputStream();
+            OutputStream out = to.getOutputStream();
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                if (throttled) pace(read);
+                out.write(buffer, 0, read);
+            }
+            to.shutdownOutput();
+        } catch (IOException | InterruptedException e) {
+            try {
+                from.close();
+                to.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    // Waits until the simulated link has room for these bytes at the current rate
+    private void pace(int bytes) throws InterruptedException {
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            long sendAt = Math.max(now, linkFreeAtNanos);
+            linkFreeAtNanos = sendAt + (long) (bytes * 8_000.0 / currentMbps()); // bits / (Mbit/s) in ns
+            waitNanos = linkFreeAtNanos - now;
+        }
+        Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+    }
+
+    // One step of a bandwidth trace
+    public record Step(double seconds, double mbps) {
+    }
+}
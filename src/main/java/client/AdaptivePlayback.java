@@ -0,0 +1,181 @@
+package client;
+
+import shared.Message;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+// Client side of an ADAPTIVE session. Segments are fetched here rather than by the player, so each download
+// can be timed: after every segment, and every few seconds in between, the delivered throughput and the
+// estimated buffer level are reported to the server, which picks the rendition of the following segments.
+// ffplay reads through a small local HTTP proxy that hands it the segments fetched by this class.
+public class AdaptivePlayback implements AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger(AdaptivePlayback.class.getName());
+    private static final long REPORT_PERIOD_MS = 2000;
+
+    private final ClientSession session;
+    private final String sessionId;
+    private final URI playlistUrl;
+    private final HttpClient http = HttpClient.newHttpClient();
+    private final PlaybackModel model = new PlaybackModel();
+    private final Map<String, Double> segmentDurations = new ConcurrentHashMap<>();
+    private volatile List<String> segmentNames = List.of();
+    private final ScheduledExecutorService reporter;
+    private ServerSocket proxy;
+
+    public AdaptivePlayback(ClientSession session, String sessionId, URI playlistUrl) {
+        this.session = session;
+        this.sessionId = sessionId;
+        this.playlistUrl = playlistUrl;
+        this.reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "adaptive-report");
+            t.setDaemon(true);
+            return t;
+        });
+        // Keeps the buffer level flowing to the server while the player is not asking for segments
+        reporter.scheduleAtFixedRate(() -> report(0), REPORT_PERIOD_MS, REPORT_PERIOD_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public PlaybackModel getModel() {
+        return model;
+    }
+
+    public List<String> getSegmentNames() {
+        return segmentNames;
+    }
+
+    // Fetches the playlist and remembers the order and duration of its segments
+    public String fetchPlaylist() throws IOException {
+        String playlist = new String(send(playlistUrl).body(), StandardCharsets.UTF_8);
+        List<String> names = new ArrayList<>();
+        double duration = 0;
+        for (String line : playlist.split("\n")) {
+            line = line.trim();
+            if (line.startsWith("#EXTINF:")) {
+                int comma = line.indexOf(',');
+                duration = Double.parseDouble(line.substring(8, comma < 0 ? line.length() : comma));
+            } else if (!line.isEmpty() && !line.startsWith("#")) {
+                segmentDurations.put(line, duration);
+                names.add(line);
+            }
+        }
+        segmentNames = List.copyOf(names);
+        return playlist;
+    }
+
+    // Downloads one segment, then reports the throughput it was delivered at and the new buffer level
+    public Segment fetchSegment(String name) throws IOException {
+        long start = System.nanoTime();
+        HttpResponse<byte[]> response = send(playlistUrl.resolve(name));
+        double mbps = response.body().length * 8.0 / Math.max(1, (System.nanoTime() - start) / 1_000); // bits/µs = Mbps
+        model.onSegment(segmentDurations.getOrDefault(name, 0.0));
+        List<String> names = segmentNames;
+        if (!names.isEmpty() && names.get(names.size() - 1).equals(name)) {
+            model.onComplete();
+        }
+        report(mbps);
+        return new Segment(response.body(), response.headers().firstValue("X-Rendition").orElse(null));
+    }
+
+    // Serves the playlist and segments to a local player; returns the playlist URL to give it
+    public String startProxy() throws IOException {
+        proxy = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(() -> {
+            while (!proxy.isClosed()) {
+                try {
+                    Socket player = proxy.accept();
+                    Thread.ofVirtual().start(() -> serve(player));
+                } catch (IOException e) {
+                    if (!proxy.isClosed()) logger.warning("Proxy accept error: " + e.getMessage());
+                }
+            }
+        }, "adaptive-proxy");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        String path = playlistUrl.getPath();
+        return "http://127.0.0.1:" + proxy.getLocalPort() + path.substring(path.lastIndexOf('/'));
+    }
+
+    @Override
+    public void close() {
+        reporter.shutdownNow();
+        try {
+            if (proxy != null) proxy.close();
+        } catch (IOException ignored) {}
+    }
+
+    // One request per connection: GET /<entry>, answered from the server through fetchPlaylist/fetchSegment
+    private void serve(Socket player) {
+        try (Socket socket = player) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+            String requestLine = reader.readLine();
+            String header;
+            while ((header = reader.readLine()) != null && !header.isEmpty()) {
+                // Headers are not needed
+            }
+            OutputStream out = socket.getOutputStream();
+            String[] parts = requestLine == null ? new String[0] : requestLine.split(" ");
+            if (parts.length != 3 || !parts[0].equals("GET")) {
+                out.write("HTTP/1.1 400 Bad Request\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+                return;
+            }
+
+            String entry = parts[1].substring(parts[1].lastIndexOf('/') + 1);
+            byte[] body;
+            String contentType;
+            if (entry.endsWith(".m3u8")) {
+                body = fetchPlaylist().getBytes(StandardCharsets.UTF_8);
+                contentType = "application/vnd.apple.mpegurl";
+            } else {
+                body = fetchSegment(entry).data();
+                contentType = "video/mp2t";
+            }
+            out.write(("HTTP/1.1 200 OK\r\nContent-Type: " + contentType + "\r\nContent-Length: " + body.length
+                    + "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.write(body);
+        } catch (IOException e) {
+            logger.warning("Proxy request failed: " + e.getMessage());
+        }
+    }
+
+    private void report(double throughputMbps) {
+        try {
+            session.sendOneWay(new Message.PlaybackReport(sessionId, throughputMbps, model.getBufferSeconds()));
+        } catch (IOException e) {
+            logger.warning("Could not send playback report: " + e.getMessage());
+        }
+    }
+
+    private HttpResponse<byte[]> send(URI uri) throws IOException {
+        try {
+            HttpResponse<byte[]> response = http.send(HttpRequest.newBuilder(uri).build(), HttpResponse.BodyHandlers.ofByteArray());
+            if (response.statusCode() != 200) {
+                throw new IOException("HTTP " + response.statusCode() + " for " + uri);
+            }
+            return response;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while downloading " + uri);
+        }
+    }
+
+    // A downloaded segment and the resolution the server took it from
+    public record Segment(byte[] data, String resolution) {
+    }
+}
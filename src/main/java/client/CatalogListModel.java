@@ -0,0 +1,165 @@
+package client;
+
+import shared.VideoFile;
+
+import javax.swing.AbstractListModel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeMap;
+
+// List model of a catalog that arrives page by page. Each page is appended and only its rows are announced to
+// the JList, which with a fixed cell size lays out and paints the visible rows alone, whatever the catalog size.
+// A search narrows the rows through a word index (words of the filenames to the rows holding them) built as the
+// pages arrive, so typing never rescans the titles. Pages are split into words by prepare, off the event
+// dispatch thread; everything else is a Swing model method, for the event dispatch thread only.
+public class CatalogListModel extends AbstractListModel<VideoFile> {
+
+    private final List<VideoFile> files = new ArrayList<>();
+    private final TreeMap<String, Rows> index = new TreeMap<>();
+    private String[] terms = new String[0];
+    private int[] matches; // rows matching every search term, null when no search is active
+    private int matchCount;
+
+    @Override
+    public int getSize() {
+        return matches == null ? files.size() : matchCount;
+    }
+
+    @Override
+    public VideoFile getElementAt(int row) {
+        return files.get(matches == null ? row : matches[row]);
+    }
+
+    // Titles loaded so far, shown or not
+    public int getLoadedCount() {
+        return files.size();
+    }
+
+    public void clear() {
+        int shown = getSize();
+        files.clear();
+        index.clear();
+        if (matches != null) {
+            matches = new int[0];
+            matchCount = 0;
+        }
+        if (shown > 0) {
+            fireIntervalRemoved(this, 0, shown - 1);
+        }
+    }
+
+    // Splits the titles of a page into words; thread-safe, call it before handing the page to the EDT
+    public static Page prepare(List<VideoFile> files) {
+        List<List<String>> words = new ArrayList<>(files.size());
+        for (VideoFile file : files) {
+            words.add(split(file.getFilename()));
+        }
+        return new Page(files, words);
+    }
+
+    public void append(Page page) {
+        int shownBefore = getSize();
+        for (int i = 0; i < page.files.size(); i++) {
+            int row = files.size();
+            files.add(page.files.get(i));
+            List<String> words = page.words.get(i);
+            for (String word : words) {
+                index.computeIfAbsent(word, w -> new Rows()).add(row);
+            }
+            if (matches != null && matchesTerms(words)) {
+                if (matchCount == matches.length) {
+                    matches = Arrays.copyOf(matches, Math.max(16, matchCount * 2));
+                }
+                matches[matchCount++] = row;
+            }
+        }
+        if (getSize() > shownBefore) {
+            fireIntervalAdded(this, shownBefore, getSize() - 1);
+        }
+    }
+
+    // Shows the titles having, for every word of the text, a word starting with it ("star 720" finds
+    // "star-wars-720p.mp4"); an empty text shows every title
+    public void setFilter(String text) {
+        int shownBefore = getSize();
+        terms = split(text).toArray(new String[0]);
+        if (terms.length == 0) {
+            matches = null;
+        } else {
+            BitSet result = null;
+            for (String term : terms) {
+                BitSet rows = new BitSet(files.size());
+                // Every indexed word starting with the term: a contiguous range of the sorted index
+                for (Rows wordRows : index.subMap(term, true, term + Character.MAX_VALUE, false).values()) {
+                    wordRows.addTo(rows);
+                }
+                if (result == null) {
+                    result = rows;
+                } else {
+                    result.and(rows);
+                }
+            }
+            matches = result.stream().toArray();
+            matchCount = matches.length;
+        }
+        if (shownBefore > 0) {
+            fireIntervalRemoved(this, 0, shownBefore - 1);
+        }
+        if (getSize() > 0) {
+            fireIntervalAdded(this, 0, getSize() - 1);
+        }
+    }
+
+    private boolean matchesTerms(List<String> words) {
+        for (String term : terms) {
+            if (words.stream().noneMatch(word -> word.startsWith(term))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Lower-case runs of letters and digits, without repeats: "Star-Wars-720p.mp4" -> star, wars, 720p, mp4.
+    // Hand-rolled: a regex split per title made loading a large catalog several times slower.
+    private static List<String> split(String text) {
+        List<String> words = new ArrayList<>(4);
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                String word = text.substring(start, i).toLowerCase(Locale.ROOT);
+                if (!words.contains(word)) words.add(word);
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    // Titles of a catalog page with the words of each, ready to be appended
+    public record Page(List<VideoFile> files, List<List<String>> words) {
+    }
+
+    // Rows holding one word, in ascending order since rows are only ever appended
+    private static final class Rows {
+        private int[] rows = new int[2];
+        private int count;
+
+        void add(int row) {
+            if (count == rows.length) {
+                rows = Arrays.copyOf(rows, count * 2);
+            }
+            rows[count++] = row;
+        }
+
+        void addTo(BitSet set) {
+            for (int i = 0; i < count; i++) {
+                set.set(rows[i]);
+            }
+        }
+    }
+}
@@ -1,35 +1,47 @@
 package client;
 
+import shared.MediaInfo;
 import shared.VideoFile;
 import shared.Protocol;
 
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import java.awt.*;
-import java.util.List;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import utils.LoggerConfig;
 
+// The speed test, catalog fetch and play request run off the event dispatch thread; the EDT only renders what
+// they return. The catalog is shown page by page as it arrives.
 public class ClientGUI extends JFrame {
 
     private JComboBox<String> formatSelector;
     private JButton fetchButton;
-    private JTextArea resultArea;
+    private JLabel statusLabel;
     private JLabel protocolLabel;
     private JComboBox<String> protocolSelector;
     private JButton playButton;
+    private JLabel startLabel;
+    private JTextField startField;
+    private JTextField searchField;
     private JList<VideoFile> videoList;
+    private final CatalogListModel catalogModel = new CatalogListModel();
 
     private StreamingClient client;
+    private volatile double measuredMbps; // last speed test result, used by the Auto protocol choice
 
     public ClientGUI() {
         super("Streaming Client");
-        setSize(500, 400);
+        setSize(720, 480);
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         setLayout(new BorderLayout());
 
         formatSelector = new JComboBox<>(new String[]{"mp4", "avi", "mkv"});
         fetchButton = new JButton("Get files");
-        resultArea = new JTextArea();
-        resultArea.setEditable(false);
+        statusLabel = new JLabel(" ");
 
         JPanel topPanel = new JPanel();
         topPanel.add(new JLabel("Format:"));
@@ -37,72 +49,174 @@ public class ClientGUI extends JFrame {
         topPanel.add(fetchButton);
 
         add(topPanel, BorderLayout.NORTH);
-        add(new JScrollPane(resultArea), BorderLayout.CENTER);
+        add(statusLabel, BorderLayout.SOUTH);
 
-        protocolSelector = new JComboBox<>(new String[]{"Auto", "TCP", "UDP", "RTP_UDP"});
+        protocolSelector = new JComboBox<>(new String[]{"Auto", "TCP", "UDP", "RTP_UDP", "HLS", "ADAPTIVE"});
         playButton = new JButton("Play video");
         protocolSelector.setVisible(false);
         playButton.setVisible(false);
         protocolLabel = new JLabel("Protocol:");
         protocolLabel.setVisible(false);
 
+        // Seconds into the video to start from, filled with where the selected video was last stopped
+        startLabel = new JLabel("Start at (s):");
+        startField = new JTextField("0", 5);
+        startLabel.setVisible(false);
+        startField.setVisible(false);
+
         topPanel.add(protocolLabel);
         topPanel.add(protocolSelector);
+        topPanel.add(startLabel);
+        topPanel.add(startField);
         topPanel.add(playButton);
 
-        videoList = new JList<>();
-        add(new JScrollPane(videoList), BorderLayout.CENTER);
+        // Fixed cell size: the list never measures rows it does not paint, however many titles are loaded
+        videoList = new JList<>(catalogModel);
+        videoList.setCellRenderer(new VideoFileRenderer());
+        videoList.setPrototypeCellValue(new VideoFile("a-rather-long-title-for-a-video-file", "mp4", "1080p",
+                new MediaInfo(7200, 6000, 8000, "h264", 2)));
+        videoList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        videoList.addListSelectionListener(e -> {
+            VideoFile selected = videoList.getSelectedValue();
+            if (!e.getValueIsAdjusting() && selected != null) {
+                startField.setText(String.valueOf(Math.round(client.getResumePosition(selected))));
+            }
+        });
+
+        // Filters the loaded titles as the user types, through the model's word index
+        searchField = new JTextField(20);
+        searchField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                applySearch();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                applySearch();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                applySearch();
+            }
+        });
+        JPanel searchPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        searchPanel.add(new JLabel("Search:"));
+        searchPanel.add(searchField);
+
+        JPanel listPanel = new JPanel(new BorderLayout());
+        listPanel.add(searchPanel, BorderLayout.NORTH);
+        listPanel.add(new JScrollPane(videoList), BorderLayout.CENTER);
+        add(listPanel, BorderLayout.CENTER);
 
         fetchButton.addActionListener(e -> fetchVideos());
+        playButton.addActionListener(e -> playSelected());
 
         client = new StreamingClient();
+        // The connection to the server stays open between actions and is closed with the window
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                client.close();
+            }
+        });
         setVisible(true);
     }
 
-    // Fetch videos from the server based on selected format and speed
+    // Measure the speed, then load the videos of the selected format playable at that speed, page by page
     private void fetchVideos() {
         String format = (String) formatSelector.getSelectedItem();
         protocolLabel.setVisible(true);
         protocolSelector.setVisible(true);
         playButton.setVisible(true);
-        double speedMbps = SpeedTester.measureDownloadSpeed();
-        JOptionPane.showMessageDialog(this, "Estimated speed: " + speedMbps + " Mbps");
+        startLabel.setVisible(true);
+        startField.setVisible(true);
+        fetchButton.setEnabled(false);
+        catalogModel.clear();
+        statusLabel.setText("Measuring connection speed...");
+
+        client.measureBandwidth().thenCompose(speed -> {
+            measuredMbps = speed.throughputMbps();
+            SwingUtilities.invokeLater(() -> statusLabel.setText("Estimated speed: " + speed + ", loading videos..."));
+            return client.fetchCatalog(format, speed.throughputMbps(), page -> {
+                CatalogListModel.Page prepared = CatalogListModel.prepare(page.files());
+                CompletableFuture<Void> shown = new CompletableFuture<>();
+                SwingUtilities.invokeLater(() -> {
+                    if (page.offset() == 0) {
+                        catalogModel.clear(); // the load started over on a newer catalog
+                    }
+                    catalogModel.append(prepared);
+                    statusLabel.setText(String.format("Estimated speed: %s, %,d of %,d videos loaded", speed,
+                            catalogModel.getLoadedCount(), page.total()));
+                    shown.complete(null);
+                });
+                return shown;
+            });
+        }).whenComplete((done, error) -> SwingUtilities.invokeLater(() -> {
+            fetchButton.setEnabled(true);
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                statusLabel.setText(" ");
+                JOptionPane.showMessageDialog(this, "Could not load the videos: " + cause.getMessage());
+            } else if (catalogModel.getLoadedCount() == 0) {
+                statusLabel.setText("No videos available.");
+            }
+        }));
+    }
 
-        List<VideoFile> videos = client.connectToServer(format, speedMbps);
-        videoList.setListData(videos.toArray(new VideoFile[0]));
-        resultArea.setText(""); // Clear
+    private void applySearch() {
+        catalogModel.setFilter(searchField.getText());
+    }
 
-        if (videos.isEmpty()) {
-            resultArea.append("No videos available.\n");
-        } else {
-            resultArea.append("Videos available: \n");
-            for (VideoFile vf : videos) {
-                resultArea.append(" - " + vf.getFilename() + "\n");
-            }
+    private void playSelected() {
+        VideoFile selected = videoList.getSelectedValue();
+        if (selected == null) {
+            JOptionPane.showMessageDialog(this, "Select a video");
+            return;
         }
 
-        playButton.addActionListener(e -> {
-            VideoFile selected = videoList.getSelectedValue();
-            if (selected == null) {
-                JOptionPane.showMessageDialog(this, "Select a video");
-                return;
-            }
+        String selectedProto = (String) protocolSelector.getSelectedItem();
+        Protocol protocol;
+        if ("Auto".equals(selectedProto)) {
+            protocol = Protocol.getDefaultFor(selected, measuredMbps);
+        } else {
+            protocol = Protocol.valueOf(selectedProto);
+        }
 
-            String selectedProto = (String) protocolSelector.getSelectedItem();
-            Protocol protocol;
-            if ("Auto".equals(selectedProto)) {
-                protocol = Protocol.getDefaultForResolution(selected.getResolution());
-            } else {
-                protocol = Protocol.valueOf(selectedProto);
-            }
+        double startSeconds;
+        try {
+            startSeconds = Math.max(0, Double.parseDouble(startField.getText().trim()));
+        } catch (NumberFormatException ex) {
+            JOptionPane.showMessageDialog(this, "Start position must be a number of seconds");
+            return;
+        }
 
-            client.requestVideoStream(selected, protocol, () -> {
+        // The play request waits for the server (and possibly an on-demand encode): keep it off the EDT
+        playButton.setEnabled(false);
+        statusLabel.setText("Waiting for " + selected.getFilename() + " to start...");
+        Thread.ofVirtual().start(() -> {
+            client.requestVideoStream(selected, protocol, startSeconds, () -> {
                 SwingUtilities.invokeLater(() -> dispose());
             });
+            SwingUtilities.invokeLater(() -> {
+                playButton.setEnabled(true);
+                statusLabel.setText(" ");
+            });
         });
+    }
 
-
-        client.close();
+    // One row: filename and, once probed, codec, bitrates and duration
+    static class VideoFileRenderer extends DefaultListCellRenderer {
+        @Override
+        public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected, boolean cellHasFocus) {
+            VideoFile file = (VideoFile) value;
+            MediaInfo info = file.getMediaInfo();
+            String details = info == null ? "" : String.format(" (%s, %.1f Mbps peak, %.1f avg, %d s)",
+                    info.videoCodec(), info.peakBitrateKbps() / 1000.0, info.averageBitrateKbps() / 1000.0,
+                    Math.round(info.durationSeconds()));
+            return super.getListCellRendererComponent(list, file.getFilename() + details, index, isSelected, cellHasFocus);
+        }
     }
 
     public static void main(String[] args) {
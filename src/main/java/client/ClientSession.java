@@ -0,0 +1,174 @@
+package client;
+
+import shared.Message;
+import shared.WireCodec;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+// Long-lived control connection to the server. Every request gets an id and a future completed by a reader
+// thread when the matching response arrives, so several requests can be in flight on the same socket.
+// A lost connection fails the pending requests; the next request reconnects with exponential backoff. The server
+// stops the streams of a connection when it drops, so a Stop is only sent on the connection its stream started on.
+public class ClientSession implements AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger(ClientSession.class.getName());
+    private static final int MAX_CONNECT_ATTEMPTS = 5;
+    private static final long INITIAL_BACKOFF_MS = 200;
+    private static final long MAX_BACKOFF_MS = 5000;
+    private static final long RESPONSE_TIMEOUT_SECONDS = 30;
+
+    private final InetSocketAddress serverAddress;
+    private final AtomicInteger nextRequestId = new AtomicInteger(1);
+    private final Map<Integer, CompletableFuture<Message>> pending = new ConcurrentHashMap<>();
+    // Connection each stream session was started on, by session id
+    private final Map<String, WireCodec> streamConnections = new ConcurrentHashMap<>();
+    private SocketChannel channel;
+    private WireCodec codec;
+    private boolean closed;
+
+    public ClientSession(String host, int port) {
+        this.serverAddress = new InetSocketAddress(host, port);
+    }
+
+    // Sends a request and returns a future completed with its response. A future completed otherwise (cancelled,
+    // or given up on) leaves pending too, and a late response to it is dropped.
+    public CompletableFuture<Message> send(Message request) {
+        int requestId = nextRequestId.getAndIncrement();
+        CompletableFuture<Message> response = new CompletableFuture<>();
+        pending.put(requestId, response);
+        response.whenComplete((message, error) -> pending.remove(requestId, response));
+        try {
+            connection().write(requestId, request);
+        } catch (IOException e) {
+            response.completeExceptionally(e);
+        }
+        return response;
+    }
+
+    // Sends a request and waits for its response
+    public Message request(Message request) throws IOException {
+        CompletableFuture<Message> response = send(request);
+        try {
+            return response.get(RESPONSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+        } catch (TimeoutException e) {
+            response.cancel(false);
+            throw new IOException("No response from server after " + RESPONSE_TIMEOUT_SECONDS + " s");
+        } catch (InterruptedException e) {
+            response.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the server");
+        }
+    }
+
+    // Sends a message that has no response (Stop, PlaybackReport). A Stop is dropped instead of reconnecting when
+    // the connection its stream started on is gone: the server already stopped that stream.
+    public void sendOneWay(Message message) throws IOException {
+        WireCodec target;
+        if (message instanceof Message.Stop stop) {
+            WireCodec started = streamConnections.remove(stop.sessionId());
+            synchronized (this) {
+                target = started != null && started == codec ? codec : null;
+            }
+            if (target == null) {
+                logger.fine("Stream " + stop.sessionId() + " ended with its connection, no stop sent");
+                return;
+            }
+        } else {
+            target = connection();
+        }
+        target.write(nextRequestId.getAndIncrement(), message);
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        disconnect(new IOException("Session closed"));
+    }
+
+    // Returns the open connection, reconnecting with exponential backoff if it was lost. The backoff sleeps outside
+    // the monitor, so close() and the reader thread are not held up; another thread may connect in the meantime.
+    private WireCodec connection() throws IOException {
+        long backoff = INITIAL_BACKOFF_MS;
+        for (int attempt = 1; ; attempt++) {
+            synchronized (this) {
+                if (closed) {
+                    throw new IOException("Session closed");
+                }
+                if (codec != null) {
+                    return codec;
+                }
+                try {
+                    channel = SocketChannel.open(serverAddress);
+                    codec = new WireCodec(channel);
+                    startReader(channel, codec);
+                    logger.info("Connected to " + serverAddress);
+                    return codec;
+                } catch (IOException e) {
+                    if (attempt == MAX_CONNECT_ATTEMPTS) {
+                        throw e;
+                    }
+                    logger.warning("Connection to " + serverAddress + " failed (" + e.getMessage() + "), retrying in " + backoff + " ms");
+                }
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while reconnecting");
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+        }
+    }
+
+    // Dispatches every response to the future of its request until the connection ends
+    private void startReader(SocketChannel readerChannel, WireCodec readerCodec) {
+        Thread reader = new Thread(() -> {
+            IOException failure = new IOException("Connection closed by server");
+            try {
+                WireCodec.Frame frame;
+                while ((frame = readerCodec.read()) != null) {
+                    if (frame.message() instanceof Message.StreamReady ready) {
+                        streamConnections.put(ready.endpoint().getSessionId(), readerCodec);
+                    }
+                    CompletableFuture<Message> response = pending.remove(frame.requestId());
+                    if (response != null) {
+                        response.complete(frame.message());
+                    }
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+            synchronized (this) {
+                if (channel == readerChannel) {
+                    disconnect(failure);
+                }
+            }
+        }, "client-session-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void disconnect(IOException cause) {
+        try {
+            if (channel != null) channel.close();
+        } catch (IOException ignored) {}
+        WireCodec lost = codec;
+        streamConnections.values().removeIf(started -> started == lost);
+        channel = null;
+        codec = null;
+        pending.values().forEach(response -> response.completeExceptionally(cause));
+        pending.clear();
+    }
+}
@@ -0,0 +1,68 @@
+package client;
+
+// Estimate of a player's buffer, driven only by segment arrivals: playback starts with the first segment and
+// advances in real time while media is buffered; when the buffer runs dry before the last segment the player
+// stalls until the next one arrives. Startup delay is not counted as a stall.
+public class PlaybackModel {
+
+    private long lastUpdateNanos = System.nanoTime();
+    private double downloadedSeconds;
+    private double positionSeconds;
+    private boolean started;
+    private boolean stalled;
+    private boolean complete;
+    private int stalls;
+    private double stallSeconds;
+
+    public synchronized void onSegment(double durationSeconds) {
+        advance();
+        downloadedSeconds += durationSeconds;
+        started = true;
+        stalled = false;
+    }
+
+    // The last segment has been downloaded: running out of media from now on is the end, not a stall
+    public synchronized void onComplete() {
+        advance();
+        complete = true;
+    }
+
+    public synchronized double getBufferSeconds() {
+        advance();
+        return downloadedSeconds - positionSeconds;
+    }
+
+    public synchronized int getStallCount() {
+        advance();
+        return stalls;
+    }
+
+    public synchronized double getStallSeconds() {
+        advance();
+        return stallSeconds;
+    }
+
+    private void advance() {
+        long now = System.nanoTime();
+        double elapsed = (now - lastUpdateNanos) / 1e9;
+        lastUpdateNanos = now;
+        if (!started) {
+            return;
+        }
+        if (stalled) {
+            stallSeconds += elapsed;
+            return;
+        }
+        double buffered = downloadedSeconds - positionSeconds;
+        if (elapsed < buffered) {
+            positionSeconds += elapsed;
+            return;
+        }
+        positionSeconds = downloadedSeconds;
+        if (!complete) {
+            stalled = true;
+            stalls++;
+            stallSeconds += elapsed - buffered;
+        }
+    }
+}
@@ -0,0 +1,401 @@
+package client;
+
+import shared.Protocol;
+import shared.Recovery;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+// Client side of a native UDP/RTP stream with loss recovery (see Recovery). The stream is received here, on the
+// session's video port, instead of by the player: a lost datagram is rebuilt from the parity of its FEC group or
+// asked for again with a NACK, and the stream goes on to the player on a loopback port, in sequence order, as UDP
+// payloads without the RTP header the server added or as the RTP datagrams they are. A datagram still missing after
+// the playout delay is given up, so a loss never holds the player back longer than that; in-order datagrams are
+// forwarded at once.
+public class RecoveringReceiver implements AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger(RecoveringReceiver.class.getName());
+    private static final int WINDOW = 1024; // datagrams held, also after they went out, for FEC rebuilds
+    private static final int MAX_DATAGRAM = 1500;
+    private static final int RTP_PAYLOAD_TYPE_MP2T = 33;
+    private static final int POLL_MILLIS = 5;
+    private static final long REORDER_NANOS = 5_000_000L; // a gap younger than this may just be reordering
+    private static final long NACK_RETRY_NANOS = 50_000_000L;
+    private static final int MAX_NACK_ATTEMPTS = 3;
+
+    private final DatagramSocket socket;
+    private final boolean rtp;
+    private final Recovery recovery;
+    private final long delayNanos;
+    private final InetSocketAddress player;
+    private Thread thread;
+    private volatile boolean closed;
+    private SocketAddress server; // where the stream comes from, and the NACKs go
+    private int ssrc;
+
+    // Reorder buffer, one slot per extended sequence number modulo WINDOW; a missing datagram has its number in
+    // the slot and a length of -1
+    private final byte[][] data = new byte[WINDOW][MAX_DATAGRAM];
+    private final int[] lengths = new int[WINDOW];
+    private final long[] sequences = new long[WINDOW];
+    private final long[] missingSince = new long[WINDOW];
+    private final int[] nackCounts = new int[WINDOW];
+    private final long[] lastNackNanos = new long[WINDOW];
+    private final Map<Long, byte[]> parities = new HashMap<>(); // FEC datagrams by first sequence number of the group
+    private long highest = -1; // highest extended sequence number seen
+    private long next = -1; // next extended sequence number for the player
+    private long lastScanNanos;
+    private final int[] nacked = new int[64];
+    private final ByteBuffer nackPacket = ByteBuffer.allocate(12 + 4 * 64);
+    private final DatagramPacket out = new DatagramPacket(new byte[0], 0);
+
+    // Written by the receiving thread only; exact once closed
+    private volatile long received;
+    private volatile long recoveredByFec;
+    private volatile long recoveredByNack;
+    private volatile long lost;
+    private volatile long late;
+    private volatile long mediaBytes;
+    private volatile long fecBytes;
+    private volatile long retransmittedBytes;
+    private volatile long nacksSent;
+
+    // Binds the port the server sends to (0: any free port) and picks a free loopback port for the player
+    public RecoveringReceiver(int port, Protocol protocol, Recovery recovery, long delayMillis) throws IOException {
+        this.rtp = protocol == Protocol.RTP_UDP;
+        this.recovery = recovery;
+        this.delayNanos = delayMillis * 1_000_000L;
+        this.player = new InetSocketAddress(InetAddress.getLoopbackAddress(), freePlayerPort());
+        this.socket = new DatagramSocket(port);
+        socket.setReceiveBufferSize(4 * 1024 * 1024);
+        socket.setSoTimeout(POLL_MILLIS);
+        Arrays.fill(sequences, -1);
+    }
+
+    public void start() {
+        thread = new Thread(this::run, "recovering-receiver");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public int getPort() {
+        return socket.getLocalPort();
+    }
+
+    // Where the player reads the stream
+    public int getPlayerPort() {
+        return player.getPort();
+    }
+
+    // The server's SDP, pointed at the player port on the loopback interface
+    public String playerSdp(String sdp) {
+        StringBuilder rewritten = new StringBuilder();
+        for (String line : sdp.split("\r\n")) {
+            if (line.startsWith("c=")) {
+                line = "c=IN IP4 127.0.0.1";
+            } else if (line.startsWith("m=video ")) {
+                line = "m=video " + player.getPort() + line.substring(line.indexOf(' ', 8));
+            }
+            rewritten.append(line).append("\r\n");
+        }
+        return rewritten.toString();
+    }
+
+    public Stats getStats() {
+        return new Stats(received, recoveredByFec, recoveredByNack, lost, late, mediaBytes, fecBytes,
+                retransmittedBytes, nacksSent);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        socket.close();
+        if (thread != null) {
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        logger.info("Loss recovery: " + getStats());
+    }
+
+    // RTP players also bind the port above theirs for RTCP, so an even port is taken with a free one above it
+    private static int freePlayerPort() throws IOException {
+        for (int attempt = 0; attempt < 20; attempt++) {
+            int port;
+            try (DatagramSocket probe = new DatagramSocket(0)) {
+                port = probe.getLocalPort() & ~1;
+            }
+            try (DatagramSocket media = new DatagramSocket(port)) {
+                new DatagramSocket(port + 1).close();
+                return media.getLocalPort();
+            } catch (SocketException e) {
+                // taken in the meantime, try another
+            }
+        }
+        throw new IOException("No free port for the player");
+    }
+
+    private void run() {
+        DatagramPacket packet = new DatagramPacket(new byte[MAX_DATAGRAM], MAX_DATAGRAM);
+        while (!closed) {
+            try {
+                try {
+                    packet.setLength(MAX_DATAGRAM);
+                    socket.receive(packet);
+                    accept(packet, System.nanoTime());
+                } catch (SocketTimeoutException e) {
+                    // nothing came, but the deadlines below still move
+                }
+                long now = System.nanoTime();
+                if (now - lastScanNanos >= POLL_MILLIS * 1_000_000L) {
+                    lastScanNanos = now;
+                    sendNacks(now);
+                    parities.keySet().removeIf(base -> base + 255 < next);
+                }
+                deliver(now);
+            } catch (IOException e) {
+                if (!closed) logger.warning("Recovering receiver stopped: " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    private void accept(DatagramPacket packet, long now) {
+        byte[] bytes = packet.getData();
+        int length = packet.getLength();
+        if (length < Recovery.RTP_HEADER_SIZE || (bytes[0] & 0xC0) != 0x80) {
+            return; // not RTP
+        }
+        if (server == null) {
+            server = packet.getSocketAddress();
+            ssrc = ByteBuffer.wrap(bytes, 8, 4).getInt();
+        }
+        int payloadType = bytes[1] & 0x7F;
+        if (payloadType == Recovery.FEC_PAYLOAD_TYPE) {
+            fecBytes += length;
+            if (next >= 0 && length > Recovery.RTP_HEADER_SIZE + Recovery.FEC_HEADER_SIZE) {
+                long base = extend(unsignedShort(bytes, Recovery.RTP_HEADER_SIZE));
+                parities.put(base, Arrays.copyOf(bytes, length));
+                rebuild(base, now);
+            }
+            return;
+        }
+        if (payloadType != RTP_PAYLOAD_TYPE_MP2T) {
+            return;
+        }
+
+        long sequence;
+        if (next < 0) {
+            sequence = unsignedShort(bytes, 2);
+            next = sequence;
+            highest = sequence - 1;
+        } else {
+            sequence = extend(unsignedShort(bytes, 2));
+        }
+        if (sequence < next) {
+            late++; // given up already, or a duplicate of one sent
+            return;
+        }
+        if (sequence >= next + WINDOW) {
+            skipTo(sequence - WINDOW + 1);
+        }
+        if (sequence > highest) {
+            markMissing(sequence, now);
+        } else if (isPresent(sequence)) {
+            retransmittedBytes += length; // answer to a NACK that crossed the original
+            return;
+        }
+
+        int slot = slot(sequence);
+        if (nackCounts[slot] > 0) {
+            recoveredByNack++;
+            retransmittedBytes += length;
+        } else {
+            received++;
+        }
+        mediaBytes += length;
+        System.arraycopy(bytes, 0, data[slot], 0, length);
+        lengths[slot] = length;
+        for (Map.Entry<Long, byte[]> parity : parities.entrySet()) {
+            long base = parity.getKey();
+            if (sequence >= base && sequence < base + (parity.getValue()[Recovery.RTP_HEADER_SIZE + 2] & 0xFF)) {
+                rebuild(base, now);
+                break;
+            }
+        }
+    }
+
+    // Rebuilds the datagram of the group missing alone: the parity XORed with the payloads of the others
+    private void rebuild(long base, long now) {
+        byte[] parity = parities.get(base);
+        int count = parity[Recovery.RTP_HEADER_SIZE + 2] & 0xFF;
+        long missing = -1;
+        for (long sequence = base; sequence < base + count; sequence++) {
+            if (isPresent(sequence)) continue;
+            if (missing >= 0 || sequence < next) return; // more than one missing, or given up already
+            missing = sequence;
+        }
+        if (missing < 0) {
+            parities.remove(base); // complete without it
+            return;
+        }
+        if (missing > highest) {
+            markMissing(missing, now); // the end of the group is lost, and nothing after it came yet
+        }
+
+        int slot = slot(missing);
+        byte[] rebuilt = data[slot];
+        int parityOffset = Recovery.RTP_HEADER_SIZE + Recovery.FEC_HEADER_SIZE;
+        int parityLength = parity.length - parityOffset;
+        int payloadLength = unsignedShort(parity, Recovery.RTP_HEADER_SIZE + 4);
+        System.arraycopy(parity, parityOffset, rebuilt, Recovery.RTP_HEADER_SIZE, parityLength);
+        int timestamp = 0;
+        for (long sequence = base; sequence < base + count; sequence++) {
+            if (sequence == missing) continue;
+            byte[] other = data[slot(sequence)];
+            int otherLength = lengths[slot(sequence)] - Recovery.RTP_HEADER_SIZE;
+            payloadLength ^= otherLength;
+            for (int i = 0; i < otherLength; i++) {
+                rebuilt[Recovery.RTP_HEADER_SIZE + i] ^= other[Recovery.RTP_HEADER_SIZE + i];
+            }
+            timestamp = ByteBuffer.wrap(other, 4, 4).getInt(); // the player only needs a plausible one
+        }
+        parities.remove(base);
+        if (payloadLength <= 0 || payloadLength > parityLength) {
+            return; // the parity does not match the group
+        }
+        ByteBuffer.wrap(rebuilt, 0, Recovery.RTP_HEADER_SIZE)
+                .put((byte) 0x80).put((byte) RTP_PAYLOAD_TYPE_MP2T).putShort((short) missing)
+                .putInt(timestamp).putInt(ssrc);
+        lengths[slot] = Recovery.RTP_HEADER_SIZE + payloadLength;
+        recoveredByFec++;
+    }
+
+    // Asks again for the datagrams missing past the reorder wait, and past the arrival of their FEC group's parity
+    private void sendNacks(long now) throws IOException {
+        if (!recovery.nack() || server == null) {
+            return;
+        }
+        int count = 0;
+        for (long sequence = next; sequence <= highest && count < nacked.length; sequence++) {
+            int slot = slot(sequence);
+            long missingNanos = now - missingSince[slot];
+            if (isPresent(sequence) || nackCounts[slot] >= MAX_NACK_ATTEMPTS
+                    || now - lastNackNanos[slot] < NACK_RETRY_NANOS || missingNanos < REORDER_NANOS) {
+                continue;
+            }
+            if (recovery.fecGroupSize() > 0 && highest <= sequence + recovery.fecGroupSize() && missingNanos < delayNanos / 3) {
+                continue; // the parity of its group may still rebuild it
+            }
+            nackCounts[slot]++;
+            lastNackNanos[slot] = now;
+            nacked[count++] = (int) sequence;
+        }
+        if (count == 0) {
+            return;
+        }
+        nackPacket.clear();
+        Recovery.writeNack(nackPacket, ssrc, nacked, count);
+        socket.send(new DatagramPacket(nackPacket.array(), nackPacket.position(), server));
+        nacksSent++;
+    }
+
+    // Hands the player what is in order, and gives up what stayed missing for the playout delay
+    private void deliver(long now) throws IOException {
+        while (next >= 0 && next <= highest) {
+            int slot = slot(next);
+            if (isPresent(next)) {
+                forward(slot);
+            } else if (now - missingSince[slot] >= delayNanos) {
+                lost++;
+            } else {
+                return;
+            }
+            next++;
+        }
+    }
+
+    private void skipTo(long sequence) {
+        while (next < sequence) {
+            if (isPresent(next)) {
+                try {
+                    forward(slot(next));
+                } catch (IOException e) {
+                    logger.fine("Player unreachable: " + e.getMessage());
+                }
+            } else {
+                lost++;
+            }
+            next++;
+        }
+        highest = Math.max(highest, sequence - 1);
+    }
+
+    private void forward(int slot) throws IOException {
+        int offset = rtp ? 0 : Recovery.RTP_HEADER_SIZE;
+        out.setData(data[slot], offset, lengths[slot] - offset);
+        out.setSocketAddress(player);
+        socket.send(out);
+    }
+
+    // Records the gap up to a sequence number, which becomes the highest seen
+    private void markMissing(long sequence, long now) {
+        for (long gap = Math.max(highest + 1, next); gap <= sequence; gap++) {
+            int slot = slot(gap);
+            sequences[slot] = gap;
+            lengths[slot] = -1;
+            missingSince[slot] = now;
+            nackCounts[slot] = 0;
+            lastNackNanos[slot] = 0;
+        }
+        highest = sequence;
+    }
+
+    private boolean isPresent(long sequence) {
+        int slot = slot(sequence);
+        return sequences[slot] == sequence && lengths[slot] >= 0;
+    }
+
+    // Extended sequence number of a 16-bit one: the closest to the highest seen
+    private long extend(int sequence) {
+        return highest + (short) (sequence - (int) highest);
+    }
+
+    private static int slot(long sequence) {
+        return (int) Math.floorMod(sequence, (long) WINDOW);
+    }
+
+    private static int unsignedShort(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) << 8 | bytes[offset + 1] & 0xFF;
+    }
+
+    // Media datagrams received the first time, rebuilt from parity or sent again after a NACK, given up after the
+    // playout delay, and arrived after it or twice; bytes of media, parity and retransmitted datagrams
+    public record Stats(long received, long recoveredByFec, long recoveredByNack, long lost, long late,
+                        long mediaBytes, long fecBytes, long retransmittedBytes, long nacksSent) {
+
+        // Share of the lost datagrams that were recovered (1 when none was lost)
+        public double recoveredRatio() {
+            long recovered = recoveredByFec + recoveredByNack;
+            return recovered + lost == 0 ? 1 : (double) recovered / (recovered + lost);
+        }
+
+        // Bytes spent on recovery, relative to the media bytes
+        public double overhead() {
+            return mediaBytes == 0 ? 0 : (double) (fecBytes + retransmittedBytes) / mediaBytes;
+        }
+    }
+}
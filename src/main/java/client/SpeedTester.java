@@ -1,47 +1,157 @@
 package client;
 
-import java.io.InputStream;
-import java.net.URL;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Logger;
 
 public class SpeedTester {
 
     private static final Logger logger = Logger.getLogger(SpeedTester.class.getName());
 
-     // Performs a download speed test from a remote file (HTTP).
-     // Return estimated download speed in Mbps
-    public static double measureDownloadSpeed() {
-        final String testFileUrl = "http://nbg1-speed.hetzner.com/100MB.bin"; // Public test file
-        final int bufferSize = 1024 * 8; // 8 KB
-        final int maxDownloadBytes = 5 * 1024 * 1024; // Limit to 5 MB to avoid overuse
-
-        try {
-            logger.info("Starting download speed test...");
-            URL url = new URL(testFileUrl);
-            InputStream in = url.openStream();
-            byte[] buffer = new byte[bufferSize];
-
-            long startTime = System.nanoTime();
-            int bytesRead;
-            int totalBytes = 0;
-
-            while ((bytesRead = in.read(buffer)) != -1 && totalBytes < maxDownloadBytes) {
-                totalBytes += bytesRead;
+    private static final int PARALLEL_STREAMS = 4; // several TCP streams fill the pipe faster than one in slow start
+    private static final int REQUEST_BYTES = 1024 * 1024;
+    private static final int PINGS = 5;
+    private static final long WARM_UP_MS = 500; // slow-start samples, discarded
+    private static final long MEASURE_MS = 2500;
+    private static final long SAMPLE_MS = 100;
+    private static final double EWMA_ALPHA = 0.3;
+
+    // Result of a probe: smoothed throughput, throughput percentiles over the samples, and round-trip time
+    public record Result(double throughputMbps, double p10Mbps, double p50Mbps, double p90Mbps, double rttMs) {
+        @Override
+        public String toString() {
+            return String.format("%.2f Mbps (p10 %.2f, p50 %.2f, p90 %.2f), RTT %.1f ms",
+                    throughputMbps, p10Mbps, p50Mbps, p90Mbps, rttMs);
+        }
+    }
+
+    // Measures throughput and RTT against the streaming server's probe endpoint, on a background thread.
+    // The future fails if the server cannot be reached; there is no made-up fallback value.
+    public static CompletableFuture<Result> measure(String host, int port) {
+        CompletableFuture<Result> result = new CompletableFuture<>();
+        Thread probe = new Thread(() -> {
+            try {
+                result.complete(run(new InetSocketAddress(host, port)));
+            } catch (IOException | InterruptedException e) {
+                logger.warning("Speed test error: " + e.getMessage());
+                result.completeExceptionally(e);
             }
+        }, "speed-test");
+        probe.setDaemon(true);
+        probe.start();
+        return result;
+    }
+
+    private static Result run(InetSocketAddress server) throws IOException, InterruptedException {
+        logger.info("Starting speed test against " + server + "...");
+        double rttMs = measureRtt(server);
 
-            long endTime = System.nanoTime();
-            double durationSeconds = (endTime - startTime) / 1_000_000_000.0;
-            in.close();
+        LongAdder received = new LongAdder();
+        long deadline = System.nanoTime() + (WARM_UP_MS + MEASURE_MS) * 1_000_000;
+        List<Thread> streams = new ArrayList<>();
+        List<IOException> failures = new ArrayList<>();
+        for (int i = 0; i < PARALLEL_STREAMS; i++) {
+            Thread stream = Thread.ofVirtual().start(() -> {
+                try {
+                    download(server, received, deadline);
+                } catch (IOException e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+            });
+            streams.add(stream);
+        }
+
+        // Sample the shared byte counter at a fixed period; the first samples cover TCP slow start
+        List<Double> samples = new ArrayList<>();
+        long start = System.nanoTime();
+        long previousBytes = 0;
+        long previousTime = start;
+        while (System.nanoTime() < deadline) {
+            Thread.sleep(SAMPLE_MS);
+            long now = System.nanoTime();
+            long bytes = received.sum();
+            if ((now - start) / 1_000_000 >= WARM_UP_MS) {
+                // bits per microsecond = Mbps
+                samples.add((bytes - previousBytes) * 8.0 / ((now - previousTime) / 1_000.0));
+            }
+            previousBytes = bytes;
+            previousTime = now;
+        }
+        for (Thread stream : streams) {
+            stream.join();
+        }
+        if (samples.isEmpty() || received.sum() == 0) {
+            throw failures.isEmpty() ? new IOException("No data received from probe") : failures.get(0);
+        }
 
-            double mbits = (totalBytes * 8.0) / 1_000_000; // bits -> Mbits
-            double speedMbps = Math.round(mbits / durationSeconds * 100.0) / 100.0; // Round to 2 decimal places
+        double ewma = samples.get(0);
+        for (double sample : samples) {
+            ewma = EWMA_ALPHA * sample + (1 - EWMA_ALPHA) * ewma;
+        }
+        double[] sorted = samples.stream().mapToDouble(Double::doubleValue).sorted().toArray();
+        Result result = new Result(round(ewma), round(percentile(sorted, 10)), round(percentile(sorted, 50)),
+                round(percentile(sorted, 90)), round(rttMs));
+        logger.info("Speed test completed: " + result);
+        return result;
+    }
 
-            logger.info("Download speed test completed: " + speedMbps + " Mbps");
-            return speedMbps;
+    // Median of a few 1-byte ping/pong exchanges on a Nagle-free connection
+    private static double measureRtt(InetSocketAddress server) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(server)) {
+            channel.socket().setTcpNoDelay(true);
+            ByteBuffer ping = ByteBuffer.allocate(1);
+            ByteBuffer pong = ByteBuffer.allocate(1);
+            double[] rtts = new double[PINGS];
+            for (int i = 0; i < PINGS; i++) {
+                ping.clear().put(0, (byte) 'P');
+                pong.clear();
+                long sent = System.nanoTime();
+                channel.write(ping);
+                while (pong.hasRemaining()) {
+                    if (channel.read(pong) < 0) throw new IOException("Probe closed during ping");
+                }
+                rtts[i] = (System.nanoTime() - sent) / 1_000_000.0;
+            }
+            Arrays.sort(rtts);
+            return percentile(rtts, 50);
+        }
+    }
 
-        } catch (Exception e) {
-            System.err.println("Speed test error: " + e.getMessage());
-            return 1.0;
+    // Keeps one download request outstanding on a connection until the deadline
+    private static void download(InetSocketAddress server, LongAdder received, long deadline) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(server)) {
+            ByteBuffer request = ByteBuffer.allocate(5);
+            ByteBuffer sink = ByteBuffer.allocateDirect(64 * 1024);
+            while (System.nanoTime() < deadline) {
+                request.clear().put((byte) 'D').putInt(REQUEST_BYTES).flip();
+                channel.write(request);
+                long remaining = REQUEST_BYTES;
+                while (remaining > 0) {
+                    sink.clear();
+                    int read = channel.read(sink);
+                    if (read < 0) throw new IOException("Probe closed during download");
+                    remaining -= read;
+                    received.add(read);
+                }
+            }
         }
     }
+
+    private static double percentile(double[] sorted, int percent) {
+        int index = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 100.0) / 100.0; // Round to 2 decimal places
+    }
 }
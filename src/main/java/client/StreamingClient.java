@@ -1,11 +1,21 @@
 package client;
 
+import shared.Message;
+import shared.Recovery;
+import shared.StreamEndpoint;
 import shared.VideoFile;
 import shared.Protocol;
 
 import java.io.*;
-import java.net.Socket;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 import java.util.logging.Logger;
 
 public class StreamingClient {
@@ -13,61 +23,141 @@ public class StreamingClient {
     private static final Logger logger = Logger.getLogger(StreamingClient.class.getName());
     private static final String SERVER_ADDRESS = "localhost";
     private static final int SERVER_PORT = 9090; // Port for the server connection
-    private static final int TCP_UDP_PORT = 8888; // Port for TCP/UDP streaming
+    private static final int PROBE_PORT = 9091; // Port for the bandwidth probe
+    private static final int FIRST_PAGE_SIZE = 200; // a screenful, shown while the rest of the catalog loads
+    private static final int PAGE_SIZE = 2000;
+    private static final int MAX_CATALOG_RESTARTS = 3; // a catalog still being indexed changes faster than it loads
+    private static final int MAX_REDIRECTS = 3; // a cluster redirects once; more hops mean a misconfigured node list
+    // Where playback stopped, per file, so the next play can resume there
+    private static final Path RESUME_FILE = Path.of(System.getProperty("user.home"), ".streaming-client-resume");
+    // Loss recovery asked for on UDP/RTP streams: -Dclient.recovery=false plays them as they come,
+    // -Dclient.fecGroup=N sets the datagrams per FEC parity (0: NACKs only), -Dclient.recoveryDelayMillis=N how long
+    // a missing datagram may hold the player back
+    private static final boolean RECOVERY = Boolean.parseBoolean(System.getProperty("client.recovery", "true"));
+    private static final int FEC_GROUP = Integer.getInteger("client.fecGroup", 10);
+    private static final long RECOVERY_DELAY_MILLIS = Long.getLong("client.recoveryDelayMillis", 300);
+
+    // One connection for every exchange with the server, opened on first use
+    private final ClientSession session;
+    // Connections to the cluster instances play requests were redirected to, by "host:port", kept open since a
+    // stream lives as long as the connection that started it
+    private final Map<String, ClientSession> redirectSessions = new ConcurrentHashMap<>();
+
+    public StreamingClient() {
+        this(new ClientSession(SERVER_ADDRESS, SERVER_PORT));
+    }
 
-    private Socket socket;
-    private ObjectOutputStream output;
-    private ObjectInputStream input;
+    StreamingClient(ClientSession session) {
+        this.session = session;
+    }
 
-    // Make the connection to the server
-    public List<VideoFile> connectToServer(String format, double speedMbps) {
-        try {
-            socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
-            output = new ObjectOutputStream(socket.getOutputStream());
-            input = new ObjectInputStream(socket.getInputStream());
-
-            output.writeObject(format);
-            output.writeObject(speedMbps);
-            output.flush();
-
-            // Reception of available videos
-            Object response = input.readObject();
-            if (response instanceof List<?> list) {
-                return list.stream()
-                        .filter(o -> o instanceof VideoFile)
-                        .map(o -> (VideoFile) o)
-                        .toList();
+    // Ask the server for the videos playable at the measured speed, page by page: onPage receives each page as it
+    // arrives (on the connection's reader thread), starting with a small one so the first titles show up at once.
+    // The next page is requested when the future returned by onPage completes, so a slow consumer (the EDT) is
+    // never flooded. The returned future completes after the last page, or fails with the first error.
+    // Every page is read from the catalog version of the first one. If the server no longer has that version, the
+    // load starts over: onPage then gets a page with offset 0 again and must drop the pages it already has. After
+    // MAX_CATALOG_RESTARTS, the load goes on from where it is in the latest version instead, so a catalog that keeps
+    // changing still loads, at the cost of titles that moved between pages being missed or repeated.
+    public CompletableFuture<Void> fetchCatalog(String format, double speedMbps,
+                                                Function<Message.CatalogResponse, CompletableFuture<?>> onPage) {
+        return fetchCatalogPage(format, speedMbps, 0, FIRST_PAGE_SIZE, 0, 0, onPage);
+    }
+
+    private CompletableFuture<Void> fetchCatalogPage(String format, double speedMbps, int offset, int limit, long version,
+                                                     int restarts,
+                                                     Function<Message.CatalogResponse, CompletableFuture<?>> onPage) {
+        return session.send(new Message.CatalogQuery(format, speedMbps, offset, limit, version)).thenCompose(response -> {
+            if (!(response instanceof Message.CatalogResponse page)) {
+                return CompletableFuture.failedFuture(new IOException("Unexpected catalog response: " + response));
             }
-        } catch (IOException | ClassNotFoundException e) {
-            logger.severe("Communication error with server : " + e.getMessage());
-        }
-        return List.of();
+            boolean changed = offset > 0 && page.version() != version;
+            if (changed && restarts < MAX_CATALOG_RESTARTS) {
+                logger.info("Catalog changed while it was loading, loading it again");
+                return fetchCatalogPage(format, speedMbps, 0, FIRST_PAGE_SIZE, page.version(), restarts + 1, onPage);
+            }
+            if (changed && restarts == MAX_CATALOG_RESTARTS) {
+                logger.info("Catalog keeps changing, finishing the load on its latest version");
+            }
+            int seen = changed ? restarts + 1 : restarts;
+            int next = page.offset() + page.files().size();
+            return onPage.apply(page).thenCompose(shown -> page.files().isEmpty() || next >= page.total()
+                    ? CompletableFuture.completedFuture(null)
+                    : fetchCatalogPage(format, speedMbps, next, PAGE_SIZE, page.version(), seen, onPage));
+        });
     }
 
-    // Request a video stream from the server
-    public void requestVideoStream(VideoFile file, Protocol protocol, Runnable onPlaybackEnd) {
+    // Request a video stream from the server, startSeconds into the file (0 from the start); the server starts at
+    // the keyframe before that position
+    public void requestVideoStream(VideoFile file, Protocol protocol, double startSeconds, Runnable onPlaybackEnd) {
         try {
-            socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
-            output = new ObjectOutputStream(socket.getOutputStream());
-            input = new ObjectInputStream(socket.getInputStream());
-
-            output.writeObject("play_request");
-            output.writeObject(file);
-            output.writeObject(protocol.name());
-            output.flush();
-
             System.out.println("Waiting for stream to start...");
 
-            // Client side command: FFMPEG reads stream and plays it
-            String command = buildFfmpegClientCommand(file, protocol);
-            ProcessBuilder pb = new ProcessBuilder(command.split(" "));
+            // The server answers with the ports (and SDP for RTP) allocated to this session, or in a cluster with
+            // the instance serving this file; the stream is then run by that instance, over its own connection
+            Recovery recovery = RECOVERY && (protocol == Protocol.UDP || protocol == Protocol.RTP_UDP)
+                    ? new Recovery(FEC_GROUP, true) : Recovery.NONE;
+            Message.PlayRequest play = new Message.PlayRequest(file, protocol, startSeconds, recovery);
+            ClientSession server = session;
+            Message response = server.request(play);
+            for (int hops = 0; response instanceof Message.Redirect redirect && hops < MAX_REDIRECTS; hops++) {
+                logger.info("Redirected to " + redirect.host() + ":" + redirect.port());
+                server = redirectSessions.computeIfAbsent(redirect.host() + ":" + redirect.port(),
+                        address -> new ClientSession(redirect.host(), redirect.port()));
+                response = server.request(play);
+            }
+            ClientSession streamServer = server;
+            if (response instanceof Message.Busy busy) {
+                System.err.println("Server busy, try again in " + busy.retryAfterSeconds() + " s");
+                return;
+            }
+            if (!(response instanceof Message.StreamReady ready)) {
+                System.err.println("Server refused the stream: " + response);
+                return;
+            }
+            StreamEndpoint endpoint = ready.endpoint();
+            logger.info("Stream ready: " + endpoint);
+
+            // Adaptive sessions are played through a local proxy that reports every segment download to the server
+            AdaptivePlayback adaptive = endpoint.getProtocol() == Protocol.ADAPTIVE
+                    ? new AdaptivePlayback(streamServer, endpoint.getSessionId(), URI.create(endpoint.getUrl()))
+                    : null;
+            // A stream sent with loss recovery is received here and handed over to the player in order
+            RecoveringReceiver receiver = null;
+            if (endpoint.getRecovery().isEnabled()) {
+                receiver = new RecoveringReceiver(endpoint.getVideoPort(), endpoint.getProtocol(), endpoint.getRecovery(),
+                        RECOVERY_DELAY_MILLIS);
+                receiver.start();
+            }
+            RecoveringReceiver recovering = receiver;
+
+            // Client side command: FFMPEG reads stream and plays it. HLS players seek in the playlist themselves.
+            List<String> command = adaptive != null ? List.of("ffplay", adaptive.startProxy()) : buildFfmpegClientCommand(endpoint, receiver);
+            if (startSeconds > 0 && (endpoint.getProtocol() == Protocol.HLS || endpoint.getProtocol() == Protocol.ADAPTIVE)) {
+                command = List.of("ffplay", "-ss", String.valueOf(startSeconds), command.get(1));
+            }
+            ProcessBuilder pb = new ProcessBuilder(command);
             pb.inheritIO();
             Process ffplayProcess = pb.start();
+            long playbackStart = System.nanoTime();
 
             new Thread(() -> {
                 try {
                     ffplayProcess.waitFor();
                     System.out.println("End of FFPLAY process.");
+                    saveResumePosition(file, startSeconds + (System.nanoTime() - playbackStart) / 1e9);
+                    if (adaptive != null) {
+                        adaptive.close();
+                    }
+                    if (recovering != null) {
+                        recovering.close();
+                    }
+                    // Tell the server to stop its FFMPEG right away instead of waiting for the disconnect
+                    try {
+                        streamServer.sendOneWay(new Message.Stop(endpoint.getSessionId()));
+                    } catch (IOException e) {
+                        logger.warning("Could not send stop: " + e.getMessage());
+                    }
                     onPlaybackEnd.run();
                 } catch (InterruptedException e) {
                     System.err.println("Playback interrupted: " + e.getMessage());
@@ -79,19 +169,81 @@ public class StreamingClient {
         }
     }
 
-    // Build the command to run FFMPEG client based on the protocol
-    private String buildFfmpegClientCommand(VideoFile file, Protocol protocol) {
-        return switch (protocol) {
-            case TCP -> "ffplay tcp://localhost:" + TCP_UDP_PORT;
-            case UDP -> "ffplay udp://localhost:" + TCP_UDP_PORT;
-            case RTP_UDP -> "ffplay -protocol_whitelist file,rtp,udp -i sdp/stream_rtp.sdp";
+    // Build the command to run FFMPEG client for the endpoint returned by the server; with a receiver, the player
+    // reads the stream from it instead
+    private List<String> buildFfmpegClientCommand(StreamEndpoint endpoint, RecoveringReceiver receiver) throws IOException {
+        return switch (endpoint.getProtocol()) {
+            case TCP -> List.of("ffplay", "tcp://" + endpoint.getHost() + ":" + endpoint.getVideoPort());
+            case UDP -> List.of("ffplay", "udp://0.0.0.0:" + (receiver != null ? receiver.getPlayerPort() : endpoint.getVideoPort()));
+            case RTP_UDP -> {
+                Path sdpFile = Files.createTempFile("stream_" + endpoint.getSessionId(), ".sdp");
+                sdpFile.toFile().deleteOnExit();
+                Files.writeString(sdpFile, receiver != null ? receiver.playerSdp(endpoint.getSdp()) : endpoint.getSdp());
+                yield List.of("ffplay", "-protocol_whitelist", "file,rtp,udp", "-i", sdpFile.toString());
+            }
+            case HLS, ADAPTIVE -> List.of("ffplay", endpoint.getUrl());
         };
     }
 
-    // Close the socket and streams
-    public void close() {
+    // Where the last playback of the file stopped, 0 when it was never played or was played to the end
+    public double getResumePosition(VideoFile file) {
+        String saved = loadResumePositions().getProperty(file.getFilename());
         try {
-            if (socket != null) socket.close();
-        } catch (IOException ignored) {}
+            return saved == null ? 0 : Double.parseDouble(saved);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // Positions within a few seconds of the end are dropped, the next play starts over
+    private synchronized void saveResumePosition(VideoFile file, double seconds) {
+        Properties positions = loadResumePositions();
+        double duration = file.getMediaInfo() == null ? Double.MAX_VALUE : file.getMediaInfo().durationSeconds();
+        if (seconds < duration - 10) {
+            positions.setProperty(file.getFilename(), String.valueOf(Math.round(seconds)));
+        } else {
+            positions.remove(file.getFilename());
+        }
+        try (OutputStream out = Files.newOutputStream(RESUME_FILE)) {
+            positions.store(out, "Playback positions in seconds");
+        } catch (IOException e) {
+            logger.warning("Could not save resume position: " + e.getMessage());
+        }
+    }
+
+    private static Properties loadResumePositions() {
+        Properties positions = new Properties();
+        if (Files.exists(RESUME_FILE)) {
+            try (InputStream in = Files.newInputStream(RESUME_FILE)) {
+                positions.load(in);
+            } catch (IOException e) {
+                logger.warning("Could not read resume positions: " + e.getMessage());
+            }
+        }
+        return positions;
+    }
+
+    // Measure throughput and RTT to the streaming server (not to the internet), off the calling thread
+    public CompletableFuture<SpeedTester.Result> measureBandwidth() {
+        return SpeedTester.measure(SERVER_ADDRESS, PROBE_PORT);
+    }
+
+    // Current server counters (active sessions, queued conversions, ...)
+    public Map<String, Long> getServerStats() {
+        try {
+            if (session.request(new Message.StatsRequest()) instanceof Message.StatsResponse stats) {
+                return stats.values();
+            }
+        } catch (IOException e) {
+            logger.warning("Could not fetch server stats: " + e.getMessage());
+        }
+        return Map.of();
+    }
+
+    // Close the connections to the server (and to the cluster instances it redirected to), which also stops any
+    // stream still running
+    public void close() {
+        session.close();
+        redirectSessions.values().forEach(ClientSession::close);
     }
 }
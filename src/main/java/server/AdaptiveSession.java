@@ -0,0 +1,114 @@
+package server;
+
+import shared.VideoFile;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+
+// One ADAPTIVE viewer: the segmented renditions of a title it can be switched between, and the rendition its
+// next segment comes from. The client reports delivered throughput and buffer level; the rule is throughput
+// based and guarded by the buffer: step down as soon as the smoothed estimate no longer covers the current
+// rendition, or when the buffer runs low and the latest download alone does not cover it (the estimate lags a
+// sudden drop), and step up one rendition at a time only with a comfortable buffer.
+public class AdaptiveSession {
+
+    private static final Logger logger = Logger.getLogger(AdaptiveSession.class.getName());
+    private static final double EWMA_ALPHA = 0.3;
+    private static final double SAFETY_FACTOR = 1.25; // a rendition may use at most 80% of the estimated throughput
+    private static final double LOW_BUFFER_SECONDS = 4; // about one segment left
+    private static final double HIGH_BUFFER_SECONDS = 10;
+
+    private final String id;
+    private final List<VideoFile> renditions; // lowest requirement first
+    private final List<Path> directories; // segment directory of each rendition
+    private final Predicate<Path> available; // whether a segment can be served (on an edge, before it was pulled)
+    private volatile int current;
+    private volatile long lastActivityMillis = System.currentTimeMillis();
+    private double throughputEstimate = -1; // guarded by this
+    private int switches; // guarded by this
+
+    AdaptiveSession(String id, List<VideoFile> renditions, List<Path> directories, int start, Predicate<Path> available) {
+        this.id = id;
+        this.renditions = List.copyOf(renditions);
+        this.directories = List.copyOf(directories);
+        this.current = start;
+        this.available = available;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public VideoFile getCurrentRendition() {
+        return renditions.get(current);
+    }
+
+    public long getLastActivityMillis() {
+        return lastActivityMillis;
+    }
+
+    public synchronized int getSwitchCount() {
+        return switches;
+    }
+
+    // Renditions are cut at the same instants, so the playlist of any of them describes the session
+    public Path playlist() {
+        lastActivityMillis = System.currentTimeMillis();
+        return directories.get(current).resolve(HlsSegmenter.PLAYLIST);
+    }
+
+    // The segment file for this entry in the current rendition, or the closest lower rendition that has it
+    public Segment segment(String entry) {
+        lastActivityMillis = System.currentTimeMillis();
+        for (int i = current; i >= 0; i--) {
+            Path file = directories.get(i).resolve(entry);
+            if (available.test(file)) {
+                return new Segment(file, renditions.get(i).getResolution());
+            }
+        }
+        return null;
+    }
+
+    // Applies a client report; takes effect from the next segment request, i.e. at a segment boundary
+    public synchronized void onReport(double throughputMbps, double bufferSeconds) {
+        lastActivityMillis = System.currentTimeMillis();
+        if (throughputMbps > 0) {
+            throughputEstimate = throughputEstimate < 0
+                    ? throughputMbps
+                    : EWMA_ALPHA * throughputMbps + (1 - EWMA_ALPHA) * throughputEstimate;
+        }
+        if (throughputEstimate < 0) {
+            return;
+        }
+
+        int sustainable = 0;
+        for (int i = 0; i < renditions.size(); i++) {
+            if (renditions.get(i).getRequiredMbps() * SAFETY_FACTOR <= throughputEstimate) {
+                sustainable = i;
+            }
+        }
+
+        int next = current;
+        if (sustainable < current) {
+            next = sustainable;
+        } else if (bufferSeconds < LOW_BUFFER_SECONDS && throughputMbps > 0
+                && renditions.get(current).getRequiredMbps() * SAFETY_FACTOR > throughputMbps) {
+            next = Math.max(0, current - 1);
+        } else if (sustainable > current && bufferSeconds >= HIGH_BUFFER_SECONDS) {
+            next = current + 1;
+        }
+        if (next != current) {
+            switches++;
+            logger.info(String.format("Session %s: %s -> %s (estimate %.2f Mbps, buffer %.1f s)", id,
+                    renditions.get(current).getResolution(), renditions.get(next).getResolution(),
+                    throughputEstimate, bufferSeconds));
+            current = next;
+        }
+    }
+
+    // A segment file and the resolution it was taken from
+    public record Segment(Path file, String resolution) {
+    }
+}
@@ -0,0 +1,147 @@
+package server;
+
+import shared.VideoFile;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+// Opens ADAPTIVE sessions and resolves their HTTP requests. A session has no process or port: the HLS server
+// asks it which rendition each segment comes from. Sessions end on Stop or after a minute without requests
+// or reports (the client reports every few seconds while it plays).
+public class AdaptiveStreamManager {
+
+    private static final Logger logger = Logger.getLogger(AdaptiveStreamManager.class.getName());
+    private static final long IDLE_TIMEOUT_MILLIS = 60_000;
+    // Segment durations of two renditions may differ by this much and still count as the same cut
+    private static final double ALIGNMENT_TOLERANCE_SECONDS = 0.25;
+
+    private final HlsSegmenter segmenter;
+    private final Map<String, AdaptiveSession> sessions = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService reaper;
+
+    public AdaptiveStreamManager(HlsSegmenter segmenter) {
+        this.segmenter = segmenter;
+        this.reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "adaptive-session-reaper");
+            t.setDaemon(true);
+            return t;
+        });
+        reaper.scheduleAtFixedRate(this::closeIdleSessions, 30, 30, TimeUnit.SECONDS);
+    }
+
+    // Segments every resolution of the title (one file per resolution, preferring the requested format) and
+    // opens a session starting at the requested one. Renditions whose segments are not cut at the same
+    // instants as the requested one are left out, since switching between them would skip or repeat media.
+    public AdaptiveSession open(VideoFile requested, List<VideoFile> sameTitle) throws IOException {
+        Map<String, VideoFile> byResolution = new HashMap<>();
+        for (VideoFile file : sameTitle) {
+            byResolution.merge(file.getResolution(), file,
+                    (kept, other) -> other.getFormat().equals(requested.getFormat()) ? other : kept);
+        }
+        byResolution.put(requested.getResolution(), requested);
+        List<VideoFile> candidates = new ArrayList<>(byResolution.values());
+        candidates.sort(Comparator.comparingDouble(VideoFile::getRequiredMbps));
+
+        Map<VideoFile, CompletableFuture<Path>> segmentations = new LinkedHashMap<>();
+        for (VideoFile candidate : candidates) {
+            segmentations.put(candidate, segmenter.segment(candidate));
+        }
+        Path requestedDir;
+        try {
+            requestedDir = segmentations.get(requested).join();
+        } catch (CompletionException e) {
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        }
+        List<Double> reference = segmentDurations(requestedDir);
+
+        List<VideoFile> renditions = new ArrayList<>();
+        List<Path> directories = new ArrayList<>();
+        for (Map.Entry<VideoFile, CompletableFuture<Path>> segmentation : segmentations.entrySet()) {
+            VideoFile candidate = segmentation.getKey();
+            try {
+                Path dir = segmentation.getValue().join();
+                if (candidate.equals(requested) || aligned(reference, segmentDurations(dir))) {
+                    renditions.add(candidate);
+                    directories.add(dir);
+                } else {
+                    logger.info(candidate.getFilename() + " is not cut like " + requested.getFilename() + ", not switchable");
+                }
+            } catch (CompletionException | IOException e) {
+                logger.warning("Rendition " + candidate.getFilename() + " unavailable: " + e.getMessage());
+            }
+        }
+
+        String id = UUID.randomUUID().toString().substring(0, 8);
+        AdaptiveSession session = new AdaptiveSession(id, renditions, directories, renditions.indexOf(requested),
+                segmenter::hasSegment);
+        sessions.put(id, session);
+        logger.info("Adaptive session " + id + " opened on " + requested.getName() + " with "
+                + renditions.stream().map(VideoFile::getResolution).toList());
+        return session;
+    }
+
+    public AdaptiveSession get(String id) {
+        return sessions.get(id);
+    }
+
+    public void report(String id, double throughputMbps, double bufferSeconds) {
+        AdaptiveSession session = sessions.get(id);
+        if (session != null) {
+            session.onReport(throughputMbps, bufferSeconds);
+        }
+    }
+
+    public boolean close(String id) {
+        AdaptiveSession session = sessions.remove(id);
+        if (session != null) {
+            logger.info("Adaptive session " + id + " closed after " + session.getSwitchCount() + " switches");
+        }
+        return session != null;
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    private void closeIdleSessions() {
+        long now = System.currentTimeMillis();
+        for (AdaptiveSession session : sessions.values()) {
+            if (now - session.getLastActivityMillis() > IDLE_TIMEOUT_MILLIS) {
+                close(session.getId());
+            }
+        }
+    }
+
+    private static boolean aligned(List<Double> reference, List<Double> durations) {
+        if (reference.size() != durations.size()) {
+            return false;
+        }
+        for (int i = 0; i < reference.size(); i++) {
+            if (Math.abs(reference.get(i) - durations.get(i)) > ALIGNMENT_TOLERANCE_SECONDS) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // #EXTINF durations of a segmented rendition, in playlist order
+    private static List<Double> segmentDurations(Path dir) throws IOException {
+        List<Double> durations = new ArrayList<>();
+        for (String line : Files.readAllLines(dir.resolve(HlsSegmenter.PLAYLIST))) {
+            if (line.startsWith("#EXTINF:")) {
+                int comma = line.indexOf(',');
+                durations.add(Double.parseDouble(line.substring(8, comma < 0 ? line.length() : comma)));
+            }
+        }
+        return durations;
+    }
+}
@@ -0,0 +1,105 @@
+package server;
+
+import utils.Metrics;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+// Endpoint measuring the client -> server path, so the bandwidth estimate reflects the link the video will use.
+// Commands (one byte, repeated until the client disconnects):
+//   'P'           -> the server answers one byte 'P' (round-trip time)
+//   'D' + int n   -> the server sends n payload bytes (throughput)
+// Payload bytes come from one preallocated direct buffer shared by all connections, so serving a probe
+// allocates nothing and copies nothing into the heap.
+public class BandwidthProbeServer {
+
+    private static final Logger logger = Logger.getLogger(BandwidthProbeServer.class.getName());
+    private static final byte PING = 'P';
+    private static final byte DOWNLOAD = 'D';
+    private static final Metrics.Counter BYTES_SENT = Metrics.counter("stream_bytes_sent_total",
+            "Bytes sent to clients, by the component that sent them", "path", "probe");
+
+    private final int port;
+    private final ByteBuffer payload;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    public BandwidthProbeServer(int port, int payloadBytes) {
+        this.port = port;
+        this.payload = ByteBuffer.allocateDirect(payloadBytes);
+        // Non-zero, non-repeating-looking bytes so nothing on the path can compress them away
+        for (int i = 0; i < payloadBytes; i++) {
+            payload.put(i, (byte) (i * 31 + (i >>> 8)));
+        }
+    }
+
+    // -Dprobe.port=9091 -Dprobe.payloadBytes=4194304 (largest single download request)
+    public static BandwidthProbeServer fromSystemProperties() {
+        return new BandwidthProbeServer(Integer.getInteger("probe.port", 9091),
+                Integer.getInteger("probe.payloadBytes", 4 * 1024 * 1024));
+    }
+
+    public void start() throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    SocketChannel client = serverChannel.accept();
+                    executor.submit(() -> serve(client));
+                } catch (IOException e) {
+                    logger.severe("Probe accept error: " + e.getMessage());
+                    return;
+                }
+            }
+        }, "bandwidth-probe");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        logger.info("Bandwidth probe listening on port " + port);
+    }
+
+    private void serve(SocketChannel channel) {
+        ByteBuffer command = ByteBuffer.allocate(5);
+        ByteBuffer pong = ByteBuffer.allocate(1);
+        try (SocketChannel client = channel) {
+            client.socket().setTcpNoDelay(true);
+            while (true) {
+                command.clear().limit(1);
+                if (!readFully(client, command)) return;
+
+                if (command.get(0) == PING) {
+                    pong.clear().put(0, PING);
+                    client.write(pong);
+                } else if (command.get(0) == DOWNLOAD) {
+                    command.limit(5);
+                    if (!readFully(client, command)) return;
+                    int length = command.getInt(1);
+                    if (length <= 0 || length > payload.capacity()) {
+                        logger.warning("Probe request of " + length + " bytes rejected");
+                        return;
+                    }
+                    ByteBuffer slice = payload.slice(0, length);
+                    while (slice.hasRemaining()) {
+                        BYTES_SENT.add(client.write(slice));
+                    }
+                } else {
+                    return;
+                }
+            }
+        } catch (IOException ignored) {
+            // client went away mid-probe
+        }
+    }
+
+    private static boolean readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,137 @@
+package server;
+
+import shared.VideoFile;
+import utils.ProcessSupervisor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+// One FFMPEG process writing MPEG-TS to its stdout, shared by every viewer of the same file.
+// Output is cut into 7x188-byte chunks (one UDP datagram each) stored in a ring buffer; each viewer reads
+// the ring at its own cursor, so a slow viewer falls behind and gets dropped instead of slowing the others.
+public class Broadcast {
+
+    private static final Logger logger = Logger.getLogger(Broadcast.class.getName());
+    public static final int TS_PACKET_SIZE = 188;
+    public static final int CHUNK_SIZE = 7 * TS_PACKET_SIZE;
+    // A viewer closer than this to being overwritten is dropped, so the chunk it sends is never rewritten mid-send
+    private static final int SAFETY_MARGIN = 64;
+
+    private final VideoFile file;
+    private final Process process;
+    private final int capacity;
+    private final byte[] ring;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition chunkAvailable = lock.newCondition();
+    private volatile long head; // sequence number of the next chunk to be written
+    private volatile long lastKeyframe = -1;
+    private volatile boolean ended;
+    private volatile boolean stopped;
+
+    Broadcast(VideoFile file, Process process, int capacityChunks) {
+        this.file = file;
+        this.process = process;
+        this.capacity = capacityChunks;
+        this.ring = new byte[capacityChunks * CHUNK_SIZE];
+        Thread reader = new Thread(this::readLoop, "broadcast-" + file.getFilename());
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    public VideoFile getFile() {
+        return file;
+    }
+
+    public Process getProcess() {
+        return process;
+    }
+
+    // Where a new viewer starts: the latest chunk holding a keyframe, so decoding can start immediately
+    public long getJoinPosition() {
+        long keyframe = lastKeyframe;
+        return keyframe >= 0 && head - keyframe < capacity - SAFETY_MARGIN ? keyframe : head;
+    }
+
+    // Blocks until the chunk at sequence is written; returns false when the stream ended before it
+    public boolean awaitChunk(long sequence) throws InterruptedException {
+        if (sequence < head) return true;
+        lock.lock();
+        try {
+            while (sequence >= head && !ended) {
+                chunkAvailable.await();
+            }
+            return sequence < head;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Read-only view of a chunk inside the ring, no copy
+    public ByteBuffer chunk(long sequence) {
+        int offset = (int) (sequence % capacity) * CHUNK_SIZE;
+        return ByteBuffer.wrap(ring, offset, CHUNK_SIZE).asReadOnlyBuffer();
+    }
+
+    // True if the writer is about to (or did) overwrite the chunk at sequence
+    public boolean isLapped(long sequence) {
+        return head - sequence > capacity - SAFETY_MARGIN;
+    }
+
+    public void stop() {
+        stopped = true;
+        ProcessSupervisor.stop(process);
+    }
+
+    private void readLoop() {
+        try (InputStream in = process.getInputStream()) {
+            while (true) {
+                int offset = (int) (head % capacity) * CHUNK_SIZE;
+                int read = in.readNBytes(ring, offset, CHUNK_SIZE);
+                if (read < CHUNK_SIZE) {
+                    break;
+                }
+                if (containsKeyframe(offset)) {
+                    lastKeyframe = head;
+                }
+                publish();
+            }
+        } catch (IOException e) {
+            if (!stopped) logger.warning("Broadcast of " + file.getFilename() + " interrupted: " + e.getMessage());
+        }
+        lock.lock();
+        try {
+            ended = true;
+            chunkAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        logger.info("Broadcast of " + file.getFilename() + " ended after " + head + " chunks");
+    }
+
+    private void publish() {
+        lock.lock();
+        try {
+            head++;
+            chunkAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // A TS packet starting a PES (payload_unit_start) with random_access_indicator set in its adaptation field
+    private boolean containsKeyframe(int offset) {
+        for (int p = offset; p < offset + CHUNK_SIZE; p += TS_PACKET_SIZE) {
+            boolean sync = ring[p] == 0x47;
+            boolean payloadStart = (ring[p + 1] & 0x40) != 0;
+            boolean hasAdaptation = (ring[p + 3] & 0x20) != 0;
+            if (sync && payloadStart && hasAdaptation && (ring[p + 4] & 0xFF) > 0 && (ring[p + 5] & 0x40) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
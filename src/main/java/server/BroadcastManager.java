@@ -0,0 +1,191 @@
+package server;
+
+import shared.Protocol;
+import shared.VideoFile;
+import utils.Metrics;
+import utils.ProcessSupervisor;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.logging.Logger;
+
+// Shares one Broadcast per VideoFile between all TCP/UDP sessions playing it.
+// The FFMPEG process starts with the first viewer and is stopped when the last one leaves. Starting it may wait for
+// a stream slot (ProcessSupervisor), so it happens outside the manager's lock: the viewers arriving meanwhile wait
+// on the same start, and the other titles are not held up.
+public class BroadcastManager {
+
+    private static final Logger logger = Logger.getLogger(BroadcastManager.class.getName());
+    private static final int TCP_ACCEPT_TIMEOUT_MS = 15_000;
+    private static final Metrics.Counter BYTES_SENT = Metrics.counter("stream_bytes_sent_total",
+            "Bytes sent to clients, by the component that sent them", "path", "broadcast");
+
+    private final String videoDir;
+    private final int ringChunks;
+    private final Map<VideoFile, Broadcast> broadcasts = new HashMap<>();
+    private final Map<VideoFile, Integer> viewers = new HashMap<>();
+    private final Map<VideoFile, CompletableFuture<Broadcast>> starting = new HashMap<>();
+
+    public BroadcastManager(String videoDir, int ringChunks) {
+        this.videoDir = videoDir;
+        this.ringChunks = ringChunks;
+    }
+
+    // Ring size: -Dbroadcast.ringChunks=N chunks of 1316 bytes (default 8192, about 10 MB per title)
+    public static BroadcastManager fromSystemProperties(String videoDir) {
+        return new BroadcastManager(videoDir, Integer.getInteger("broadcast.ringChunks", 8192));
+    }
+
+    // Subscribes a TCP or UDP session to the broadcast of its file; the session's close action unsubscribes it
+    public void subscribe(StreamSession session, StreamSessionManager sessionManager) throws IOException {
+        // Bind before answering the client, so the player never connects to a port nobody listens on yet
+        ServerSocketChannel listener = null;
+        if (session.getProtocol() == Protocol.TCP) {
+            listener = ServerSocketChannel.open();
+            listener.bind(new InetSocketAddress(session.getVideoPort()));
+        }
+        ServerSocketChannel tcpListener = listener;
+
+        Broadcast broadcast = join(session.getFile());
+        Thread sender = Thread.ofVirtual().name("viewer-" + session.getId()).start(() -> {
+            try {
+                if (tcpListener != null) {
+                    sendTcp(broadcast, session, tcpListener);
+                } else {
+                    sendUdp(broadcast, session);
+                }
+            } catch (IOException e) {
+                logger.info("Viewer " + session.getId() + " disconnected: " + e.getMessage());
+            } catch (InterruptedException ignored) {
+            } finally {
+                sessionManager.close(session);
+            }
+        });
+        session.setSending(sender::isAlive);
+        session.setCloseAction(() -> {
+            sender.interrupt();
+            leave(broadcast);
+        });
+    }
+
+    public synchronized int getBroadcastCount() {
+        return broadcasts.size();
+    }
+
+    private Broadcast join(VideoFile file) throws IOException {
+        while (true) {
+            CompletableFuture<Broadcast> start;
+            boolean starter = false;
+            synchronized (this) {
+                Broadcast broadcast = broadcasts.get(file);
+                if (broadcast != null && broadcast.getProcess().isAlive()) {
+                    viewers.merge(file, 1, Integer::sum);
+                    return broadcast;
+                }
+                start = starting.get(file);
+                if (start == null) {
+                    start = new CompletableFuture<>();
+                    starting.put(file, start);
+                    starter = true;
+                }
+            }
+            if (starter) {
+                start(file, start);
+            }
+            try {
+                start.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+            }
+            // Joined on the next turn, unless the process died meanwhile and must be started again
+        }
+    }
+
+    // Starts the FFMPEG process of a broadcast and publishes it; run by the first viewer, outside the lock
+    private void start(VideoFile file, CompletableFuture<Broadcast> start) {
+        try {
+            ProcessBuilder pb = new ProcessBuilder("ffmpeg", "-re", "-i", videoDir + file.getFilename(),
+                    "-c", "copy", "-f", "mpegts", "pipe:1");
+            Broadcast broadcast = new Broadcast(file, ProcessSupervisor.start(ProcessSupervisor.Kind.STREAM, pb), ringChunks);
+            synchronized (this) {
+                starting.remove(file);
+                broadcasts.put(file, broadcast);
+                viewers.put(file, 0);
+            }
+            logger.info("Broadcast started for " + file.getFilename());
+            start.complete(broadcast);
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                starting.remove(file);
+            }
+            start.completeExceptionally(e);
+        }
+    }
+
+    private synchronized void leave(Broadcast broadcast) {
+        VideoFile file = broadcast.getFile();
+        if (broadcasts.get(file) != broadcast) {
+            return;
+        }
+        int remaining = viewers.merge(file, -1, Integer::sum);
+        if (remaining <= 0) {
+            broadcasts.remove(file);
+            viewers.remove(file);
+            broadcast.stop();
+            logger.info("Broadcast stopped for " + file.getFilename() + " (no viewers left)");
+        }
+    }
+
+    // The player connects to the session port, then gets chunks from the latest keyframe on
+    private void sendTcp(Broadcast broadcast, StreamSession session, ServerSocketChannel tcpListener) throws IOException, InterruptedException {
+        try (ServerSocketChannel listener = tcpListener) {
+            listener.socket().setSoTimeout(TCP_ACCEPT_TIMEOUT_MS);
+            SocketChannel player;
+            try {
+                player = listener.socket().accept().getChannel();
+            } catch (SocketTimeoutException e) {
+                throw new IOException("player did not connect within " + TCP_ACCEPT_TIMEOUT_MS + " ms");
+            }
+            try (SocketChannel out = player) {
+                pump(broadcast, session, chunk -> {
+                    while (chunk.hasRemaining()) BYTES_SENT.add(out.write(chunk));
+                });
+            }
+        }
+    }
+
+    private void sendUdp(Broadcast broadcast, StreamSession session) throws IOException, InterruptedException {
+        InetSocketAddress target = new InetSocketAddress(session.getClientAddress(), session.getVideoPort());
+        try (DatagramChannel out = DatagramChannel.open()) {
+            pump(broadcast, session, chunk -> BYTES_SENT.add(out.send(chunk, target)));
+        }
+    }
+
+    // Copies chunks from the ring to one viewer until the broadcast ends or the viewer falls a full ring behind
+    private void pump(Broadcast broadcast, StreamSession session, ChunkSink sink) throws IOException, InterruptedException {
+        long cursor = broadcast.getJoinPosition();
+        while (!session.isClosed() && broadcast.awaitChunk(cursor)) {
+            if (broadcast.isLapped(cursor)) {
+                throw new IOException("too slow, dropped");
+            }
+            sink.send(broadcast.chunk(cursor));
+            if (broadcast.isLapped(cursor)) {
+                throw new IOException("too slow, dropped");
+            }
+            cursor++;
+        }
+    }
+
+    private interface ChunkSink {
+        void send(ByteBuffer chunk) throws IOException;
+    }
+}
@@ -0,0 +1,206 @@
+package server;
+
+import shared.VideoFile;
+
+import java.util.*;
+
+// Immutable, copy-on-publish view of the available files.
+// Readers only dereference a volatile snapshot, so catalog queries never lock; writers rebuild the parts
+// of the snapshot they touch and publish it in one assignment.
+// Files are ordered by VideoFile.getRequiredMbps: their measured peak bitrate once probed.
+// Every snapshot has a version, and the last few stay queryable by it, so that a client loading the catalog page
+// by page reads every page from the snapshot of its first one even if files are published meanwhile.
+public class Catalog {
+
+    private static final int RETAINED_SNAPSHOTS = 4;
+
+    // Versions start from the clock so that they do not repeat after a restart; 0 means "the current one"
+    private long lastVersion = System.currentTimeMillis();
+    private volatile Snapshot snapshot = new Snapshot(lastVersion, Set.of(), Map.of(), Map.of());
+    private volatile List<Snapshot> retained = List.of(snapshot); // newest first, including the current one
+
+    // Files matching a query in the snapshot of a version
+    public record Result(long version, List<VideoFile> files) {
+    }
+
+    // Files of the given format playable at the given bitrate, lowest requirement first.
+    // A lookup plus a binary search; the returned list is an immutable view of the snapshot.
+    public List<VideoFile> query(String format, double bitrateMbps) {
+        return query(snapshot, format, bitrateMbps);
+    }
+
+    // Same query in the snapshot of the given version while it is retained, else in the current snapshot; the
+    // result tells which one answered
+    public Result query(String format, double bitrateMbps, long version) {
+        Snapshot pinned = snapshot;
+        if (version != 0 && version != pinned.version) {
+            for (Snapshot old : retained) {
+                if (old.version == version) {
+                    pinned = old;
+                    break;
+                }
+            }
+        }
+        return new Result(pinned.version, query(pinned, format, bitrateMbps));
+    }
+
+    private static List<VideoFile> query(Snapshot snapshot, String format, double bitrateMbps) {
+        FormatIndex index = snapshot.byFormat.get(format);
+        if (index == null) {
+            return List.of();
+        }
+        return index.files.subList(0, upperBound(index.required, bitrateMbps));
+    }
+
+    public List<VideoFile> getByName(String name) {
+        return snapshot.byName.getOrDefault(name, List.of());
+    }
+
+    // The published instance of a file (with the server's metadata), or null if it is not in the catalog
+    public VideoFile get(VideoFile file) {
+        for (VideoFile published : getByName(file.getName())) {
+            if (published.equals(file)) {
+                return published;
+            }
+        }
+        return null;
+    }
+
+    public Set<String> getNames() {
+        return snapshot.byName.keySet();
+    }
+
+    public boolean contains(VideoFile file) {
+        return snapshot.all.contains(file);
+    }
+
+    public int size() {
+        return snapshot.all.size();
+    }
+
+    // Publishes a file, or republishes it when its metadata changed (it then moves in its format's order).
+    // Returns false if the file was already in the catalog.
+    public synchronized boolean add(VideoFile file) {
+        Snapshot current = snapshot;
+        VideoFile published = get(file);
+        if (published != null && Objects.equals(published.getMediaInfo(), file.getMediaInfo())) {
+            return false;
+        }
+
+        // Equal files are replaced, not kept: remove the published instance before adding the new one
+        Set<VideoFile> all = new HashSet<>(current.all);
+        all.remove(file);
+        all.add(file);
+        Map<String, FormatIndex> byFormat = new HashMap<>(current.byFormat);
+        List<VideoFile> sameFormat = new ArrayList<>(byFormat.getOrDefault(file.getFormat(), FormatIndex.EMPTY).files);
+        sameFormat.remove(file);
+        sameFormat.add(file);
+        byFormat.put(file.getFormat(), FormatIndex.of(sameFormat));
+        Map<String, List<VideoFile>> byName = new HashMap<>(current.byName);
+        List<VideoFile> sameName = new ArrayList<>(byName.getOrDefault(file.getName(), List.of()));
+        sameName.remove(file);
+        sameName.add(file);
+        byName.put(file.getName(), List.copyOf(sameName));
+
+        install(Set.copyOf(all), Map.copyOf(byFormat), Map.copyOf(byName));
+        return published == null;
+    }
+
+    // Publishes many files with a single rebuild, used when loading the catalog index at startup
+    public synchronized void addAll(Collection<VideoFile> files) {
+        Set<VideoFile> all = new HashSet<>(snapshot.all);
+        all.removeAll(files);
+        all.addAll(files);
+        publish(all);
+    }
+
+    // Publishes exactly these files, used by edges to mirror the catalog of their origin
+    public synchronized void replaceAll(Collection<VideoFile> files) {
+        publish(new HashSet<>(files));
+    }
+
+    private void publish(Set<VideoFile> all) {
+        Map<String, List<VideoFile>> formats = new HashMap<>();
+        Map<String, List<VideoFile>> names = new HashMap<>();
+        for (VideoFile file : all) {
+            formats.computeIfAbsent(file.getFormat(), k -> new ArrayList<>()).add(file);
+            names.computeIfAbsent(file.getName(), k -> new ArrayList<>()).add(file);
+        }
+
+        Map<String, FormatIndex> byFormat = new HashMap<>();
+        formats.forEach((format, list) -> byFormat.put(format, FormatIndex.of(list)));
+        Map<String, List<VideoFile>> byName = new HashMap<>();
+        names.forEach((name, list) -> byName.put(name, List.copyOf(list)));
+
+        install(Set.copyOf(all), Map.copyOf(byFormat), Map.copyOf(byName));
+    }
+
+    // Makes a new snapshot current and keeps the previous ones within RETAINED_SNAPSHOTS
+    private void install(Set<VideoFile> all, Map<String, FormatIndex> byFormat, Map<String, List<VideoFile>> byName) {
+        Snapshot next = new Snapshot(++lastVersion, all, byFormat, byName);
+        List<Snapshot> kept = new ArrayList<>(RETAINED_SNAPSHOTS);
+        kept.add(next);
+        kept.addAll(retained.subList(0, Math.min(retained.size(), RETAINED_SNAPSHOTS - 1)));
+        retained = List.copyOf(kept);
+        snapshot = next;
+    }
+
+    public synchronized boolean remove(VideoFile file) {
+        Snapshot current = snapshot;
+        if (!current.all.contains(file)) {
+            return false;
+        }
+
+        Set<VideoFile> all = new HashSet<>(current.all);
+        all.remove(file);
+        Map<String, FormatIndex> byFormat = new HashMap<>(current.byFormat);
+        List<VideoFile> sameFormat = new ArrayList<>(byFormat.get(file.getFormat()).files);
+        sameFormat.remove(file);
+        byFormat.put(file.getFormat(), FormatIndex.of(sameFormat));
+        Map<String, List<VideoFile>> byName = new HashMap<>(current.byName);
+        List<VideoFile> sameName = new ArrayList<>(byName.get(file.getName()));
+        sameName.remove(file);
+        if (sameName.isEmpty()) {
+            byName.remove(file.getName());
+        } else {
+            byName.put(file.getName(), List.copyOf(sameName));
+        }
+
+        install(Set.copyOf(all), Map.copyOf(byFormat), Map.copyOf(byName));
+        return true;
+    }
+
+    // Index of the first requirement strictly above the bitrate
+    private static int upperBound(double[] required, double bitrate) {
+        int low = 0;
+        int high = required.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (required[mid] <= bitrate) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private record Snapshot(long version, Set<VideoFile> all, Map<String, FormatIndex> byFormat,
+                            Map<String, List<VideoFile>> byName) {
+    }
+
+    // Files of one format sorted by required bitrate, with the requirements in a parallel array
+    private record FormatIndex(List<VideoFile> files, double[] required) {
+        static final FormatIndex EMPTY = new FormatIndex(List.of(), new double[0]);
+
+        static FormatIndex of(List<VideoFile> files) {
+            List<VideoFile> sorted = new ArrayList<>(files);
+            sorted.sort(Comparator.comparingDouble(VideoFile::getRequiredMbps).thenComparing(VideoFile::getFilename));
+            double[] required = new double[sorted.size()];
+            for (int i = 0; i < required.length; i++) {
+                required[i] = sorted.get(i).getRequiredMbps();
+            }
+            return new FormatIndex(List.copyOf(sorted), required);
+        }
+    }
+}
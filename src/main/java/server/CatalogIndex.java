@@ -0,0 +1,401 @@
+package server;
+
+import shared.MediaInfo;
+import shared.VideoFile;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+// Persistent index of the video directory (size, mtime, fingerprint and probed metadata per file).
+// Loaded at startup and reconciled against the directory; a WatchService keeps it live while the server runs.
+// A file whose size or mtime changed is fingerprinted in the background, and probed again only if its content
+// changed: a touched file, or a file renamed or moved back into the directory, keeps its probe results. The
+// keyframes found by the probe are kept in videos/.keyframes/<file>.kfi for seeks. onAdded receives a file when it
+// appears and again, with its MediaInfo, once it has been probed; onRemoved when it disappears.
+public class CatalogIndex {
+
+    private static final Logger logger = Logger.getLogger(CatalogIndex.class.getName());
+    private static final String INDEX_FILE = ".catalog-index";
+    private static final String KEYFRAME_DIR = ".keyframes";
+    private static final int FINGERPRINT_SAMPLE = 1024 * 1024; // 1 MB hashed at the start and at the end
+    private static final long WATCH_DEBOUNCE_MS = 2000; // a file being copied fires many events
+    private static final int REMOVED_RETAINED = 256; // removed files remembered to recognize them if they come back
+
+    private final Path videoDir;
+    private final Path indexPath;
+    private final List<String> formats;
+    private final List<String> resolutions;
+    private final Consumer<VideoFile> onAdded;
+    private final Consumer<VideoFile> onRemoved;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<String, ScheduledFuture<?>> pendingEvents = new ConcurrentHashMap<>();
+    // Probed files that left the directory, by fingerprint, oldest first; their keyframes are kept until evicted
+    private final Map<String, Entry> removed = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            if (size() <= REMOVED_RETAINED) return false;
+            String filename = eldest.getValue().file.getFilename();
+            if (!entries.containsKey(filename)) deleteKeyframes(filename);
+            return true;
+        }
+    };
+    // Watch events, and the probe of a file they add or change
+    private final ScheduledExecutorService background = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "catalog-index");
+        t.setDaemon(true);
+        return t;
+    });
+    // Startup indexing, one task per file, so that a first index of a large library does not hold up watch events
+    private final ExecutorService prober = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "catalog-probe");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public CatalogIndex(Path videoDir, List<String> formats, List<String> resolutions,
+                        Consumer<VideoFile> onAdded, Consumer<VideoFile> onRemoved) {
+        this.videoDir = videoDir;
+        this.indexPath = videoDir.resolve(INDEX_FILE);
+        this.formats = formats;
+        this.resolutions = resolutions;
+        this.onAdded = onAdded;
+        this.onRemoved = onRemoved;
+    }
+
+    // Loads the saved index and reconciles it with the directory, returning the files currently present.
+    // Files whose size and mtime did not change reuse the saved probe results; the others are indexed after startup.
+    public Collection<Entry> loadAndReconcile() throws IOException {
+        long start = System.nanoTime();
+        Map<String, Entry> saved = load();
+
+        Map<Entry, Entry> toIndex = new LinkedHashMap<>(); // new or changed entry -> its saved entry, if any
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(videoDir)) {
+            for (Path path : stream) {
+                VideoFile file = parse(path.getFileName().toString());
+                if (file == null) continue;
+
+                BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+                Entry known = saved.get(file.getFilename());
+                if (known != null && known.size == attrs.size() && known.mtime == attrs.lastModifiedTime().toMillis()) {
+                    entries.put(file.getFilename(), known);
+                    // Indexed before keyframes were kept: probe again for them
+                    if (!Files.exists(keyframePath(file.getFilename()))) toIndex.put(known, null);
+                } else {
+                    Entry entry = new Entry(file, attrs.size(), attrs.lastModifiedTime().toMillis(), null);
+                    entries.put(file.getFilename(), entry);
+                    toIndex.put(entry, known);
+                }
+            }
+        }
+        synchronized (removed) {
+            for (Entry gone : saved.values()) {
+                if (!entries.containsKey(gone.file.getFilename())) remember(gone);
+            }
+        }
+
+        logger.info("Catalog index: " + entries.size() + " files, " + (saved.size() - countReused(saved))
+                + " removed, " + toIndex.size() + " new or changed, in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+
+        // Fingerprinting and probing are slow (up to 2 MB read and one ffprobe per file), do them after startup
+        // instead of blocking it
+        // The server got these entries without MediaInfo; one replaced by a watch event meanwhile is left to it
+        toIndex.forEach((entry, previous) -> prober.execute(() -> {
+            index(entry, previous);
+            if (entries.get(entry.file.getFilename()) == entry) onAdded.accept(entry.getFile());
+        }));
+        prober.execute(this::save);
+        return Collections.unmodifiableCollection(entries.values());
+    }
+
+    // Watches the directory so that added, replaced or removed files update the catalog without a restart
+    public void startWatching() throws IOException {
+        WatchService watcher = videoDir.getFileSystem().newWatchService();
+        videoDir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+        Thread thread = new Thread(() -> {
+            while (true) {
+                WatchKey key;
+                try {
+                    key = watcher.take();
+                } catch (InterruptedException | ClosedWatchServiceException e) {
+                    return;
+                }
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.context() instanceof Path changed) {
+                        scheduleRefresh(changed.getFileName().toString());
+                    }
+                }
+                key.reset();
+            }
+        }, "catalog-watcher");
+        thread.setDaemon(true);
+        thread.start();
+        logger.info("Watching " + videoDir + " for catalog changes");
+    }
+
+    public Entry get(String filename) {
+        return entries.get(filename);
+    }
+
+    // Keyframes of a catalog file, null until it has been probed
+    public KeyframeIndex getKeyframes(String filename) {
+        try {
+            return KeyframeIndex.read(keyframePath(filename));
+        } catch (IOException e) {
+            logger.warning("Could not read keyframes of " + filename + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private Path keyframePath(String filename) {
+        return videoDir.resolve(KEYFRAME_DIR).resolve(filename + ".kfi");
+    }
+
+    private void scheduleRefresh(String filename) {
+        if (parse(filename) == null) return;
+        pendingEvents.compute(filename, (name, previous) -> {
+            if (previous != null) previous.cancel(false);
+            return background.schedule(() -> refresh(name), WATCH_DEBOUNCE_MS, TimeUnit.MILLISECONDS);
+        });
+    }
+
+    // Re-reads one file after its events have settled
+    private void refresh(String filename) {
+        pendingEvents.remove(filename);
+        VideoFile file = parse(filename);
+        Path path = videoDir.resolve(filename);
+        try {
+            if (!Files.exists(path)) {
+                Entry gone = entries.remove(filename);
+                if (gone != null) {
+                    synchronized (removed) {
+                        remember(gone);
+                    }
+                    logger.info("Catalog: removed " + filename);
+                    onRemoved.accept(file);
+                }
+            } else {
+                BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+                Entry known = entries.get(filename);
+                if (known != null && known.size == attrs.size() && known.mtime == attrs.lastModifiedTime().toMillis()) {
+                    return;
+                }
+                Entry entry = new Entry(file, attrs.size(), attrs.lastModifiedTime().toMillis(), null);
+                boolean changed = index(entry, known);
+                entries.put(filename, entry);
+                if (changed) {
+                    logger.info("Catalog: " + (known == null ? "added " : "updated ") + filename);
+                    onAdded.accept(entry.getFile());
+                }
+            }
+            save();
+        } catch (IOException e) {
+            logger.warning("Catalog refresh failed for " + filename + ": " + e.getMessage());
+        }
+    }
+
+    // Only "<name>-<resolution>.<format>" files with a known resolution and format belong to the catalog
+    private VideoFile parse(String filename) {
+        VideoFile file = VideoFile.fromFilename(filename);
+        if (file == null || !formats.contains(file.getFormat()) || !resolutions.contains(file.getResolution())) {
+            return null;
+        }
+        return file;
+    }
+
+    private int countReused(Map<String, Entry> saved) {
+        int reused = 0;
+        for (String filename : saved.keySet()) {
+            if (entries.containsKey(filename)) reused++;
+        }
+        return reused;
+    }
+
+    // Fingerprints a new or changed entry and takes the probe results of the same content when it was indexed before:
+    // its previous entry (the file was only touched) or a removed file (it was renamed or moved back). Otherwise
+    // probes it. Returns whether its content is new to the catalog.
+    private boolean index(Entry entry, Entry previous) {
+        Path path = videoDir.resolve(entry.file.getFilename());
+        if (entry.fingerprint == null) {
+            try {
+                entry.fingerprint = fingerprint(path, entry.size);
+            } catch (IOException e) {
+                logger.warning("Could not fingerprint " + entry.file.getFilename() + ": " + e.getMessage());
+            }
+        }
+        if (previous != null && sameContent(entry, previous) && Files.exists(keyframePath(previous.file.getFilename()))) {
+            entry.file = entry.file.withMediaInfo(previous.file.getMediaInfo());
+            logger.fine("Catalog: " + entry.file.getFilename() + " changed on disk, same content");
+            return false;
+        }
+        Entry moved;
+        synchronized (removed) {
+            moved = entry.fingerprint == null ? null : removed.remove(entry.fingerprint);
+        }
+        if (moved != null && sameContent(entry, moved) && reuseKeyframes(moved, entry)) {
+            entry.file = entry.file.withMediaInfo(moved.file.getMediaInfo());
+            logger.info("Catalog: " + entry.file.getFilename() + " has the content of " + moved.file.getFilename()
+                    + ", probe results reused");
+        } else {
+            probe(entry);
+        }
+        return true;
+    }
+
+    private static boolean sameContent(Entry entry, Entry other) {
+        return entry.fingerprint != null && entry.fingerprint.equals(other.fingerprint) && entry.size == other.size
+                && other.file.getMediaInfo() != null;
+    }
+
+    // Gives a renamed file the keyframes saved under its old name
+    private boolean reuseKeyframes(Entry from, Entry to) {
+        Path source = keyframePath(from.file.getFilename());
+        if (from.file.getFilename().equals(to.file.getFilename())) return Files.exists(source);
+        try {
+            Files.move(source, keyframePath(to.file.getFilename()), StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Caller holds the removed monitor
+    private void remember(Entry gone) {
+        if (gone.fingerprint != null && gone.file.getMediaInfo() != null) {
+            removed.put(gone.fingerprint, gone);
+        } else {
+            deleteKeyframes(gone.file.getFilename());
+        }
+    }
+
+    private void deleteKeyframes(String filename) {
+        try {
+            Files.deleteIfExists(keyframePath(filename));
+        } catch (IOException e) {
+            logger.warning("Could not delete keyframes of " + filename + ": " + e.getMessage());
+        }
+    }
+
+    private void probe(Entry entry) {
+        KeyframeIndex.Builder keyframes = new KeyframeIndex.Builder();
+        MediaInfo info = MediaProbe.probe(videoDir.resolve(entry.file.getFilename()), keyframes);
+        if (info != null) {
+            entry.file = entry.file.withMediaInfo(info);
+            try {
+                keyframes.build().write(keyframePath(entry.file.getFilename()));
+            } catch (IOException e) {
+                logger.warning("Could not save keyframes of " + entry.file.getFilename() + ": " + e.getMessage());
+            }
+        } else {
+            logger.warning("Could not probe " + entry.file.getFilename() + ", its resolution decides its bitrate");
+        }
+    }
+
+    // SHA-256 of the size plus the first and last megabyte: tells replaced content from a touched or renamed file
+    // without reading whole videos
+    private static String fingerprint(Path path, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(ByteBuffer.allocate(Long.BYTES).putLong(size).flip());
+            ByteBuffer buffer = ByteBuffer.allocate(FINGERPRINT_SAMPLE);
+            for (long position : new long[]{0, Math.max(0, size - FINGERPRINT_SAMPLE)}) {
+                buffer.clear();
+                while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0) {
+                    // keep reading until the sample is full or the file ends
+                }
+                digest.update(buffer.flip());
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Map<String, Entry> load() {
+        Map<String, Entry> saved = new HashMap<>();
+        if (!Files.exists(indexPath)) {
+            return saved;
+        }
+        try (InputStream in = Files.newInputStream(indexPath)) {
+            for (String line : new String(in.readAllBytes()).split("\n")) {
+                // Lines of an older layout are skipped, so those files are probed again
+                String[] fields = line.split("\t", -1);
+                if (fields.length != 9) continue;
+                VideoFile file = parse(fields[0]);
+                if (file == null) continue;
+                if (!fields[4].equals("-")) {
+                    file = file.withMediaInfo(new MediaInfo(Double.parseDouble(fields[4]), Long.parseLong(fields[5]),
+                            Long.parseLong(fields[6]), fields[7], Double.parseDouble(fields[8])));
+                }
+                saved.put(fields[0], new Entry(file, Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                        fields[3].equals("-") ? null : fields[3]));
+            }
+        } catch (IOException | NumberFormatException e) {
+            logger.warning("Catalog index unreadable, rebuilding it: " + e.getMessage());
+            saved.clear();
+        }
+        return saved;
+    }
+
+    // Writes to a temporary file and renames it, so a crash never leaves a truncated index
+    private synchronized void save() {
+        Path tmp = indexPath.resolveSibling(INDEX_FILE + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp)) {
+            for (Entry entry : entries.values()) {
+                MediaInfo info = entry.file.getMediaInfo();
+                String media = info == null ? "-\t-\t-\t-\t-" : info.durationSeconds() + "\t" + info.averageBitrateKbps() + "\t"
+                        + info.peakBitrateKbps() + "\t" + info.videoCodec() + "\t" + info.keyframeIntervalSeconds();
+                String fingerprint = entry.fingerprint == null ? "-" : entry.fingerprint;
+                writer.write(entry.file.getFilename() + "\t" + entry.size + "\t" + entry.mtime + "\t" + fingerprint
+                        + "\t" + media + "\n");
+            }
+        } catch (IOException e) {
+            logger.warning("Could not save catalog index: " + e.getMessage());
+            return;
+        }
+        try {
+            Files.move(tmp, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warning("Could not save catalog index: " + e.getMessage());
+        }
+    }
+
+    // One indexed file; its VideoFile has no MediaInfo until ffprobe has run
+    public static class Entry {
+        private volatile VideoFile file;
+        private final long size;
+        private final long mtime;
+        private volatile String fingerprint; // null until computed in the background
+
+        Entry(VideoFile file, long size, long mtime, String fingerprint) {
+            this.file = file;
+            this.size = size;
+            this.mtime = mtime;
+            this.fingerprint = fingerprint;
+        }
+
+        public VideoFile getFile() {
+            return file;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public String getFingerprint() {
+            return fingerprint;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package server;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+
+// Origin/edge deployment of several StreamingServer instances. The origin owns videos/ and every encode; edges
+// own no files, mirror the origin's catalog and pull playlists and segments from its HLS server when a viewer
+// first asks for them. Every instance places variants on the serving instances with the same consistent-hash
+// ring, and answers a play request for a variant placed elsewhere with a redirect to its owner, so each variant
+// is pulled and cached by one edge only.
+//
+//   -Dcluster.nodes=host:port,host:port   control endpoints of the instances that serve viewers (same list everywhere)
+//   -Dcluster.self=host:port              this instance's entry in that list; absent on an origin that only redirects
+//   -Dcluster.origin=host:port            control endpoint of the origin; set on edges only
+//   -Dcluster.originHlsPort=8080          HLS port of the origin
+public class Cluster {
+
+    private final List<String> nodes;
+    private final String self;
+    private final HashRing<String> ring;
+    private final InetSocketAddress origin;
+    private final int originHlsPort;
+
+    public Cluster(List<String> nodes, String self, InetSocketAddress origin, int originHlsPort) {
+        this.nodes = List.copyOf(nodes);
+        this.self = self;
+        this.ring = new HashRing<>(this.nodes);
+        this.origin = origin;
+        this.originHlsPort = originHlsPort;
+    }
+
+    // Null when no cluster is configured: the server runs alone, as it always did
+    public static Cluster fromSystemProperties() {
+        String nodes = System.getProperty("cluster.nodes");
+        String origin = System.getProperty("cluster.origin");
+        if (nodes == null && origin == null) {
+            return null;
+        }
+        List<String> nodeList = nodes == null ? List.of()
+                : Arrays.stream(nodes.split(",")).map(String::trim).filter(node -> !node.isEmpty()).toList();
+        for (String node : nodeList) {
+            parse(node); // fail at startup on a malformed entry, not on the first redirect
+        }
+        String self = System.getProperty("cluster.self");
+        if (self != null && !nodeList.contains(self)) {
+            throw new IllegalArgumentException("cluster.self " + self + " is not one of cluster.nodes");
+        }
+        return new Cluster(nodeList, self, origin == null ? null : parse(origin),
+                Integer.getInteger("cluster.originHlsPort", 8080));
+    }
+
+    public boolean isEdge() {
+        return origin != null;
+    }
+
+    public InetSocketAddress getOrigin() {
+        return origin;
+    }
+
+    // URL of a path of the origin's HLS server
+    public URI originUri(String path) {
+        String host = origin.getHostString().contains(":") ? "[" + origin.getHostString() + "]" : origin.getHostString();
+        return URI.create("http://" + host + ":" + originHlsPort + path);
+    }
+
+    // Control endpoint of the instance serving the key, or null when this instance serves it
+    public InetSocketAddress redirectFor(String key) {
+        String owner = ring.nodeFor(key);
+        return owner == null || owner.equals(self) ? null : parse(owner);
+    }
+
+    public List<String> getNodes() {
+        return nodes;
+    }
+
+    // "host:port", "[v6 address]:port"
+    static InetSocketAddress parse(String hostPort) {
+        int colon = hostPort.lastIndexOf(':');
+        if (colon <= 0 || colon == hostPort.length() - 1) {
+            throw new IllegalArgumentException("Expected host:port, got " + hostPort);
+        }
+        String host = hostPort.substring(0, colon);
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
+        return new InetSocketAddress(host, Integer.parseInt(hostPort.substring(colon + 1)));
+    }
+}
@@ -0,0 +1,49 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Consistent hashing of keys (variant filenames, titles) onto nodes. Each node sits at many points of a ring of
+// 64-bit hashes and a key belongs to the first node point at or after its own hash, so every instance computes
+// the same placement from the node list alone, and adding or removing a node only moves the keys of its points.
+// Immutable.
+public class HashRing<N> {
+
+    private static final int POINTS_PER_NODE = 160; // spreads keys within a few percent of an even share
+
+    private final TreeMap<Long, N> points = new TreeMap<>();
+
+    // Nodes are placed by their toString(), which must be the same on every instance (e.g. "host:port")
+    public HashRing(List<N> nodes) {
+        for (N node : nodes) {
+            for (int i = 0; i < POINTS_PER_NODE; i++) {
+                points.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    // The node holding the key, or null when the ring is empty
+    public N nodeFor(String key) {
+        if (points.isEmpty()) return null;
+        Map.Entry<Long, N> point = points.ceilingEntry(hash(key));
+        return point != null ? point.getValue() : points.firstEntry().getValue();
+    }
+
+    // First 8 bytes of the MD5 of the key: spread well and identical on every JVM, unlike String.hashCode
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = hash << 8 | (digest[i] & 0xFF);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
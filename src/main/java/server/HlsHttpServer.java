@@ -0,0 +1,413 @@
+package server;
+
+import shared.VideoFile;
+import utils.Metrics;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+// Minimal non-blocking HTTP/1.1 server for HLS playlists and segments.
+// One selector thread serves every viewer. Playlists and segments are written from the shared SegmentCache, so
+// a segment watched by many viewers is read from disk once; files too large for the cache go out with
+// FileChannel.transferTo. Neither path copies segment bytes through the JVM heap. A file not in the cache yet is
+// read into it by a worker thread, never by the selector thread, and its response started once it is loaded.
+// /hls/<filename>/ serves one rendition as it is; /abr/<session id>/ serves an ADAPTIVE session, whose
+// segments come from whichever rendition the session currently selects (named in an X-Rendition header).
+// A catalog file that is not segmented yet gets 503 with Retry-After while it is (edges ask their origin this
+// way). On an edge, a segment missing from disk is pulled from the origin first; the connection waits without
+// holding the selector thread, and the response is started from the selector thread once the pull is done.
+public class HlsHttpServer {
+
+    private static final Logger logger = Logger.getLogger(HlsHttpServer.class.getName());
+    private static final int MAX_REQUEST_HEADER = 8192;
+    private static final long TRANSFER_CHUNK = 1024 * 1024; // bounds the time one viewer holds the selector thread
+    private static final Metrics.Counter BYTES_SENT = Metrics.counter("stream_bytes_sent_total",
+            "Bytes sent to clients, by the component that sent them", "path", "hls");
+    // Only the playlist and segment names produced by HlsSegmenter can be requested
+    private static final Pattern ALLOWED_ENTRY = Pattern.compile(HlsSegmenter.PLAYLIST.replace(".", "\\.") + "|seg\\d{5}\\.ts");
+
+    private final int port;
+    private final HlsSegmenter segmenter;
+    private final AdaptiveStreamManager adaptiveStreams;
+    private final SegmentCache cache;
+    private final Function<String, VideoFile> catalog; // catalog file of a filename, null if there is none
+    private final AtomicInteger openConnections = new AtomicInteger(); // touched by the selector thread only
+    private final Queue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>(); // run by the selector thread
+    private final ExecutorService cacheLoader = Executors.newVirtualThreadPerTaskExecutor(); // reads cache misses
+    private Selector selector;
+
+    public HlsHttpServer(int port, HlsSegmenter segmenter, AdaptiveStreamManager adaptiveStreams, SegmentCache cache,
+                         Function<String, VideoFile> catalog) {
+        this.port = port;
+        this.segmenter = segmenter;
+        this.adaptiveStreams = adaptiveStreams;
+        this.cache = cache;
+        this.catalog = catalog;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    // HTTP connections of HLS and ADAPTIVE players; keep-alive players hold one for their whole session
+    public int getOpenConnectionCount() {
+        return openConnections.get();
+    }
+
+    // URL path of the playlist of a segmented file
+    public static String playlistPath(String filename) {
+        return entryPath(filename, HlsSegmenter.PLAYLIST);
+    }
+
+    // URL path of the playlist or a segment of a segmented file
+    public static String entryPath(String filename, String entry) {
+        return "/hls/" + URLEncoder.encode(filename, StandardCharsets.UTF_8).replace("+", "%20") + "/" + entry;
+    }
+
+    // URL path of the playlist of an ADAPTIVE session
+    public static String adaptivePlaylistPath(String sessionId) {
+        return "/abr/" + URLEncoder.encode(sessionId, StandardCharsets.UTF_8) + "/" + HlsSegmenter.PLAYLIST;
+    }
+
+    public void start() throws IOException {
+        selector = Selector.open();
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        Thread thread = new Thread(() -> selectLoop(selector, serverChannel), "hls-http");
+        thread.setDaemon(true);
+        thread.start();
+        logger.info("HLS HTTP server listening on port " + port);
+    }
+
+    private void selectLoop(Selector selector, ServerSocketChannel serverChannel) {
+        while (true) {
+            try {
+                selector.select();
+                Runnable task;
+                while ((task = selectorTasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (key.isAcceptable()) {
+                            SocketChannel client = serverChannel.accept();
+                            if (client != null) {
+                                client.configureBlocking(false);
+                                client.register(selector, SelectionKey.OP_READ, new Connection(client));
+                                openConnections.incrementAndGet();
+                            }
+                        } else if (key.isReadable()) {
+                            onReadable(key);
+                        } else if (key.isWritable()) {
+                            onWritable(key);
+                        }
+                    } catch (IOException | CancelledKeyException e) {
+                        closeConnection(key);
+                    }
+                }
+            } catch (IOException e) {
+                logger.severe("HLS HTTP server error: " + e.getMessage());
+            }
+        }
+    }
+
+    private void onReadable(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        if (connection.channel.read(connection.request) < 0) {
+            closeConnection(key);
+            return;
+        }
+        parseRequest(key, connection);
+    }
+
+    // Starts a response once a full request header has arrived
+    private void parseRequest(SelectionKey key, Connection connection) throws IOException {
+        int headerEnd = findHeaderEnd(connection.request);
+        if (headerEnd < 0) {
+            if (!connection.request.hasRemaining()) {
+                respondError(key, connection, "431 Request Header Fields Too Large");
+            }
+            return;
+        }
+
+        String header = new String(connection.request.array(), 0, headerEnd, StandardCharsets.ISO_8859_1);
+        // Keep any pipelined bytes that follow this request
+        connection.request.flip().position(headerEnd + 4);
+        connection.request.compact();
+
+        String[] lines = header.split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3) {
+            respondError(key, connection, "400 Bad Request");
+            return;
+        }
+        connection.keepAlive = requestLine[2].equals("HTTP/1.1");
+        for (String line : lines) {
+            if (line.regionMatches(true, 0, "Connection:", 0, 11)) {
+                connection.keepAlive = line.substring(11).trim().equalsIgnoreCase("keep-alive");
+            }
+        }
+
+        if (!requestLine[0].equals("GET")) {
+            respondError(key, connection, "405 Method Not Allowed");
+            return;
+        }
+        AdaptiveSession.Segment target = resolve(requestLine[1]);
+        if (target == null) {
+            CompletableFuture<Path> segmentation = startSegmenting(requestLine[1]);
+            if (segmentation != null && !segmentation.isDone()) {
+                connection.keepAlive = false;
+                connection.startResponse("503 Service Unavailable", "text/plain", "Retry-After: 1\r\n", null, 0);
+                key.interestOps(SelectionKey.OP_WRITE);
+                onWritable(key);
+                return;
+            }
+            // Segmented by an earlier run (its files were on disk): servable at once
+            target = segmentation != null ? resolve(requestLine[1]) : null;
+            if (target == null) {
+                respondError(key, connection, "404 Not Found");
+                return;
+            }
+        }
+
+        serve(key, connection, target);
+    }
+
+    // Edge: a segment not pulled yet is pulled from the origin first, and the response started from the selector
+    // thread once it is on disk. The connection reads nothing meanwhile, so a pipelined request waits its turn.
+    private void serve(SelectionKey key, Connection connection, AdaptiveSession.Segment target) throws IOException {
+        CompletableFuture<Path> pull = segmenter.fetchMissing(target.file());
+        if (pull != null) {
+            key.interestOps(0);
+            pull.whenComplete((file, error) -> onSelectorThread(key, () -> {
+                if (error != null) {
+                    logger.warning("Origin pull failed: " + error.getMessage());
+                    respondError(key, connection, "502 Bad Gateway");
+                } else {
+                    respond(key, connection, target);
+                }
+            }));
+            return;
+        }
+        respond(key, connection, target);
+    }
+
+    // A cached file is answered at once. A miss (up to the cache's largest file) is read into the cache by a
+    // worker; the connection waits for it like for an origin pull, reading nothing meanwhile.
+    private void respond(SelectionKey key, Connection connection, AdaptiveSession.Segment target) throws IOException {
+        ByteBuffer cached;
+        try {
+            cached = cache.readIfCached(target.file());
+        } catch (IOException e) {
+            respondError(key, connection, "404 Not Found");
+            return;
+        }
+        if (cached != null) {
+            startBody(key, connection, target, cached);
+            return;
+        }
+        key.interestOps(0);
+        cacheLoader.execute(() -> {
+            try {
+                ByteBuffer loaded = cache.read(target.file());
+                onSelectorThread(key, () -> startBody(key, connection, target, loaded));
+            } catch (IOException e) {
+                onSelectorThread(key, () -> respondError(key, connection, "404 Not Found"));
+            }
+        });
+    }
+
+    // Sends a file from the cache, or straight from disk when it was too large to be cached (cached is null)
+    private void startBody(SelectionKey key, Connection connection, AdaptiveSession.Segment target, ByteBuffer cached) throws IOException {
+        String contentType = target.file().getFileName().toString().endsWith(".ts") ? "video/mp2t" : "application/vnd.apple.mpegurl";
+        String extraHeader = target.resolution() != null ? "X-Rendition: " + target.resolution() + "\r\n" : "";
+        try {
+            if (cached != null) {
+                connection.startResponse("200 OK", contentType, extraHeader, cached);
+            } else {
+                FileChannel body = FileChannel.open(target.file(), StandardOpenOption.READ);
+                connection.startResponse("200 OK", contentType, extraHeader, body, body.size());
+            }
+        } catch (IOException e) {
+            respondError(key, connection, "404 Not Found");
+            return;
+        }
+        key.interestOps(SelectionKey.OP_WRITE);
+        onWritable(key);
+    }
+
+    // Runs a step of a connection's response on the selector thread, unless the connection was closed meanwhile
+    private void onSelectorThread(SelectionKey key, SelectorTask task) {
+        selectorTasks.add(() -> {
+            if (!key.isValid()) return;
+            try {
+                task.run();
+            } catch (IOException | CancelledKeyException e) {
+                closeConnection(key);
+            }
+        });
+        selector.wakeup();
+    }
+
+    private void onWritable(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        if (connection.header.hasRemaining()) {
+            connection.channel.write(connection.header);
+            if (connection.header.hasRemaining()) return;
+        }
+
+        if (connection.cachedBody != null && connection.cachedBody.hasRemaining()) {
+            BYTES_SENT.add(connection.channel.write(connection.cachedBody));
+            if (connection.cachedBody.hasRemaining()) return; // socket buffer full, wait for the next OP_WRITE
+        }
+
+        while (connection.body != null && connection.bodyPosition < connection.bodySize) {
+            long sent = connection.body.transferTo(connection.bodyPosition,
+                    Math.min(TRANSFER_CHUNK, connection.bodySize - connection.bodyPosition), connection.channel);
+            if (sent == 0) return; // socket buffer full, wait for the next OP_WRITE
+            connection.bodyPosition += sent;
+            BYTES_SENT.add(sent);
+        }
+
+        connection.finishResponse();
+        if (!connection.keepAlive) {
+            closeConnection(key);
+            return;
+        }
+        key.interestOps(SelectionKey.OP_READ);
+        if (connection.request.position() > 0) {
+            parseRequest(key, connection);
+        }
+    }
+
+    // Maps /hls/<filename>/<entry> to a file of a segmented video and /abr/<session id>/<entry> to the file
+    // selected by an adaptive session; null if there is no such file
+    private AdaptiveSession.Segment resolve(String target) {
+        int query = target.indexOf('?');
+        String path = URLDecoder.decode(query >= 0 ? target.substring(0, query) : target, StandardCharsets.UTF_8);
+        String[] parts = path.split("/");
+        if (parts.length != 4 || !parts[0].isEmpty() || !ALLOWED_ENTRY.matcher(parts[3]).matches()) {
+            return null;
+        }
+        if (parts[1].equals("hls")) {
+            Path dir = segmenter.getReadyDirectory(parts[2]);
+            return dir == null ? null : new AdaptiveSession.Segment(dir.resolve(parts[3]), null);
+        }
+        if (parts[1].equals("abr")) {
+            AdaptiveSession session = adaptiveStreams.get(parts[2]);
+            if (session == null) return null;
+            return parts[3].equals(HlsSegmenter.PLAYLIST)
+                    ? new AdaptiveSession.Segment(session.playlist(), null)
+                    : session.segment(parts[3]);
+        }
+        return null;
+    }
+
+    // A /hls/ request for a catalog file that is not segmented yet starts its segmentation; null for anything else
+    private CompletableFuture<Path> startSegmenting(String target) {
+        int query = target.indexOf('?');
+        String[] parts = URLDecoder.decode(query >= 0 ? target.substring(0, query) : target, StandardCharsets.UTF_8).split("/");
+        if (parts.length != 4 || !parts[1].equals("hls") || !ALLOWED_ENTRY.matcher(parts[3]).matches()) {
+            return null;
+        }
+        VideoFile file = catalog.apply(parts[2]);
+        return file == null ? null : segmenter.segment(file);
+    }
+
+    private void respondError(SelectionKey key, Connection connection, String status) throws IOException {
+        connection.keepAlive = false;
+        connection.startResponse(status, "text/plain", "", null, 0);
+        key.interestOps(SelectionKey.OP_WRITE);
+        onWritable(key);
+    }
+
+    private static int findHeaderEnd(ByteBuffer request) {
+        byte[] bytes = request.array();
+        for (int i = 0; i + 3 < request.position(); i++) {
+            if (bytes[i] == '\r' && bytes[i + 1] == '\n' && bytes[i + 2] == '\r' && bytes[i + 3] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void closeConnection(SelectionKey key) {
+        key.cancel();
+        if (key.attachment() instanceof Connection connection && connection.channel.isOpen()) {
+            openConnections.decrementAndGet();
+            connection.finishResponse();
+            try {
+                connection.channel.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    private interface SelectorTask {
+        void run() throws IOException;
+    }
+
+    // Per-socket state: the request being read and the response being written
+    private static class Connection {
+        private final SocketChannel channel;
+        private final ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST_HEADER);
+        private ByteBuffer header = ByteBuffer.allocate(0);
+        private ByteBuffer cachedBody; // either this or body
+        private FileChannel body;
+        private long bodyPosition;
+        private long bodySize;
+        private boolean keepAlive;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void startResponse(String status, String contentType, String extraHeader, ByteBuffer cachedBody) {
+            startResponse(status, contentType, extraHeader, null, cachedBody.remaining());
+            this.cachedBody = cachedBody;
+        }
+
+        void startResponse(String status, String contentType, String extraHeader, FileChannel body, long size) {
+            this.header = ByteBuffer.wrap(("HTTP/1.1 " + status + "\r\n"
+                    + "Content-Type: " + contentType + "\r\n"
+                    + extraHeader
+                    + "Content-Length: " + size + "\r\n"
+                    + "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            this.body = body;
+            this.bodyPosition = 0;
+            this.bodySize = size;
+        }
+
+        void finishResponse() {
+            cachedBody = null;
+            if (body != null) {
+                try {
+                    body.close();
+                } catch (IOException ignored) {}
+                body = null;
+            }
+        }
+    }
+}
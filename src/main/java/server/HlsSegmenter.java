@@ -0,0 +1,200 @@
+package server;
+
+import shared.VideoFile;
+import utils.FfmpegCommandRunner;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+// Cuts each VideoFile once into fixed-duration MPEG-TS segments plus a VOD playlist, under hls/<filename>/.
+// Segmentation is a stream copy (no re-encode) and its output is kept on disk, so every later viewer of the
+// same file is served from the segments without any process running for them. The size and mtime of the source
+// are saved with the segments (SourceStamp), so a source replaced in videos/ is segmented again.
+// On an edge (with an OriginClient) nothing is cut locally: "segmenting" pulls the playlist from the origin, and
+// each segment is pulled on its first request (fetchMissing), the next one being prefetched meanwhile.
+public class HlsSegmenter {
+
+    private static final Logger logger = Logger.getLogger(HlsSegmenter.class.getName());
+    public static final String PLAYLIST = "index.m3u8";
+    private static final int SEGMENT_SECONDS = 4;
+    private static final Pattern SEGMENT_NAME = Pattern.compile("seg(\\d{5})\\.ts");
+    private static final String SOURCE_STAMP = ".source";
+
+    private final Path videoDir;
+    private final Path hlsRoot;
+    private final OriginClient origin; // null on an origin or a standalone server
+    private final Map<String, CompletableFuture<Path>> segmentations = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> pulledPlaylists = new ConcurrentHashMap<>(); // edge: entries of each playlist
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    public HlsSegmenter(Path videoDir, Path hlsRoot) {
+        this(videoDir, hlsRoot, null);
+    }
+
+    public HlsSegmenter(Path videoDir, Path hlsRoot, OriginClient origin) {
+        this.videoDir = videoDir;
+        this.hlsRoot = hlsRoot;
+        this.origin = origin;
+    }
+
+    // Returns the directory holding the playlist and segments, segmenting the file on first use.
+    // Concurrent first viewers of the same file share one segmentation.
+    public CompletableFuture<Path> segment(VideoFile file) {
+        return segmentations.computeIfAbsent(file.getFilename(),
+                filename -> track(filename, CompletableFuture.supplyAsync(() -> run(file), executor)));
+    }
+
+    // The catalog reports the source updated or removed. A removed source is forgotten; one segmented in this
+    // process is checked again once its current segmentation is over, and segmented again if it changed.
+    public void invalidate(VideoFile file) {
+        segmentations.computeIfPresent(file.getFilename(), (filename, current) ->
+                origin == null && Files.exists(videoDir.resolve(filename))
+                        ? track(filename, current.handleAsync((dir, error) -> run(file), executor))
+                        : null);
+    }
+
+    // A failed segmentation may be retried by the next viewer
+    private CompletableFuture<Path> track(String filename, CompletableFuture<Path> result) {
+        result.whenComplete((dir, error) -> {
+            if (error != null) segmentations.remove(filename, result);
+        });
+        return result;
+    }
+
+    // Directory of a file that is already segmented, or null; used by the HTTP server to resolve requests
+    public Path getReadyDirectory(String filename) {
+        CompletableFuture<Path> segmentation = segmentations.get(filename);
+        if (segmentation != null && segmentation.isDone() && !segmentation.isCompletedExceptionally()) {
+            return segmentation.join();
+        }
+        return null;
+    }
+
+    // Whether a segment can be served: on disk, or on an edge, listed in a playlist pulled from the origin
+    public boolean hasSegment(Path file) {
+        if (Files.exists(file)) return true;
+        Set<String> entries = origin == null || file.getParent() == null ? null
+                : pulledPlaylists.get(file.getParent().getFileName().toString());
+        return entries != null && entries.contains(file.getFileName().toString());
+    }
+
+    // Edge: starts pulling a segment missing from a pulled playlist, and prefetches the one after it.
+    // Null when there is nothing to pull (on an origin, already on disk, or not a listed segment).
+    public CompletableFuture<Path> fetchMissing(Path file) {
+        if (origin == null || Files.exists(file) || !hasSegment(file)) {
+            return null;
+        }
+        String filename = file.getParent().getFileName().toString();
+        String entry = file.getFileName().toString();
+        CompletableFuture<Path> download = origin.fetch(filename, entry, file);
+        Matcher segment = SEGMENT_NAME.matcher(entry);
+        if (segment.matches()) {
+            Path next = file.resolveSibling(String.format("seg%05d.ts", Integer.parseInt(segment.group(1)) + 1));
+            if (!Files.exists(next) && hasSegment(next)) {
+                origin.fetch(filename, next.getFileName().toString(), next);
+            }
+        }
+        return download;
+    }
+
+    private Path run(VideoFile file) {
+        Path target = hlsRoot.resolve(file.getFilename());
+        Path source = videoDir.resolve(file.getFilename());
+        if (Files.exists(target.resolve(PLAYLIST))) {
+            if (origin != null) {
+                rememberPlaylist(file.getFilename(), target);
+                return target;
+            }
+            if (SourceStamp.matches(source, target.resolve(SOURCE_STAMP))) {
+                return target;
+            }
+            logger.info(file.getFilename() + " changed since it was segmented");
+        }
+        if (origin != null) {
+            return pull(file, target);
+        }
+
+        // Segment into a temporary directory and rename it, so a half-written playlist is never served
+        Path partial = hlsRoot.resolve(file.getFilename() + ".part");
+        try {
+            deleteRecursively(partial);
+            Files.createDirectories(partial);
+            logger.info("Segmenting " + file.getFilename() + " for HLS");
+            long start = System.nanoTime();
+            // Taken before segmenting, so a source replaced meanwhile does not match it
+            SourceStamp stamp = SourceStamp.of(source);
+            boolean segmented = stamp != null && FfmpegCommandRunner.segment(source.toString(),
+                    partial.resolve(PLAYLIST).toString(), partial.resolve("seg%05d.ts").toString(), SEGMENT_SECONDS);
+            if (!segmented) {
+                deleteRecursively(partial);
+                throw new IllegalStateException("HLS segmentation failed for " + file.getFilename());
+            }
+            stamp.write(partial.resolve(SOURCE_STAMP));
+            // Viewers of the previous segments keep the files they have open
+            Path previous = hlsRoot.resolve(file.getFilename() + ".old");
+            deleteRecursively(previous);
+            if (Files.exists(target)) Files.move(target, previous, StandardCopyOption.ATOMIC_MOVE);
+            Files.move(partial, target, StandardCopyOption.ATOMIC_MOVE);
+            deleteRecursively(previous);
+            logger.info("Segmented " + file.getFilename() + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+            return target;
+        } catch (IOException e) {
+            throw new IllegalStateException("HLS segmentation failed for " + file.getFilename() + ": " + e.getMessage(), e);
+        }
+    }
+
+    // Edge: only the playlist is pulled here, segments follow on their first request
+    private Path pull(VideoFile file, Path target) {
+        Path partial = hlsRoot.resolve(file.getFilename() + ".part");
+        try {
+            deleteRecursively(partial);
+            Files.createDirectories(partial);
+            long start = System.nanoTime();
+            origin.fetch(file.getFilename(), PLAYLIST, partial.resolve(PLAYLIST)).join();
+            Files.move(partial, target, StandardCopyOption.ATOMIC_MOVE);
+            rememberPlaylist(file.getFilename(), target);
+            logger.info("Pulled the playlist of " + file.getFilename() + " from the origin in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms");
+            return target;
+        } catch (IOException | CompletionException e) {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            throw new IllegalStateException("Could not pull " + file.getFilename() + " from the origin: " + cause.getMessage(), cause);
+        }
+    }
+
+    private void rememberPlaylist(String filename, Path dir) {
+        try {
+            Set<String> entries = new HashSet<>();
+            for (String line : Files.readAllLines(dir.resolve(PLAYLIST))) {
+                if (!line.isBlank() && !line.startsWith("#")) entries.add(line.trim());
+            }
+            pulledPlaylists.put(filename, Set.copyOf(entries));
+        } catch (IOException e) {
+            logger.warning("Could not read the playlist of " + filename + ": " + e.getMessage());
+        }
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        if (!Files.exists(dir)) return;
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+}
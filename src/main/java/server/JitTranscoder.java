@@ -0,0 +1,338 @@
+package server;
+
+import shared.VideoFile;
+import utils.FfmpegCommandRunner;
+import utils.Metrics;
+import utils.ProcessSupervisor;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+// Lazy mode (-Dtranscode.lazy=true): a variant is produced on its first request instead of ahead of time.
+// Encodes write MPEG-TS under jit/ that viewers can stream while it grows; the finished file is remuxed into its
+// container in the video directory. Concurrent requests for the same variant share one job.
+// Produced variants form a disk cache bounded by -Dtranscode.cacheMegabytes: the least recently played ones are
+// deleted beyond it (they stay in the catalog and are produced again when requested). Last play times are kept
+// in videos/.jit-cache so the cache survives restarts: plays only mark the index dirty, and it is written every
+// INDEX_FLUSH_SECONDS and at shutdown, or at once when a variant is added or evicted. Uploaded files are never evicted.
+public class JitTranscoder {
+
+    private static final Logger logger = Logger.getLogger(JitTranscoder.class.getName());
+    private static final String INDEX_FILE = ".jit-cache";
+    private static final long FIRST_BYTES = 256 * 1024; // enough for FFMPEG to find the streams of the growing file
+    private static final long FIRST_BYTES_TIMEOUT_MS = 60_000;
+    private static final long GROWING_FILE_GRACE_SECONDS = 30;
+    private static final long INDEX_FLUSH_SECONDS = 30;
+    private static final Metrics.Histogram DURATION = Metrics.histogram("transcode_duration_seconds",
+            "Wall time of successful background conversions", 1e-3, 3_600_000, "kind", "on_demand");
+
+    private final Path videoDir;
+    private final Path workDir;
+    private final long maxBytes;
+    private final Predicate<VideoFile> inUse;
+    private final Path indexPath;
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final ScheduledExecutorService indexFlusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "jit-cache-index");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Produced variants still on disk: filename -> size and last play time
+    private final Map<String, CachedVariant> cached = new HashMap<>();
+    private long cachedBytes;
+    private boolean indexDirty; // last play times changed since the index was written
+
+    private final AtomicLong evictions = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder hitNanos = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder missNanos = new LongAdder();
+
+    public JitTranscoder(Path videoDir, Path workDir, long maxBytes, Predicate<VideoFile> inUse) {
+        this.videoDir = videoDir;
+        this.workDir = workDir;
+        this.maxBytes = maxBytes;
+        this.inUse = inUse;
+        this.indexPath = videoDir.resolve(INDEX_FILE);
+        load();
+        indexFlusher.scheduleWithFixedDelay(this::flushIndex, INDEX_FLUSH_SECONDS, INDEX_FLUSH_SECONDS, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flushIndex, "jit-cache-index-flush"));
+    }
+
+    // Disk cache budget: -Dtranscode.cacheMegabytes=10240
+    public static JitTranscoder fromSystemProperties(String videoDir, Predicate<VideoFile> inUse) {
+        return new JitTranscoder(Path.of(videoDir), Path.of("jit"),
+                Integer.getInteger("transcode.cacheMegabytes", 10240) * 1024L * 1024, inUse);
+    }
+
+    public boolean isOnDisk(VideoFile file) {
+        return Files.exists(videoDir.resolve(file.getFilename()));
+    }
+
+    // Produces target from source (another file of the same title on disk) unless it is already being produced.
+    // A source of the same resolution is remuxed, anything else is encoded. A new encode is refused with
+    // BusyException while every encode slot is taken, rather than keeping its viewer waiting in the queue.
+    public Job request(VideoFile source, VideoFile target) throws ProcessSupervisor.BusyException {
+        boolean copy = source.getResolution().equals(target.getResolution());
+        if (!copy && !jobs.containsKey(target.getFilename()) && !isOnDisk(target)
+                && !ProcessSupervisor.hasFreeSlot(ProcessSupervisor.Kind.ENCODE)) {
+            throw new ProcessSupervisor.BusyException("no free encode slot for " + target.getFilename());
+        }
+        Job job = jobs.computeIfAbsent(target.getFilename(), filename -> {
+            if (isOnDisk(target)) {
+                return null; // finished between the caller's check and now
+            }
+            Job started = new Job(copy ? null : workDir.resolve(filename + ".ts"));
+            executor.submit(() -> run(source, target, started));
+            return started;
+        });
+        return job != null ? job : Job.finished(videoDir.resolve(target.getFilename()));
+    }
+
+    // Called on every play of a catalog file; refreshes the last play time of produced variants in memory only
+    public synchronized void touch(VideoFile file) {
+        CachedVariant variant = cached.get(file.getFilename());
+        if (variant != null) {
+            variant.lastPlayedMillis = System.currentTimeMillis();
+            indexDirty = true;
+        }
+    }
+
+    // Writes the index if plays changed it; a crash loses at most INDEX_FLUSH_SECONDS of play times
+    private synchronized void flushIndex() {
+        if (indexDirty) {
+            save();
+        }
+    }
+
+    // Time from a play request to its stream being ready, split by whether the variant had to be produced
+    public void recordFirstByte(boolean miss, long nanos) {
+        (miss ? misses : hits).increment();
+        (miss ? missNanos : hitNanos).add(nanos);
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getAverageHitMillis() {
+        long count = hits.sum();
+        return count == 0 ? 0 : hitNanos.sum() / count / 1_000_000;
+    }
+
+    public long getAverageMissMillis() {
+        long count = misses.sum();
+        return count == 0 ? 0 : missNanos.sum() / count / 1_000_000;
+    }
+
+    public int getJobCount() {
+        return jobs.size();
+    }
+
+    public synchronized long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    public synchronized int getCachedCount() {
+        return cached.size();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    private void run(VideoFile source, VideoFile target, Job job) {
+        Path input = videoDir.resolve(source.getFilename());
+        Path output = videoDir.resolve(target.getFilename());
+        Path partial = videoDir.resolve(target.getName() + "-" + target.getResolution() + ".part." + target.getFormat());
+        long start = System.nanoTime();
+        try {
+            boolean produced;
+            if (job.growing == null) {
+                logger.info("On demand: remuxing " + target.getFilename() + " from " + source.getFilename());
+                produced = FfmpegCommandRunner.remux(input.toString(), partial.toString());
+            } else {
+                logger.info("On demand: encoding " + target.getFilename() + " from " + source.getFilename());
+                Files.createDirectories(workDir);
+                produced = FfmpegCommandRunner.convertToTs(input.toString(), job.growing.toString(), target.getResolution())
+                        && FfmpegCommandRunner.remux(job.growing.toString(), partial.toString());
+            }
+            if (!produced) {
+                throw new IOException("FFMPEG failed");
+            }
+            Files.move(partial, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+            DURATION.record(elapsedMillis);
+            logger.info("On demand: " + target.getFilename() + " ready in " + elapsedMillis + " ms");
+            add(target, Files.size(output));
+            job.done.complete(output);
+        } catch (IOException | RuntimeException e) {
+            logger.warning("On demand production of " + target.getFilename() + " failed: " + e.getMessage());
+            job.done.completeExceptionally(new IllegalStateException("Could not produce " + target.getFilename(), e));
+        } finally {
+            try {
+                Files.deleteIfExists(partial);
+            } catch (IOException ignored) {}
+            jobs.remove(target.getFilename());
+            // Viewers reading the growing file keep their open handle; the delay covers one that was just given its path
+            if (job.growing != null) {
+                CompletableFuture.delayedExecutor(GROWING_FILE_GRACE_SECONDS, TimeUnit.SECONDS, executor).execute(() -> {
+                    try {
+                        Files.deleteIfExists(job.growing);
+                    } catch (IOException ignored) {}
+                });
+            }
+        }
+    }
+
+    // Records a produced variant and deletes the least recently played ones beyond the budget.
+    // Variants being streamed are skipped; the new one always stays.
+    private synchronized void add(VideoFile file, long size) {
+        cached.put(file.getFilename(), new CachedVariant(file, size, System.currentTimeMillis()));
+        cachedBytes += size;
+        while (cachedBytes > maxBytes) {
+            Optional<CachedVariant> oldest = cached.values().stream()
+                    .filter(variant -> !variant.file.equals(file) && !inUse.test(variant.file))
+                    .min(Comparator.comparingLong(variant -> variant.lastPlayedMillis));
+            if (oldest.isEmpty()) break;
+            CachedVariant evicted = oldest.get();
+            try {
+                Files.deleteIfExists(videoDir.resolve(evicted.file.getFilename()));
+            } catch (IOException e) {
+                logger.warning("Could not evict " + evicted.file.getFilename() + ": " + e.getMessage());
+                break;
+            }
+            cached.remove(evicted.file.getFilename());
+            cachedBytes -= evicted.size;
+            evictions.incrementAndGet();
+            logger.info("On demand cache: evicted " + evicted.file.getFilename());
+        }
+        save();
+    }
+
+    // Keeps the variants of a previous run that are still on disk and drops its unfinished encodes
+    private synchronized void load() {
+        if (Files.isDirectory(workDir)) {
+            try (Stream<Path> leftovers = Files.list(workDir)) {
+                for (Path leftover : leftovers.toList()) {
+                    Files.deleteIfExists(leftover);
+                }
+            } catch (IOException e) {
+                logger.warning("Could not clean " + workDir + ": " + e.getMessage());
+            }
+        }
+        if (!Files.exists(indexPath)) return;
+        try {
+            for (String line : Files.readAllLines(indexPath)) {
+                String[] fields = line.split("\t");
+                VideoFile file = fields.length == 2 ? VideoFile.fromFilename(fields[0]) : null;
+                if (file == null || !isOnDisk(file)) continue;
+                long size = Files.size(videoDir.resolve(fields[0]));
+                cached.put(fields[0], new CachedVariant(file, size, Long.parseLong(fields[1])));
+                cachedBytes += size;
+            }
+        } catch (IOException | NumberFormatException e) {
+            logger.warning("On demand cache index unreadable, produced variants are kept but not evicted: " + e.getMessage());
+        }
+    }
+
+    // Writes to a temporary file and renames it, so a crash never leaves a truncated index
+    private void save() {
+        Path tmp = indexPath.resolveSibling(INDEX_FILE + ".tmp");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(tmp)) {
+                for (CachedVariant variant : cached.values()) {
+                    writer.write(variant.file.getFilename() + "\t" + variant.lastPlayedMillis + "\n");
+                }
+            }
+            Files.move(tmp, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            indexDirty = false;
+        } catch (IOException e) {
+            logger.warning("Could not save on demand cache index: " + e.getMessage());
+        }
+    }
+
+    // One variant being produced
+    public static class Job {
+        private final Path growing; // MPEG-TS being encoded, null for a remux
+        private final CompletableFuture<Path> done = new CompletableFuture<>();
+
+        private Job(Path growing) {
+            this.growing = growing;
+        }
+
+        private static Job finished(Path file) {
+            Job job = new Job(null);
+            job.done.complete(file);
+            return job;
+        }
+
+        // Completes with the finished file in the video directory
+        public CompletableFuture<Path> getDone() {
+            return done;
+        }
+
+        // Blocks until the variant can be streamed. Returns the growing MPEG-TS to follow while the encode runs,
+        // or null once the finished file is there (remuxes are only waited for, they take seconds).
+        public Path awaitStreamable() throws IOException {
+            long deadline = System.currentTimeMillis() + FIRST_BYTES_TIMEOUT_MS;
+            while (System.currentTimeMillis() < deadline) {
+                if (done.isDone()) {
+                    try {
+                        done.join();
+                        return null;
+                    } catch (CompletionException e) {
+                        throw new IOException(e.getCause().getMessage(), e.getCause());
+                    }
+                }
+                if (growing != null && Files.exists(growing) && Files.size(growing) >= FIRST_BYTES) {
+                    return growing;
+                }
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for " + growing);
+                }
+            }
+            throw new IOException("No output after " + FIRST_BYTES_TIMEOUT_MS / 1000 + " s");
+        }
+    }
+
+    private static class CachedVariant {
+        private final VideoFile file;
+        private final long size;
+        private long lastPlayedMillis;
+
+        CachedVariant(VideoFile file, long size, long lastPlayedMillis) {
+            this.file = file;
+            this.size = size;
+            this.lastPlayedMillis = lastPlayedMillis;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// Times and byte offsets of the video keyframes of one file, in time order. Built once, when a file is probed
+// (CatalogIndex) or remuxed to MPEG-TS (MpegTsCache), and saved next to it, so a seek finds where to start with a
+// binary search instead of reading the file.
+public final class KeyframeIndex {
+
+    private static final int MAGIC = 0x4B464931; // "KFI1"
+    private static final int TS_PACKET_SIZE = PacedStream.TS_PACKET_SIZE;
+
+    private final double[] times;
+    private final long[] offsets;
+
+    private KeyframeIndex(double[] times, long[] offsets) {
+        this.times = times;
+        this.offsets = offsets;
+    }
+
+    public int size() {
+        return times.length;
+    }
+
+    public double timeAt(int index) {
+        return times[index];
+    }
+
+    // Byte offset of the keyframe in its file, -1 when the container does not expose it
+    public long offsetAt(int index) {
+        return offsets[index];
+    }
+
+    // Index of the last keyframe at or before seconds (the first keyframe for anything earlier), -1 when empty
+    public int floor(double seconds) {
+        if (times.length == 0) return -1;
+        int found = Arrays.binarySearch(times, seconds);
+        return found >= 0 ? found : Math.max(0, -found - 2);
+    }
+
+    // Saved to a temporary file and renamed, so a reader never sees half an index
+    public void write(Path path) throws IOException {
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(times.length);
+            for (int i = 0; i < times.length; i++) {
+                out.writeDouble(times[i]);
+                out.writeLong(offsets[i]);
+            }
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Returns null when there is no index at path or it is not one
+    public static KeyframeIndex read(Path path) throws IOException {
+        if (!Files.exists(path)) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC) return null;
+            int count = in.readInt();
+            if (count < 0 || count > Files.size(path) / 16) return null;
+            double[] times = new double[count];
+            long[] offsets = new long[count];
+            for (int i = 0; i < count; i++) {
+                times[i] = in.readDouble();
+                offsets[i] = in.readLong();
+            }
+            return new KeyframeIndex(times, offsets);
+        }
+    }
+
+    // Scans an MPEG-TS file for video keyframes: TS packets that start a video PES (stream id 0xE0-0xEF) and carry
+    // the random access indicator. Times are PES timestamps relative to the first keyframe.
+    public static KeyframeIndex scanTs(Path tsFile) throws IOException {
+        Builder builder = new Builder();
+        long firstPts = -1;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(TS_PACKET_SIZE * 5_000);
+        try (FileChannel channel = FileChannel.open(tsFile, StandardOpenOption.READ)) {
+            long position = 0;
+            while (channel.read(buffer) > 0 || buffer.position() > 0) {
+                buffer.flip();
+                if (buffer.remaining() < TS_PACKET_SIZE) break;
+                while (buffer.remaining() >= TS_PACKET_SIZE) {
+                    int p = buffer.position();
+                    long pts = keyframePts(buffer, p);
+                    if (pts >= 0) {
+                        if (firstPts < 0) firstPts = pts;
+                        builder.add((pts - firstPts) / 90_000.0, position);
+                    }
+                    buffer.position(p + TS_PACKET_SIZE);
+                    position += TS_PACKET_SIZE;
+                }
+                buffer.compact();
+            }
+        }
+        return builder.build();
+    }
+
+    // PTS (90 kHz) of the video PES a keyframe packet starts, or -1 when the packet does not start one
+    private static long keyframePts(ByteBuffer packet, int p) {
+        boolean payloadStart = (packet.get(p + 1) & 0x40) != 0;
+        int control = (packet.get(p + 3) >> 4) & 0x03;
+        if (packet.get(p) != 0x47 || !payloadStart || control != 0x03) return -1; // needs adaptation field and payload
+        int adaptationLength = packet.get(p + 4) & 0xFF;
+        if (adaptationLength == 0 || (packet.get(p + 5) & 0x40) == 0) return -1; // no random access indicator
+        int pes = p + 5 + adaptationLength;
+        if (pes + 14 > p + TS_PACKET_SIZE) return -1;
+        boolean pesStart = packet.get(pes) == 0 && packet.get(pes + 1) == 0 && packet.get(pes + 2) == 1;
+        int streamId = packet.get(pes + 3) & 0xFF;
+        if (!pesStart || (streamId & 0xF0) != 0xE0 || (packet.get(pes + 7) & 0x80) == 0) return -1;
+        return ((long) (packet.get(pes + 9) & 0x0E) << 29) | ((packet.get(pes + 10) & 0xFF) << 22)
+                | ((packet.get(pes + 11) & 0xFE) << 14) | ((packet.get(pes + 12) & 0xFF) << 7)
+                | ((packet.get(pes + 13) & 0xFE) >> 1);
+    }
+
+    // Collects keyframes in any order; build() sorts them by time
+    public static final class Builder {
+        private double[] times = new double[256];
+        private long[] offsets = new long[256];
+        private int count;
+
+        public void add(double seconds, long offset) {
+            if (count == times.length) {
+                times = Arrays.copyOf(times, count * 2);
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            times[count] = seconds;
+            offsets[count] = offset;
+            count++;
+        }
+
+        public KeyframeIndex build() {
+            Integer[] order = new Integer[count];
+            for (int i = 0; i < count; i++) order[i] = i;
+            Arrays.sort(order, (a, b) -> Double.compare(times[a], times[b]));
+            double[] sortedTimes = new double[count];
+            long[] sortedOffsets = new long[count];
+            for (int i = 0; i < count; i++) {
+                sortedTimes[i] = times[order[i]];
+                sortedOffsets[i] = offsets[order[i]];
+            }
+            return new KeyframeIndex(sortedTimes, sortedOffsets);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package server;
+
+import shared.MediaInfo;
+import utils.FfmpegCommandRunner;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+// Measures what a client needs to play a file. Runs once per file; CatalogIndex caches the result.
+public class MediaProbe {
+
+    private static final double PEAK_WINDOW_SECONDS = 4; // about one HLS segment, what a player buffer smooths out
+
+    // Returns null when ffprobe cannot read the file. The time and byte offset of every video keyframe go to
+    // keyframes.
+    public static MediaInfo probe(Path file, KeyframeIndex.Builder keyframes) {
+        Map<String, String> format = FfmpegCommandRunner.probe(file.toString());
+        if (format.isEmpty()) {
+            return null;
+        }
+        double duration = parseDouble(format.get("duration"));
+        long averageKbps = (long) (parseDouble(format.get("bit_rate")) / 1000);
+
+        // Bytes per window of every stream, and the spacing of video keyframes
+        Map<Long, Long> bytesPerWindow = new HashMap<>();
+        double[] spacing = {-1, -1, 0}; // first keyframe time, last keyframe time, count
+        boolean scanned = FfmpegCommandRunner.probePackets(file.toString(), (video, time, size, keyframe, position) -> {
+            bytesPerWindow.merge((long) Math.floor(time / PEAK_WINDOW_SECONDS), (long) size, Long::sum);
+            if (video && keyframe) {
+                if (spacing[0] < 0) spacing[0] = time;
+                spacing[1] = time;
+                spacing[2]++;
+                if (keyframes != null) keyframes.add(time, position);
+            }
+        });
+
+        long peakKbps = 0;
+        if (scanned) {
+            long peakBytes = bytesPerWindow.values().stream().mapToLong(Long::longValue).max().orElse(0);
+            peakKbps = (long) (peakBytes * 8 / PEAK_WINDOW_SECONDS / 1000);
+        }
+        // A peak below the average means the scan failed or the file is shorter than a window
+        peakKbps = Math.max(peakKbps, averageKbps);
+        double keyframeInterval = spacing[2] > 1 ? (spacing[1] - spacing[0]) / (spacing[2] - 1) : 0;
+
+        return new MediaInfo(duration, averageKbps, peakKbps, format.getOrDefault("codec_name", ""), keyframeInterval);
+    }
+
+    private static double parseDouble(String value) {
+        try {
+            return value == null ? 0 : Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
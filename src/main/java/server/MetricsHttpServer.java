@@ -0,0 +1,80 @@
+package server;
+
+import utils.Metrics;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+// Serves GET /metrics in the Prometheus text format for a local scraper. Bound to the loopback address unless
+// -Dmetrics.bind says otherwise; one short-lived virtual thread per scrape.
+public class MetricsHttpServer {
+
+    private static final Logger logger = Logger.getLogger(MetricsHttpServer.class.getName());
+    private static final int MAX_REQUEST_HEADER = 8192;
+
+    private final InetSocketAddress address;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    public MetricsHttpServer(InetSocketAddress address) {
+        this.address = address;
+    }
+
+    // -Dmetrics.port=9100 (0 disables the endpoint) -Dmetrics.bind=127.0.0.1
+    public static MetricsHttpServer fromSystemProperties() {
+        int port = Integer.getInteger("metrics.port", 9100);
+        if (port == 0) return null;
+        String bind = System.getProperty("metrics.bind");
+        return new MetricsHttpServer(bind == null
+                ? new InetSocketAddress(InetAddress.getLoopbackAddress(), port)
+                : new InetSocketAddress(bind, port));
+    }
+
+    public void start() throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address);
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    SocketChannel client = serverChannel.accept();
+                    executor.submit(() -> serve(client));
+                } catch (IOException e) {
+                    logger.severe("Metrics accept error: " + e.getMessage());
+                    return;
+                }
+            }
+        }, "metrics-http");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        logger.info("Metrics endpoint on http://" + address.getHostString() + ":" + address.getPort() + "/metrics");
+    }
+
+    private void serve(SocketChannel channel) {
+        try (SocketChannel client = channel) {
+            ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST_HEADER);
+            String header = "";
+            while (request.hasRemaining() && !header.contains("\r\n\r\n")) {
+                if (client.read(request) < 0) return;
+                header = new String(request.array(), 0, request.position(), StandardCharsets.ISO_8859_1);
+            }
+            String[] requestLine = header.split("\r\n", 2)[0].split(" ");
+            boolean found = requestLine.length == 3 && requestLine[0].equals("GET")
+                    && requestLine[1].split("\\?")[0].equals("/metrics");
+            byte[] body = (found ? Metrics.prometheus() : "not found\n").getBytes(StandardCharsets.UTF_8);
+            ByteBuffer response = ByteBuffer.wrap(((found ? "HTTP/1.1 200 OK" : "HTTP/1.1 404 Not Found") + "\r\n"
+                    + "Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n"
+                    + "Content-Length: " + body.length + "\r\n"
+                    + "Connection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            client.write(new ByteBuffer[]{response, ByteBuffer.wrap(body)});
+        } catch (IOException ignored) {
+            // scraper went away
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package server;
+
+import shared.VideoFile;
+import utils.FfmpegCommandRunner;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+// Remuxes each VideoFile once into an MPEG-TS file under ts/, for the native UDP/RTP sender.
+// Stream copy only, so this costs one read of the source; every later viewer is served from the same file.
+// Each TS file gets a keyframe index (<file>.ts.kfi) next to it, which seeks use to find the chunk to start from,
+// and the size and mtime of its source (<file>.ts.source), so that a source replaced in videos/ is remuxed again.
+public class MpegTsCache {
+
+    private static final Logger logger = Logger.getLogger(MpegTsCache.class.getName());
+
+    private final Path videoDir;
+    private final Path tsRoot;
+    private final Map<String, CompletableFuture<Path>> remuxes = new ConcurrentHashMap<>();
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    public MpegTsCache(Path videoDir, Path tsRoot) {
+        this.videoDir = videoDir;
+        this.tsRoot = tsRoot;
+    }
+
+    // Returns the MPEG-TS version of the file, remuxing it on first use.
+    // Concurrent first viewers of the same file share one remux.
+    public CompletableFuture<Path> prepare(VideoFile file) {
+        return remuxes.computeIfAbsent(file.getFilename(),
+                filename -> track(filename, CompletableFuture.supplyAsync(() -> run(file), executor)));
+    }
+
+    // The catalog reports the source updated or removed. A removed source is forgotten; one remuxed in this process
+    // is checked again once its current remux is over, and remuxed again if it changed.
+    public void invalidate(VideoFile file) {
+        remuxes.computeIfPresent(file.getFilename(), (filename, current) ->
+                Files.exists(videoDir.resolve(filename))
+                        ? track(filename, current.handleAsync((path, error) -> run(file), executor))
+                        : null);
+    }
+
+    // A failed remux may be retried by the next viewer
+    private CompletableFuture<Path> track(String filename, CompletableFuture<Path> result) {
+        result.whenComplete((path, error) -> {
+            if (error != null) remuxes.remove(filename, result);
+        });
+        return result;
+    }
+
+    // Keyframes of the MPEG-TS version of a file, with offsets in the TS file; null before it was prepared
+    public KeyframeIndex getKeyframes(VideoFile file) throws IOException {
+        return KeyframeIndex.read(indexPath(tsRoot.resolve(file.getFilename() + ".ts")));
+    }
+
+    private Path run(VideoFile file) {
+        Path target = tsRoot.resolve(file.getFilename() + ".ts");
+        Path source = videoDir.resolve(file.getFilename());
+        if (Files.exists(target)) {
+            if (SourceStamp.matches(source, stampPath(target))) {
+                // Remuxed before keyframe indexes were kept
+                if (!Files.exists(indexPath(target))) index(target);
+                return target;
+            }
+            logger.info(file.getFilename() + " changed since it was remuxed");
+        }
+
+        // Remux into a temporary file and rename it, so a truncated file is never streamed. Streams of the previous
+        // remux keep the file they have open.
+        Path partial = tsRoot.resolve(file.getFilename() + ".part.ts");
+        try {
+            Files.createDirectories(tsRoot);
+            Files.deleteIfExists(stampPath(target));
+            logger.info("Remuxing " + file.getFilename() + " to MPEG-TS");
+            // Taken before remuxing, so a source replaced meanwhile does not match it
+            SourceStamp stamp = SourceStamp.of(source);
+            if (stamp == null || !FfmpegCommandRunner.remuxToTs(source.toString(), partial.toString())) {
+                Files.deleteIfExists(partial);
+                throw new IllegalStateException("MPEG-TS remux failed for " + file.getFilename());
+            }
+            Files.move(partial, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            Files.deleteIfExists(indexPath(target));
+            index(target);
+            stamp.write(stampPath(target));
+            return target;
+        } catch (IOException e) {
+            throw new IllegalStateException("MPEG-TS remux failed for " + file.getFilename() + ": " + e.getMessage(), e);
+        }
+    }
+
+    // A missing index only disables seeking in the file, so a failure here is not a failed remux
+    private void index(Path tsFile) {
+        try {
+            long start = System.nanoTime();
+            KeyframeIndex keyframes = KeyframeIndex.scanTs(tsFile);
+            keyframes.write(indexPath(tsFile));
+            logger.info("Indexed " + keyframes.size() + " keyframes of " + tsFile.getFileName() + " in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } catch (IOException e) {
+            logger.warning("Could not index keyframes of " + tsFile + ": " + e.getMessage());
+        }
+    }
+
+    private static Path indexPath(Path tsFile) {
+        return tsFile.resolveSibling(tsFile.getFileName() + ".kfi");
+    }
+
+    private static Path stampPath(Path tsFile) {
+        return tsFile.resolveSibling(tsFile.getFileName() + ".source");
+    }
+}
@@ -0,0 +1,138 @@
+package server;
+
+import shared.Protocol;
+import shared.Recovery;
+import shared.VideoFile;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
+
+// Serves UDP and RTP sessions from Java instead of one "ffmpeg -re" per viewer: the file is remuxed to MPEG-TS
+// once (MpegTsCache), then each viewer is a PacedStream on one of a few PacedSender threads.
+public class NativeStreamManager {
+
+    private static final Logger logger = Logger.getLogger(NativeStreamManager.class.getName());
+    private static final long START_DELAY_NANOS = 500_000_000L; // lets the player open its socket first
+    private static final int MIN_FEC_GROUP = 4; // parity overhead of 25 %
+    private static final int MAX_FEC_GROUP = 64; // one rebuild per 64 datagrams, below that NACKs do better
+
+    private final MpegTsCache tsCache;
+    private final SegmentCache cache;
+    private final List<PacedSender> senders;
+    private final boolean recoveryAllowed;
+
+    public NativeStreamManager(MpegTsCache tsCache, SegmentCache cache, int senderThreads, boolean recoveryAllowed) {
+        this.tsCache = tsCache;
+        this.cache = cache;
+        this.recoveryAllowed = recoveryAllowed;
+        this.senders = IntStream.range(0, senderThreads)
+                .mapToObj(i -> new PacedSender("paced-sender-" + i))
+                .toList();
+    }
+
+    // Sender threads: -Dstream.senderThreads=N (default 2)
+    // Loss recovery asked for by clients: -Dstream.recovery=false refuses it
+    public static NativeStreamManager fromSystemProperties(String videoDir, SegmentCache cache) {
+        return new NativeStreamManager(new MpegTsCache(Path.of(videoDir), Path.of("ts")), cache,
+                Integer.getInteger("stream.senderThreads", 2),
+                Boolean.parseBoolean(System.getProperty("stream.recovery", "true")));
+    }
+
+    // The catalog reports the file updated or removed: its MPEG-TS version is checked again before the next stream
+    public void invalidate(VideoFile file) {
+        tsCache.invalidate(file);
+    }
+
+    // The loss recovery the server applies for a requested one: the FEC group is kept between 4 and 64 datagrams
+    public Recovery grant(Recovery requested) {
+        if (!recoveryAllowed || !requested.isEnabled()) {
+            return Recovery.NONE;
+        }
+        int group = requested.fecGroupSize() > 0 ? Math.clamp(requested.fecGroupSize(), MIN_FEC_GROUP, MAX_FEC_GROUP) : 0;
+        return new Recovery(group, requested.nack());
+    }
+
+    // Starts sending the session's file to its client, from the last keyframe at or before startSeconds; the
+    // session's close action stops the stream, and the end of the file closes the session. Blocks while the file is
+    // remuxed, on its first play only. The recovery is one given by grant.
+    public void start(StreamSession session, StreamSessionManager sessionManager, double startSeconds,
+                      Recovery recovery) throws IOException {
+        Path tsFile;
+        try {
+            tsFile = tsCache.prepare(session.getFile()).join();
+        } catch (CompletionException e) {
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        }
+
+        long firstChunk = 0;
+        if (startSeconds > 0) {
+            KeyframeIndex keyframes = tsCache.getKeyframes(session.getFile());
+            int keyframe = keyframes == null ? -1 : keyframes.floor(startSeconds);
+            if (keyframe >= 0) {
+                firstChunk = keyframes.offsetAt(keyframe) / PacedStream.CHUNK_SIZE;
+                logger.info("Session " + session.getId() + ": seek to " + startSeconds + " s starts at keyframe "
+                        + keyframes.timeAt(keyframe) + " s");
+            } else {
+                logger.warning("Session " + session.getId() + ": no keyframe index, playing from the start");
+            }
+        }
+
+        InetSocketAddress destination = new InetSocketAddress(session.getClientAddress(), session.getVideoPort());
+        PacedStream stream = new PacedStream(session.getId(), tsFile, cache, destination, session.getProtocol() == Protocol.RTP_UDP,
+                recovery, firstChunk, System.nanoTime() + START_DELAY_NANOS, () -> sessionManager.close(session));
+        session.setCloseAction(stream::stop);
+        session.setSending(() -> !stream.isStopped());
+        PacedSender sender = senders.stream().min(Comparator.comparingInt(PacedSender::getStreamCount)).orElseThrow();
+        sender.add(stream);
+        logger.info("Session " + session.getId() + ": native " + session.getProtocol() + " stream of " + tsFile
+                + (recovery.isEnabled() ? ", " + recovery : ""));
+    }
+
+    // SDP describing a native RTP stream: a single MPEG-TS payload (type 33) on the session's video port
+    public static String sdpFor(StreamSession session) {
+        String family = session.getClientAddress() instanceof Inet6Address ? "IP6" : "IP4";
+        return "v=0\r\n"
+                + "o=- 0 0 IN " + family + " " + session.getClientAddress().getHostAddress() + "\r\n"
+                + "s=" + session.getFile().getFilename() + "\r\n"
+                + "c=IN " + family + " " + session.getClientAddress().getHostAddress() + "\r\n"
+                + "t=0 0\r\n"
+                + "m=video " + session.getVideoPort() + " RTP/AVP 33\r\n"
+                + "a=rtpmap:33 MP2T/90000\r\n";
+    }
+
+    public int getStreamCount() {
+        return senders.stream().mapToInt(PacedSender::getStreamCount).sum();
+    }
+
+    public long getPacketCount() {
+        return senders.stream().mapToLong(sender -> sender.getStats().getPackets()).sum();
+    }
+
+    public long getBytesSent() {
+        return senders.stream().mapToLong(sender -> sender.getStats().getBytes()).sum();
+    }
+
+    public long getParityBytes() {
+        return senders.stream().mapToLong(sender -> sender.getStats().getParityBytes()).sum();
+    }
+
+    public long getRetransmissionCount() {
+        return senders.stream().mapToLong(sender -> sender.getStats().getRetransmissions()).sum();
+    }
+
+    public long getRetransmittedBytes() {
+        return senders.stream().mapToLong(sender -> sender.getStats().getRetransmittedBytes()).sum();
+    }
+
+    // Worst p99 send-time deviation over the sender threads
+    public long getDeviationP99Micros() {
+        return senders.stream().mapToLong(sender -> sender.getStats().getDeviationPercentileMicros(99)).max().orElse(0);
+    }
+}
@@ -0,0 +1,139 @@
+package server;
+
+import shared.Message;
+import shared.VideoFile;
+import shared.WireCodec;
+import utils.Metrics;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+// An edge's link to its origin: the catalog over the origin's control port, playlists and segments over its HLS
+// server. Downloads go to a temporary file renamed into place, and concurrent misses on one file share a download.
+public class OriginClient {
+
+    private static final Logger logger = Logger.getLogger(OriginClient.class.getName());
+    private static final int CATALOG_PAGE_SIZE = 5000;
+    private static final int MAX_CATALOG_RESTARTS = 3; // an origin still being indexed changes faster than it is read
+    private static final long READY_TIMEOUT_MILLIS = 10 * 60_000; // the origin may be segmenting a long file
+    private static final Metrics.Counter FETCHES = Metrics.counter("edge_origin_fetches_total",
+            "Playlists and segments an edge pulled from its origin");
+    private static final Metrics.Counter FETCHED_BYTES = Metrics.counter("edge_origin_bytes_total",
+            "Bytes an edge pulled from its origin");
+
+    private final Cluster cluster;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final HttpClient http = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).executor(executor).build();
+    private final Map<Path, CompletableFuture<Path>> downloads = new ConcurrentHashMap<>();
+
+    public OriginClient(Cluster cluster) {
+        this.cluster = cluster;
+    }
+
+    // Every file of the origin's catalog in these formats, whatever bitrate it needs. Every page is read from the
+    // catalog version of the first one; if the origin no longer has it, the whole fetch starts over. The last of
+    // MAX_CATALOG_RESTARTS fetches goes on through version changes, so a catalog that keeps changing still loads.
+    public List<VideoFile> fetchCatalog(List<String> formats) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(cluster.getOrigin())) {
+            WireCodec codec = new WireCodec(channel);
+            for (int attempt = 1; ; attempt++) {
+                List<VideoFile> files = fetchCatalogVersion(codec, formats, attempt <= MAX_CATALOG_RESTARTS);
+                if (files != null) {
+                    return files;
+                }
+                logger.info("Origin catalog changed during the fetch, fetching it again");
+            }
+        }
+    }
+
+    // The files of one catalog version, or null when the origin answered a page from another version. Unpinned,
+    // pages of any version are taken, without the duplicates that titles moving between pages cause.
+    private static List<VideoFile> fetchCatalogVersion(WireCodec codec, List<String> formats, boolean pinned)
+            throws IOException {
+        List<VideoFile> files = new ArrayList<>();
+        long version = 0;
+        int requestId = 0;
+        for (String format : formats) {
+            int offset = 0;
+            while (true) {
+                codec.write(++requestId, new Message.CatalogQuery(format, Double.MAX_VALUE, offset, CATALOG_PAGE_SIZE, version));
+                WireCodec.Frame frame = codec.read();
+                if (frame == null || !(frame.message() instanceof Message.CatalogResponse page)) {
+                    throw new IOException("Unexpected catalog answer from origin: " + (frame == null ? "closed" : frame.message()));
+                }
+                if (pinned && version != 0 && page.version() != version) {
+                    return null;
+                }
+                version = page.version();
+                files.addAll(page.files());
+                offset = page.offset() + page.files().size();
+                if (page.files().isEmpty() || offset >= page.total()) break;
+            }
+        }
+        return pinned ? files : new ArrayList<>(new LinkedHashSet<>(files));
+    }
+
+    // Downloads an entry (playlist or segment) of a segmented file from the origin to target
+    public CompletableFuture<Path> fetch(String filename, String entry, Path target) {
+        CompletableFuture<Path> download = new CompletableFuture<>();
+        CompletableFuture<Path> running = downloads.putIfAbsent(target, download);
+        if (running != null) {
+            return running;
+        }
+        executor.execute(() -> {
+            try {
+                download.complete(download(filename, entry, target));
+            } catch (IOException e) {
+                download.completeExceptionally(e);
+            } catch (InterruptedException e) {
+                download.completeExceptionally(e);
+                Thread.currentThread().interrupt();
+            } finally {
+                downloads.remove(target, download);
+            }
+        });
+        return download;
+    }
+
+    // The origin answers 503 while it segments a file it was never asked for: retried until it is ready
+    private Path download(String filename, String entry, Path target) throws IOException, InterruptedException {
+        URI uri = cluster.originUri(HlsHttpServer.entryPath(filename, entry));
+        Path partial = target.resolveSibling(target.getFileName() + ".part");
+        Files.createDirectories(target.toAbsolutePath().getParent());
+        long deadline = System.currentTimeMillis() + READY_TIMEOUT_MILLIS;
+        while (true) {
+            HttpResponse<Path> response = http.send(HttpRequest.newBuilder(uri).timeout(Duration.ofSeconds(30)).build(),
+                    HttpResponse.BodyHandlers.ofFile(partial));
+            if (response.statusCode() == 200) {
+                Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                FETCHES.increment();
+                FETCHED_BYTES.add(Files.size(target));
+                return target;
+            }
+            Files.deleteIfExists(partial);
+            if (response.statusCode() != 503 || System.currentTimeMillis() > deadline) {
+                throw new IOException("Origin answered " + response.statusCode() + " for " + uri);
+            }
+            long retryAfter = response.headers().firstValueAsLong("Retry-After").orElse(1);
+            logger.fine("Origin still preparing " + filename + ", retrying in " + retryAfter + " s");
+            Thread.sleep(Math.min(retryAfter, 10) * 1000);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package server;
+
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+// A platform thread sending the datagrams of many PacedStreams, each at its due time. Streams wait in a queue
+// ordered by their next due time; the thread parks until shortly before the earliest one, spins the rest of the
+// way (parking alone is tens of microseconds off), then sends everything that stream has due within the batch
+// horizon in one wake-up.
+public class PacedSender {
+
+    private static final long SPIN_NANOS = 100_000;
+    private static final long BATCH_HORIZON_NANOS = 200_000;
+
+    private final Thread thread;
+    private final Queue<PacedStream> incoming = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger streamCount = new AtomicInteger();
+    private final Stats stats = new Stats();
+
+    public PacedSender(String name) {
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void add(PacedStream stream) {
+        streamCount.incrementAndGet();
+        incoming.add(stream);
+        LockSupport.unpark(thread);
+    }
+
+    public int getStreamCount() {
+        return streamCount.get();
+    }
+
+    public Stats getStats() {
+        return stats;
+    }
+
+    private void run() {
+        PriorityQueue<PacedStream> queue = new PriorityQueue<>((a, b) -> Long.compare(a.nextDueNanos(), b.nextDueNanos()));
+        while (true) {
+            PacedStream added;
+            while ((added = incoming.poll()) != null) {
+                queue.add(added);
+            }
+            PacedStream head = queue.peek();
+            if (head == null) {
+                LockSupport.park(this);
+                continue;
+            }
+            if (!head.isStopped()) {
+                long wait = head.nextDueNanos() - System.nanoTime();
+                if (wait > SPIN_NANOS) {
+                    // Wake up early: a stream added meanwhile may be due before this one
+                    LockSupport.parkNanos(this, wait - SPIN_NANOS);
+                    continue;
+                }
+                while (System.nanoTime() < head.nextDueNanos()) {
+                    Thread.onSpinWait();
+                }
+            }
+            queue.poll();
+            if (!head.isStopped() && head.sendDue(System.nanoTime() + BATCH_HORIZON_NANOS, stats)) {
+                queue.add(head);
+            } else {
+                head.finish();
+                streamCount.decrementAndGet();
+            }
+        }
+    }
+
+    // Datagrams and bytes sent and how far from their due time, in power-of-two microsecond buckets
+    public static class Stats {
+        private final AtomicLong packets = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong parityPackets = new AtomicLong();
+        private final AtomicLong parityBytes = new AtomicLong();
+        private final AtomicLong retransmissions = new AtomicLong();
+        private final AtomicLong retransmittedBytes = new AtomicLong();
+        private final AtomicLong maxDeviationNanos = new AtomicLong();
+        private final AtomicLongArray deviationBuckets = new AtomicLongArray(32); // bucket i: below 2^i µs
+
+        void record(long deviationNanos, int sentBytes) {
+            long deviation = Math.abs(deviationNanos);
+            packets.incrementAndGet();
+            bytes.addAndGet(sentBytes);
+            deviationBuckets.incrementAndGet(Math.min(31, 64 - Long.numberOfLeadingZeros(deviation / 1000)));
+            if (deviation > maxDeviationNanos.get()) {
+                maxDeviationNanos.set(deviation); // single writer, no lost update
+            }
+        }
+
+        void recordError() {
+            errors.incrementAndGet();
+        }
+
+        void recordParity(int sentBytes) {
+            parityPackets.incrementAndGet();
+            parityBytes.addAndGet(sentBytes);
+        }
+
+        void recordRetransmission(int sentBytes) {
+            retransmissions.incrementAndGet();
+            retransmittedBytes.addAndGet(sentBytes);
+        }
+
+        public long getPackets() {
+            return packets.get();
+        }
+
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        public long getErrors() {
+            return errors.get();
+        }
+
+        // FEC parity datagrams, not counted in getPackets/getBytes
+        public long getParityPackets() {
+            return parityPackets.get();
+        }
+
+        public long getParityBytes() {
+            return parityBytes.get();
+        }
+
+        // Datagrams sent again on a NACK, not counted in getPackets/getBytes
+        public long getRetransmissions() {
+            return retransmissions.get();
+        }
+
+        public long getRetransmittedBytes() {
+            return retransmittedBytes.get();
+        }
+
+        public long getMaxDeviationMicros() {
+            return maxDeviationNanos.get() / 1000;
+        }
+
+        // Upper bound (µs) of the bucket holding the given percentile of deviations
+        public long getDeviationPercentileMicros(double percent) {
+            long total = 0;
+            for (int i = 0; i < deviationBuckets.length(); i++) {
+                total += deviationBuckets.get(i);
+            }
+            long rank = (long) Math.ceil(percent / 100 * total);
+            long seen = 0;
+            for (int i = 0; i < deviationBuckets.length(); i++) {
+                seen += deviationBuckets.get(i);
+                if (seen >= rank && seen > 0) {
+                    return 1L << i;
+                }
+            }
+            return 0;
+        }
+    }
+}
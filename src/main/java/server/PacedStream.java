@@ -0,0 +1,350 @@
+package server;
+
+import shared.Recovery;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+// One UDP or RTP viewer of a pre-muxed MPEG-TS file. The file is memory-mapped and sent in place: each datagram
+// is a 7x188-byte slice of the mapping, behind a 12-byte RTP header (payload type 33, MP2T) in RTP mode.
+// The mapped windows come from the SegmentCache, so every viewer of the same file shares them.
+// Datagrams are released at the times given by the PCRs of the file: the chunks between two PCRs are spread
+// evenly between their two times, which paces the stream at its real bitrate without decoding anything.
+// With loss recovery (see Recovery) every datagram gets an RTP header, UDP included. FEC parity is XORed from the
+// mapped chunks as they leave. For NACKs, the send history only records which chunk went out under each sequence
+// number, so a retransmission is sent from the mapping like the original; NACKs arrive on the stream's own
+// socket, which is then non-blocking and polled whenever the stream sends.
+// Not thread-safe: a stream is only ever driven by the PacedSender it was added to.
+public class PacedStream {
+
+    public static final int TS_PACKET_SIZE = 188;
+    public static final int CHUNK_SIZE = 7 * TS_PACKET_SIZE;
+    private static final long WINDOW_CHUNKS = 6_400; // about 8 MB of the file mapped at a time
+    private static final long PCR_SCAN_CHUNKS = 10_000; // a stream without a PCR in 13 MB is not paceable
+    private static final long MAX_PCR_STEP_NANOS = 1_000_000_000L; // a larger or backwards jump is a discontinuity
+    private static final int RTP_PAYLOAD_TYPE_MP2T = 33;
+    private static final int HISTORY = 1024; // datagrams that can be sent again, about a second at 10 Mbit/s
+
+    private final String id;
+    private final Path tsFile;
+    private final SegmentCache cache;
+    private final long chunkCount;
+    private final long fileSize;
+    private final DatagramChannel channel;
+    private final boolean rtp;
+    private final Recovery recovery;
+    private final boolean framed; // datagrams carry an RTP header: RTP mode, or any loss recovery
+    private final Runnable onEnd;
+
+    private ByteBuffer window;
+    private long windowFirstChunk = -1;
+
+    private long next; // index of the next chunk to send
+    // Pacing segment: chunks [segmentStart, segmentEnd) are spread between segmentStartDue and segmentEndDue
+    private long segmentStart;
+    private long segmentEnd;
+    private long segmentStartDue;
+    private long segmentEndDue;
+    private int pcrPid = -1;
+    private long lastPcr = -1; // 27 MHz ticks of the PCR at segmentEnd
+    private long chunkNanos = 1_000_000; // pace of the last segment, kept across discontinuities and PCR-less stretches
+    private long foundPcr; // set by findPcrChunk
+
+    private final long startNanos;
+    private final ByteBuffer rtpHeader = ByteBuffer.allocate(12);
+    private final ByteBuffer[] datagram = new ByteBuffer[2];
+    private final int ssrc = ThreadLocalRandom.current().nextInt();
+    private final int rtpTimestampBase = ThreadLocalRandom.current().nextInt();
+    private short sequence = (short) ThreadLocalRandom.current().nextInt();
+
+    // NACK: chunk and timestamp sent under each sequence number (slot: sequence % HISTORY), null without NACK
+    private final int[] historySequences;
+    private final long[] historyChunks;
+    private final int[] historyTimestamps;
+    private final ByteBuffer nackBuffer;
+    private final int[] nacked = new int[256];
+    private int nackedCount;
+
+    // FEC: XOR of the payloads of the current group, null without FEC
+    private final ByteBuffer parity;
+    private final ByteBuffer parityDatagram;
+    private int parityLength; // longest payload of the group
+    private int lengthXor;
+    private int groupCount;
+    private short groupFirst;
+    private short paritySequence = (short) ThreadLocalRandom.current().nextInt();
+    private volatile boolean stopped;
+    private boolean finished;
+
+    // Opens the file and a socket connected to the viewer; the first datagram, chunk firstChunk (0 unless the viewer
+    // seeks), is due at startNanos
+    public PacedStream(String id, Path tsFile, SegmentCache cache, InetSocketAddress destination, boolean rtp,
+                       Recovery recovery, long firstChunk, long startNanos, Runnable onEnd) throws IOException {
+        this.id = id;
+        this.tsFile = tsFile;
+        this.cache = cache;
+        this.fileSize = Files.size(tsFile);
+        this.chunkCount = (fileSize / TS_PACKET_SIZE + 6) / 7;
+        this.rtp = rtp;
+        this.recovery = recovery;
+        this.framed = rtp || recovery.isEnabled();
+        this.onEnd = onEnd;
+        this.startNanos = startNanos;
+        this.channel = DatagramChannel.open();
+        channel.connect(destination);
+        if (recovery.nack()) {
+            // A full send buffer then drops the datagram instead of blocking the sender; NACKs repair that too
+            channel.configureBlocking(false);
+            historySequences = new int[HISTORY];
+            Arrays.fill(historySequences, -1);
+            historyChunks = new long[HISTORY];
+            historyTimestamps = new int[HISTORY];
+            nackBuffer = ByteBuffer.allocate(1500);
+        } else {
+            historySequences = null;
+            historyChunks = null;
+            historyTimestamps = null;
+            nackBuffer = null;
+        }
+        if (recovery.fecGroupSize() > 0) {
+            parity = ByteBuffer.allocate(CHUNK_SIZE);
+            parityDatagram = ByteBuffer.allocate(Recovery.RTP_HEADER_SIZE + Recovery.FEC_HEADER_SIZE + CHUNK_SIZE);
+        } else {
+            parity = null;
+            parityDatagram = null;
+        }
+
+        // Chunks before the first PCR (tables) go out at the start time
+        next = segmentStart = Math.clamp(firstChunk, 0, chunkCount);
+        long first = findPcrChunk(segmentStart);
+        segmentStartDue = startNanos;
+        segmentEnd = first >= 0 ? first : Math.min(chunkCount, segmentStart + PCR_SCAN_CHUNKS);
+        segmentEndDue = first >= 0 ? startNanos : startNanos + (segmentEnd - segmentStart) * chunkNanos;
+        lastPcr = first >= 0 ? foundPcr : -1;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    public void stop() {
+        stopped = true;
+    }
+
+    // When the next datagram is due, in System.nanoTime terms
+    public long nextDueNanos() {
+        if (segmentEnd == segmentStart) {
+            return segmentStartDue;
+        }
+        return segmentStartDue + (segmentEndDue - segmentStartDue) * (next - segmentStart) / (segmentEnd - segmentStart);
+    }
+
+    // Sends every datagram due before the horizon; returns false once the file is fully sent or the stream stopped
+    public boolean sendDue(long horizonNanos, PacedSender.Stats stats) {
+        try {
+            if (historyChunks != null) {
+                answerNacks(stats);
+            }
+            while (!stopped && next < chunkCount) {
+                if (next == segmentEnd && !advanceSegment()) {
+                    break;
+                }
+                long due = nextDueNanos();
+                if (due > horizonNanos) {
+                    return true;
+                }
+                int sent = send(next, due, stats);
+                stats.record(System.nanoTime() - due, sent);
+                next++;
+            }
+            if (groupCount > 0 && !stopped) {
+                sendParity(stats); // the last, shorter group
+            }
+        } catch (IOException e) {
+            if (!stopped) stats.recordError();
+            stopped = true;
+        }
+        return false;
+    }
+
+    // Releases the socket and reports the end; safe to call more than once
+    public void finish() {
+        if (finished) return;
+        finished = true;
+        stopped = true;
+        window = null;
+        try {
+            channel.close();
+        } catch (IOException ignored) {}
+        onEnd.run();
+    }
+
+    // Moves to the segment that ends at the next PCR, timed by how far that PCR is from the previous one
+    private boolean advanceSegment() throws IOException {
+        long scanFrom = segmentEnd + 1;
+        long pcrChunk = findPcrChunk(scanFrom);
+        segmentStart = segmentEnd;
+        segmentStartDue = segmentEndDue;
+        if (pcrChunk < 0) {
+            // No PCR within reach: carry on at the last pace up to where the scan stopped
+            segmentEnd = Math.min(chunkCount, scanFrom + PCR_SCAN_CHUNKS);
+            segmentEndDue = segmentStartDue + (segmentEnd - segmentStart) * chunkNanos;
+            lastPcr = -1;
+            return segmentEnd > segmentStart;
+        }
+        long chunks = pcrChunk - segmentStart;
+        long stepNanos = lastPcr < 0 ? -1 : (foundPcr - lastPcr) * 1000 / 27; // 27 MHz ticks to ns
+        if (stepNanos < 0 || stepNanos > MAX_PCR_STEP_NANOS) {
+            stepNanos = chunks * chunkNanos;
+        } else {
+            chunkNanos = stepNanos / chunks;
+        }
+        segmentEnd = pcrChunk;
+        segmentEndDue = segmentStartDue + stepNanos;
+        lastPcr = foundPcr;
+        return true;
+    }
+
+    // Returns the bytes that left, header included (0 when the datagram was refused); parity datagrams are
+    // counted apart, in the stats
+    private int send(long chunk, long dueNanos, PacedSender.Stats stats) throws IOException {
+        ByteBuffer payload = chunk(chunk);
+        if (!framed) {
+            return write(payload);
+        }
+        int timestamp = (int) (rtpTimestampBase + (dueNanos - startNanos) * 9 / 100_000); // 90 kHz clock
+        short number = sequence++;
+        if (historyChunks != null) {
+            int slot = number & (HISTORY - 1);
+            historySequences[slot] = number & 0xFFFF;
+            historyChunks[slot] = chunk;
+            historyTimestamps[slot] = timestamp;
+        }
+        if (parity != null) {
+            protect(number, payload); // before the write, which consumes the payload
+        }
+        int sent = writeRtp(RTP_PAYLOAD_TYPE_MP2T, number, timestamp, payload);
+        if (parity != null && groupCount == recovery.fecGroupSize()) {
+            sendParity(stats);
+        }
+        return sent;
+    }
+
+    // Adds a payload to the parity of the current group
+    private void protect(short number, ByteBuffer payload) {
+        if (groupCount == 0) {
+            groupFirst = number;
+            Arrays.fill(parity.array(), 0, parityLength, (byte) 0); // what the previous group used
+            parityLength = 0;
+            lengthXor = 0;
+        }
+        int length = payload.remaining();
+        int base = payload.position();
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            parity.putLong(i, parity.getLong(i) ^ payload.getLong(base + i));
+        }
+        for (; i < length; i++) {
+            parity.put(i, (byte) (parity.get(i) ^ payload.get(base + i)));
+        }
+        parityLength = Math.max(parityLength, length);
+        lengthXor ^= length;
+        groupCount++;
+    }
+
+    private void sendParity(PacedSender.Stats stats) throws IOException {
+        parityDatagram.clear();
+        parityDatagram.put((byte) 0x80).put((byte) Recovery.FEC_PAYLOAD_TYPE).putShort(paritySequence++)
+                .putInt(0).putInt(ssrc)
+                .putShort(groupFirst).put((byte) groupCount).put((byte) 0).putShort((short) lengthXor)
+                .put(parity.array(), 0, parityLength)
+                .flip();
+        groupCount = 0;
+        stats.recordParity(write(parityDatagram));
+    }
+
+    // Sends again the datagrams NACKed since the last call that are still in the history
+    private void answerNacks(PacedSender.Stats stats) throws IOException {
+        while (true) {
+            nackBuffer.clear();
+            try {
+                if (channel.read(nackBuffer) <= 0) return;
+            } catch (PortUnreachableException e) {
+                return;
+            }
+            nackedCount = 0;
+            Recovery.readNack(nackBuffer.flip(), number -> {
+                if (nackedCount < nacked.length) nacked[nackedCount++] = number;
+            });
+            for (int i = 0; i < nackedCount; i++) {
+                int slot = nacked[i] & (HISTORY - 1);
+                if (historySequences[slot] != nacked[i]) continue; // no longer in the history
+                int sent = writeRtp(RTP_PAYLOAD_TYPE_MP2T, (short) nacked[i], historyTimestamps[slot], chunk(historyChunks[slot]));
+                stats.recordRetransmission(sent);
+            }
+        }
+    }
+
+    private int writeRtp(int payloadType, short number, int timestamp, ByteBuffer payload) throws IOException {
+        rtpHeader.clear();
+        rtpHeader.put((byte) 0x80).put((byte) payloadType).putShort(number).putInt(timestamp).putInt(ssrc).flip();
+        datagram[0] = rtpHeader;
+        datagram[1] = payload;
+        return write(datagram); // gathering write: header and mapped payload leave as one datagram
+    }
+
+    private int write(ByteBuffer... buffers) throws IOException {
+        try {
+            return (int) channel.write(buffers);
+        } catch (PortUnreachableException e) {
+            // The player is not listening (yet); UDP has no backpressure, the datagram is simply lost
+            return 0;
+        }
+    }
+
+    // Slice of the mapping holding one chunk; the last chunk may hold fewer than 7 packets
+    private ByteBuffer chunk(long index) throws IOException {
+        if (windowFirstChunk < 0 || index < windowFirstChunk || index >= windowFirstChunk + WINDOW_CHUNKS) {
+            windowFirstChunk = index - index % WINDOW_CHUNKS;
+            long start = windowFirstChunk * CHUNK_SIZE;
+            window = cache.map(tsFile, start, Math.min(WINDOW_CHUNKS * CHUNK_SIZE, fileSize - start));
+        }
+        int offset = (int) ((index - windowFirstChunk) * CHUNK_SIZE);
+        int length = Math.min(CHUNK_SIZE, (window.limit() - offset) / TS_PACKET_SIZE * TS_PACKET_SIZE);
+        return window.slice(offset, length);
+    }
+
+    // Index of the first chunk from 'from' holding a PCR of the stream's PCR PID (the first one seen), or -1.
+    // The PCR value is left in foundPcr.
+    private long findPcrChunk(long from) throws IOException {
+        long limit = Math.min(chunkCount, from + PCR_SCAN_CHUNKS);
+        for (long index = from; index < limit; index++) {
+            ByteBuffer chunk = chunk(index);
+            for (int p = 0; p + TS_PACKET_SIZE <= chunk.limit(); p += TS_PACKET_SIZE) {
+                if (chunk.get(p) != 0x47) continue;
+                int pid = ((chunk.get(p + 1) & 0x1F) << 8) | (chunk.get(p + 2) & 0xFF);
+                boolean hasAdaptation = (chunk.get(p + 3) & 0x20) != 0;
+                if (!hasAdaptation || (chunk.get(p + 4) & 0xFF) < 7 || (chunk.get(p + 5) & 0x10) == 0) continue;
+                if (pcrPid >= 0 && pid != pcrPid) continue;
+                pcrPid = pid;
+                long base = ((long) (chunk.get(p + 6) & 0xFF) << 25) | ((chunk.get(p + 7) & 0xFF) << 17)
+                        | ((chunk.get(p + 8) & 0xFF) << 9) | ((chunk.get(p + 9) & 0xFF) << 1) | ((chunk.get(p + 10) & 0xFF) >> 7);
+                int extension = ((chunk.get(p + 10) & 0x01) << 8) | (chunk.get(p + 11) & 0xFF);
+                foundPcr = base * 300 + extension;
+                return index;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,194 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Bytes of media files kept in memory for every session that serves them, within a byte budget.
+// HLS playlists and segments are read once into direct buffers (off-heap, written to sockets without a copy
+// to the heap); the native sender's MPEG-TS files are shared as memory-mapped windows. The least recently used
+// entries are dropped when the budget is exceeded. A dropped buffer is freed by the GC once the last response
+// or stream still holding it is done, so in-flight readers never see it disappear.
+// Entries remember the size and modification time of their file and are reloaded if it changes.
+public class SegmentCache {
+
+    private final long maxBytes;
+    private final long maxFileBytes;
+
+    // Least recently used first
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private final Map<Key, CompletableFuture<Entry>> loading = new HashMap<>();
+    private long bytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public SegmentCache(long maxBytes, long maxFileBytes) {
+        this.maxBytes = maxBytes;
+        this.maxFileBytes = maxFileBytes;
+    }
+
+    // Budget: -Dcache.maxMegabytes=512; files above -Dcache.maxFileMegabytes=32 are not read into memory
+    public static SegmentCache fromSystemProperties() {
+        return new SegmentCache(Integer.getInteger("cache.maxMegabytes", 512) * 1024L * 1024,
+                Integer.getInteger("cache.maxFileMegabytes", 32) * 1024L * 1024);
+    }
+
+    // Contents of a whole file, read from disk on the first request only. Returns a read-only buffer of its
+    // own (position 0, limit the file size), or null when the file is too large to be cached.
+    public ByteBuffer read(Path file) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        if (attributes.size() > maxFileBytes) {
+            return null;
+        }
+        return get(new Key(file.toAbsolutePath().normalize(), 0, false), attributes, () -> {
+            ByteBuffer buffer = ByteBuffer.allocateDirect((int) attributes.size());
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer) < 0) {
+                        throw new IOException(file + " was shortened while it was read");
+                    }
+                }
+            }
+            return buffer.flip();
+        });
+    }
+
+    // Contents of a whole file if they are cached and current, else null; never reads the file itself, so a
+    // selector thread can try it first and leave a miss to read() on another thread
+    public ByteBuffer readIfCached(Path file) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        Key key = new Key(file.toAbsolutePath().normalize(), 0, false);
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.isCurrent(attributes)) {
+                hits.incrementAndGet();
+                return entry.buffer.asReadOnlyBuffer();
+            }
+        }
+        return null;
+    }
+
+    // Read-only mapping of [offset, offset + length) of a file, shared by every caller asking for the same
+    // region. Mapping is lazy, so a miss costs no read on the caller's thread.
+    public ByteBuffer map(Path file, long offset, long length) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        return get(new Key(file.toAbsolutePath().normalize(), offset, true), attributes, () -> {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+            }
+        });
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    // Returns the cached buffer, or loads it once for all concurrent callers of the same key
+    private ByteBuffer get(Key key, BasicFileAttributes attributes, Loader loader) throws IOException {
+        long modified = attributes.lastModifiedTime().toMillis();
+        CompletableFuture<Entry> pending;
+        boolean owner;
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.isCurrent(attributes)) {
+                hits.incrementAndGet();
+                return entry.buffer.asReadOnlyBuffer();
+            }
+            if (entry != null) {
+                remove(key); // stale: the file was replaced
+            }
+            pending = loading.get(key);
+            owner = pending == null;
+            if (owner) {
+                pending = new CompletableFuture<>();
+                loading.put(key, pending);
+                misses.incrementAndGet();
+            } else {
+                hits.incrementAndGet(); // another caller is reading it; the file is still read once
+            }
+        }
+
+        if (owner) {
+            try {
+                Entry entry = new Entry(loader.load(), attributes.size(), modified);
+                synchronized (this) {
+                    loading.remove(key);
+                    entries.put(key, entry);
+                    bytes += entry.buffer.capacity();
+                    evict();
+                }
+                pending.complete(entry);
+            } catch (IOException | RuntimeException e) {
+                synchronized (this) {
+                    loading.remove(key);
+                }
+                pending.completeExceptionally(e);
+                throw e;
+            }
+        }
+
+        try {
+            return pending.join().buffer.asReadOnlyBuffer();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+        }
+    }
+
+    // Drops least recently used entries until the budget holds; the newest entry always stays
+    private void evict() {
+        Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+        while (bytes > maxBytes && entries.size() > 1 && iterator.hasNext()) {
+            bytes -= iterator.next().getValue().buffer.capacity();
+            iterator.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private void remove(Key key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            bytes -= entry.buffer.capacity();
+        }
+    }
+
+    private record Key(Path file, long offset, boolean mapped) {}
+
+    private record Entry(ByteBuffer buffer, long fileSize, long fileModified) {
+        boolean isCurrent(BasicFileAttributes attributes) {
+            return fileSize == attributes.size() && fileModified == attributes.lastModifiedTime().toMillis();
+        }
+    }
+
+    private interface Loader {
+        ByteBuffer load() throws IOException;
+    }
+}
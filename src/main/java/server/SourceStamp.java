@@ -0,0 +1,40 @@
+package server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+// Size and modification time of a source video, saved next to what was made from it (HLS segments, MPEG-TS
+// remux) so that a source replaced in videos/ is detected and its outputs are made again.
+record SourceStamp(long size, long mtime) {
+
+    // Stamp of the source as it is now; null if it cannot be read
+    static SourceStamp of(Path source) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(source, BasicFileAttributes.class);
+            return new SourceStamp(attrs.size(), attrs.lastModifiedTime().toMillis());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Whether the stamp saved in stampFile matches the source; false when either is missing or unreadable
+    static boolean matches(Path source, Path stampFile) {
+        SourceStamp current = of(source);
+        return current != null && current.equals(read(stampFile));
+    }
+
+    static SourceStamp read(Path stampFile) {
+        try {
+            String[] fields = Files.readString(stampFile).trim().split(" ");
+            return fields.length == 2 ? new SourceStamp(Long.parseLong(fields[0]), Long.parseLong(fields[1])) : null;
+        } catch (IOException | NumberFormatException e) {
+            return null;
+        }
+    }
+
+    void write(Path stampFile) throws IOException {
+        Files.writeString(stampFile, size + " " + mtime + "\n");
+    }
+}
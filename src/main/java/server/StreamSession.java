@@ -0,0 +1,123 @@
+package server;
+
+import shared.Protocol;
+import shared.VideoFile;
+
+import java.net.InetAddress;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+// State of one play session: the ports it owns and the FFMPEG process or Java sender feeding them
+public class StreamSession {
+    private final String id;
+    private final VideoFile file;
+    private final Protocol protocol;
+    private final InetAddress clientAddress;
+    private final int slot;
+    private final int videoPort;
+    private final int audioPort;
+    private final long startedAtMillis;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private volatile long lastActiveMillis;
+    private volatile Process process;
+    private volatile Runnable closeAction;
+    private volatile BooleanSupplier sending; // Java sender of the stream, when no FFMPEG process feeds it
+
+    StreamSession(String id, VideoFile file, Protocol protocol, InetAddress clientAddress,
+                  int slot, int videoPort, int audioPort) {
+        this.id = id;
+        this.file = file;
+        this.protocol = protocol;
+        this.clientAddress = clientAddress;
+        this.slot = slot;
+        this.videoPort = videoPort;
+        this.audioPort = audioPort;
+        this.startedAtMillis = System.currentTimeMillis();
+        this.lastActiveMillis = startedAtMillis;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public VideoFile getFile() {
+        return file;
+    }
+
+    public Protocol getProtocol() {
+        return protocol;
+    }
+
+    public InetAddress getClientAddress() {
+        return clientAddress;
+    }
+
+    int getSlot() {
+        return slot;
+    }
+
+    public int getVideoPort() {
+        return videoPort;
+    }
+
+    public int getAudioPort() {
+        return audioPort;
+    }
+
+    public long getStartedAtMillis() {
+        return startedAtMillis;
+    }
+
+    // Last time the session was seen streaming (see markActive), its start until then
+    public long getLastActiveMillis() {
+        return lastActiveMillis;
+    }
+
+    // Records that the session streams now if its FFMPEG process or Java sender is still running
+    boolean markActive(long nowMillis) {
+        Process feeding = process;
+        BooleanSupplier sender = sending;
+        boolean active = feeding != null ? feeding.isAlive() : sender != null && sender.getAsBoolean();
+        if (active) {
+            lastActiveMillis = nowMillis;
+        }
+        return active;
+    }
+
+    // Per-session SDP file written by FFMPEG for RTP streams
+    public Path getSdpPath() {
+        return Path.of("sdp", "stream_" + id + ".sdp");
+    }
+
+    public Process getProcess() {
+        return process;
+    }
+
+    public void setProcess(Process process) {
+        this.process = process;
+    }
+
+    // Tells whether the Java sender of the stream (native sender, broadcast viewer) still runs
+    public void setSending(BooleanSupplier sending) {
+        this.sending = sending;
+    }
+
+    // Extra cleanup run when the session closes (e.g. leaving a shared broadcast)
+    public Runnable getCloseAction() {
+        return closeAction;
+    }
+
+    public void setCloseAction(Runnable closeAction) {
+        this.closeAction = closeAction;
+    }
+
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    // Returns true only for the first caller, so cleanup runs exactly once
+    boolean markClosed() {
+        return closed.compareAndSet(false, true);
+    }
+}
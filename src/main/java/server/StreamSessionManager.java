@@ -0,0 +1,128 @@
+package server;
+
+import shared.Protocol;
+import shared.VideoFile;
+import utils.ProcessSupervisor;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+// Allocates stream ports from a fixed pool and tears sessions down when they end, or when nothing has streamed for
+// them for the timeout (a session whose stream never started or died without closing it)
+public class StreamSessionManager {
+
+    private static final Logger logger = Logger.getLogger(StreamSessionManager.class.getName());
+
+    // Each slot owns 4 consecutive ports: video RTP/RTCP and audio RTP/RTCP (TCP/UDP only use the first one)
+    private static final int PORTS_PER_SLOT = 4;
+
+    private final int portBase;
+    private final int slotCount;
+    private final Duration sessionTimeout;
+    private final BitSet usedSlots;
+    private final Map<String, StreamSession> sessions = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService reaper;
+
+    public StreamSessionManager(int portBase, int slotCount, Duration sessionTimeout) {
+        this.portBase = portBase;
+        this.slotCount = slotCount;
+        this.sessionTimeout = sessionTimeout;
+        this.usedSlots = new BitSet(slotCount);
+        this.reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "stream-session-reaper");
+            t.setDaemon(true);
+            return t;
+        });
+        reaper.scheduleAtFixedRate(this::closeExpiredSessions, 30, 30, TimeUnit.SECONDS);
+    }
+
+    // Pool configuration: -Dstream.portBase=8888 -Dstream.slots=64 -Dstream.timeoutMinutes=240
+    public static StreamSessionManager fromSystemProperties() {
+        return new StreamSessionManager(
+                Integer.getInteger("stream.portBase", 8888),
+                Integer.getInteger("stream.slots", 64),
+                Duration.ofMinutes(Integer.getInteger("stream.timeoutMinutes", 240))
+        );
+    }
+
+    // Opens a session with its own ports, or returns null when the pool is exhausted
+    public StreamSession open(VideoFile file, Protocol protocol, InetAddress clientAddress) {
+        int slot;
+        synchronized (usedSlots) {
+            slot = usedSlots.nextClearBit(0);
+            if (slot >= slotCount) {
+                return null;
+            }
+            usedSlots.set(slot);
+        }
+
+        int videoPort = portBase + slot * PORTS_PER_SLOT;
+        String id = UUID.randomUUID().toString().substring(0, 8);
+        StreamSession session = new StreamSession(id, file, protocol, clientAddress, slot, videoPort, videoPort + 2);
+        sessions.put(id, session);
+        logger.info("Session " + id + " opened on port " + videoPort + " (" + sessions.size() + " active)");
+        return session;
+    }
+
+    // Stops the FFMPEG child, removes the SDP file and gives the ports back to the pool
+    public void close(StreamSession session) {
+        if (!session.markClosed()) {
+            return;
+        }
+
+        Process process = session.getProcess();
+        if (process != null && process.isAlive()) {
+            ProcessSupervisor.stop(process);
+            logger.info("FFMPEG process stopped.");
+        }
+        if (session.getCloseAction() != null) {
+            session.getCloseAction().run();
+        }
+
+        try {
+            Files.deleteIfExists(session.getSdpPath());
+        } catch (IOException e) {
+            logger.warning("Could not delete " + session.getSdpPath() + ": " + e.getMessage());
+        }
+
+        sessions.remove(session.getId());
+        synchronized (usedSlots) {
+            usedSlots.clear(session.getSlot());
+        }
+        logger.info("Session " + session.getId() + " closed (" + sessions.size() + " active)");
+    }
+
+    public int getActiveSessionCount() {
+        return sessions.size();
+    }
+
+    public long getActiveSessionCount(Protocol protocol) {
+        return sessions.values().stream().filter(session -> session.getProtocol() == protocol).count();
+    }
+
+    // True while a session streams the given file
+    public boolean isStreaming(VideoFile file) {
+        return sessions.values().stream().anyMatch(session -> session.getFile().equals(file));
+    }
+
+    private void closeExpiredSessions() {
+        long now = System.currentTimeMillis();
+        long deadline = now - sessionTimeout.toMillis();
+        for (StreamSession session : sessions.values()) {
+            if (!session.markActive(now) && session.getLastActiveMillis() < deadline) {
+                logger.info("Session " + session.getId() + " timed out, nothing streamed for " + sessionTimeout.toMinutes() + " min");
+                close(session);
+            }
+        }
+    }
+}
@@ -1,14 +1,30 @@
 package server;
 
+import shared.Message;
+import shared.StreamEndpoint;
 import shared.VideoFile;
-import utils.FfmpegCommandRunner;
+import shared.WireCodec;
 import utils.LoggerConfig;
+import utils.Metrics;
+import utils.ProcessSupervisor;
 import shared.Protocol;
+import shared.Recovery;
 
 import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 public class StreamingServer {
@@ -17,10 +33,63 @@ public class StreamingServer {
     private static final String VIDEO_DIR = "videos/";
     private static final List<String> FORMATS = List.of("mp4", "avi", "mkv");
     private static final List<String> RESOLUTIONS_ORDERED = List.of("240p", "360p", "480p", "720p", "1080p");
-    private static final int PORT = 9090;
-    private Process ffmpegProcess;
+    private static final int PORT = Integer.getInteger("server.port", 9090);
+    private static final int HLS_PORT = Integer.getInteger("hls.port", 8080);
+    // -Dstream.broadcast=true: TCP/UDP viewers of the same file share one FFMPEG instead of one each
+    private static final boolean BROADCAST_MODE = Boolean.getBoolean("stream.broadcast");
+    // -Dstream.native=false goes back to one "ffmpeg -re" per UDP/RTP viewer instead of the Java paced sender
+    private static final boolean NATIVE_SENDER = Boolean.parseBoolean(System.getProperty("stream.native", "true"));
+    // -Dtranscode.ladder=false falls back to one full decode/encode per missing variant
+    private static final boolean LADDER_MODE = Boolean.parseBoolean(System.getProperty("transcode.ladder", "true"));
+    // -Dtranscode.lazy=true: missing variants are offered and produced on their first request instead of all up front
+    private static final boolean LAZY_MODE = Boolean.getBoolean("transcode.lazy");
+    // -Dmetrics.logSeconds=N logs every metric as one JSON line every N seconds (0: only the HTTP endpoint)
+    private static final int METRICS_LOG_SECONDS = Integer.getInteger("metrics.logSeconds", 0);
+    // Requests of one connection being handled at once; the connection is not read further until one completes
+    private static final int MAX_REQUESTS_IN_FLIGHT = 16;
+    // Delay suggested to clients refused for lack of FFMPEG slots
+    private static final int BUSY_RETRY_SECONDS = 10;
+    // How often an edge reloads the origin's catalog
+    private static final int ORIGIN_SYNC_SECONDS = 30;
+
+    private static final Metrics.Counter CONNECTIONS_ACCEPTED = Metrics.counter("server_connections_accepted_total",
+            "Client connections accepted on the control port");
+    private static final Metrics.Histogram CATALOG_QUERY_DURATION = Metrics.histogram("catalog_query_duration_seconds",
+            "Time to answer a catalog query, response write excluded", 1e-6, 1_000_000);
+    private static final Map<Protocol, Metrics.Counter> PLAY_REQUESTS = new EnumMap<>(Protocol.class);
+
+    static {
+        for (Protocol protocol : Protocol.values()) {
+            PLAY_REQUESTS.put(protocol, Metrics.counter("stream_play_requests_total", "Play requests by protocol",
+                    "protocol", protocol.name()));
+        }
+    }
 
-    private List<VideoFile> availableFiles = new ArrayList<>();
+    // Each client connection runs on its own virtual thread, so a long play session never blocks the accept loop
+    private final ExecutorService clientExecutor = Executors.newVirtualThreadPerTaskExecutor();
+
+    // Origin/edge deployment (see Cluster), null when this server runs alone. An edge has no videos of its own:
+    // it mirrors the origin's catalog and streams from segments pulled from the origin.
+    private final Cluster cluster = Cluster.fromSystemProperties();
+    private final boolean edge = cluster != null && cluster.isEdge();
+    private final Catalog availableFiles = new Catalog();
+    private final StreamSessionManager sessionManager = StreamSessionManager.fromSystemProperties();
+    private final BandwidthProbeServer probeServer = BandwidthProbeServer.fromSystemProperties();
+    private final BroadcastManager broadcastManager = BroadcastManager.fromSystemProperties(VIDEO_DIR);
+    // Segments and MPEG-TS windows in memory, shared by every session serving the same file
+    private final SegmentCache segmentCache = SegmentCache.fromSystemProperties();
+    private final NativeStreamManager nativeStreams = NativeStreamManager.fromSystemProperties(VIDEO_DIR, segmentCache);
+    // Finished variants are published straight into the catalog while the server keeps serving
+    private final TranscodeScheduler transcoder = TranscodeScheduler.fromSystemProperties(availableFiles::add);
+    private final JitTranscoder jit = JitTranscoder.fromSystemProperties(VIDEO_DIR, sessionManager::isStreaming);
+    private final HlsSegmenter hlsSegmenter = new HlsSegmenter(Path.of(VIDEO_DIR), Path.of("hls"),
+            edge ? new OriginClient(cluster) : null);
+    private final AdaptiveStreamManager adaptiveStreams = new AdaptiveStreamManager(hlsSegmenter);
+    private final HlsHttpServer hlsServer = new HlsHttpServer(HLS_PORT, hlsSegmenter, adaptiveStreams, segmentCache,
+            this::catalogFile);
+    private final CatalogIndex catalogIndex = new CatalogIndex(Path.of(VIDEO_DIR), FORMATS, RESOLUTIONS_ORDERED,
+            this::onFileAdded, this::onFileRemoved);
+    private final MetricsHttpServer metricsServer = MetricsHttpServer.fromSystemProperties();
 
     private int getResolutionIndex(String resolution) {
         return RESOLUTIONS_ORDERED.indexOf(resolution);
@@ -37,173 +106,632 @@ public class StreamingServer {
         logger.info("Starting Streaming Server...");
 
         scanAndProcessVideos();
+        registerMetrics();
 
-        while (true) {
-            try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-                logger.info("Waiting for client on port " + PORT + "...");
-                Socket clientSocket = serverSocket.accept();
-                logger.info("Client connected from: " + clientSocket.getInetAddress());
-
-                handleClient(clientSocket);
-                System.out.println("");
-
+        try {
+            hlsServer.start();
+        } catch (IOException e) {
+            logger.severe("HLS HTTP server not started: " + e.getMessage());
+        }
+        try {
+            probeServer.start();
+        } catch (IOException e) {
+            logger.severe("Bandwidth probe not started: " + e.getMessage());
+        }
+        if (metricsServer != null) {
+            try {
+                metricsServer.start();
             } catch (IOException e) {
-                logger.severe("Server error: " + e.getMessage());
+                logger.severe("Metrics endpoint not started: " + e.getMessage());
+            }
+        }
+        if (METRICS_LOG_SECONDS > 0) {
+            Metrics.startJsonLogging(METRICS_LOG_SECONDS);
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(PORT));
+            logger.info("Waiting for clients on port " + PORT + "...");
+            while (true) {
+                try {
+                    SocketChannel clientSocket = serverChannel.accept();
+                    CONNECTIONS_ACCEPTED.increment();
+                    logger.info("Client connected from: " + clientSocket.getRemoteAddress());
+                    clientExecutor.submit(() -> handleClient(clientSocket));
+                } catch (IOException e) {
+                    logger.severe("Accept error: " + e.getMessage());
+                }
             }
+        } catch (IOException e) {
+            logger.severe("Server error: " + e.getMessage());
+        } finally {
+            clientExecutor.shutdownNow();
         }
     }
 
-    // Scans the video directory, processes existing files, and generates missing resolutions
+    // Loads the catalog index, reconciles it with the video directory, and queues generation of missing resolutions.
+    // Conversions run in the background so clients are served the variants that already exist.
+    // An edge loads the origin's catalog instead, and reloads it periodically.
     private void scanAndProcessVideos() {
-        // Detection of existing video files
-        File dir = new File(VIDEO_DIR);
-        Map<String, Map<String, Set<String>>> existing = new HashMap<>();
-        for (File file : Objects.requireNonNull(dir.listFiles())) {
-            String[] parts = file.getName().split("[-.]");
-            if (parts.length >= 3) {
-                String format = parts[2];
-                if (!FORMATS.contains(format)) continue;
+        if (edge) {
+            OriginClient origin = new OriginClient(cluster);
+            syncFromOrigin(origin);
+            ScheduledExecutorService sync = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "origin-sync");
+                t.setDaemon(true);
+                return t;
+            });
+            sync.scheduleWithFixedDelay(() -> syncFromOrigin(origin), ORIGIN_SYNC_SECONDS, ORIGIN_SYNC_SECONDS, TimeUnit.SECONDS);
+            return;
+        }
+        try {
+            availableFiles.addAll(catalogIndex.loadAndReconcile().stream().map(CatalogIndex.Entry::getFile).toList());
+            catalogIndex.startWatching();
+        } catch (IOException e) {
+            logger.severe("Video directory scan failed: " + e.getMessage());
+        }
+
+        if (LAZY_MODE) {
+            Set.copyOf(availableFiles.getNames()).forEach(this::offerOnDemand);
+            logger.info(availableFiles.size() + " files available, missing variants are produced on demand");
+        } else {
+            availableFiles.getNames().forEach(this::queueMissingVariants);
+            logger.info(availableFiles.size() + " files available, " + transcoder.getQueueDepth() + " conversions queued");
+        }
+    }
 
-                String name = parts[0];
-                String resolution = parts[1];
+    private void syncFromOrigin(OriginClient origin) {
+        try {
+            availableFiles.replaceAll(origin.fetchCatalog(FORMATS));
+            logger.fine(availableFiles.size() + " files in the origin's catalog");
+        } catch (IOException e) {
+            logger.warning("Could not load the origin's catalog: " + e.getMessage());
+        }
+    }
 
-                existing.putIfAbsent(name, new HashMap<>());
-                existing.get(name).putIfAbsent(resolution, new HashSet<>());
-                existing.get(name).get(resolution).add(format);
+    // Catalog file of a filename requested over HTTP, or null
+    private VideoFile catalogFile(String filename) {
+        VideoFile file = VideoFile.fromFilename(filename);
+        return file == null ? null : availableFiles.get(file);
+    }
 
-                availableFiles.add(new VideoFile(name, format, resolution));
+    // A file dropped into the video directory joins the catalog and gets its lower resolutions generated
+    // (or offered, in lazy mode)
+    private void onFileAdded(VideoFile file) {
+        hlsSegmenter.invalidate(file);
+        nativeStreams.invalidate(file);
+        if (availableFiles.add(file)) {
+            if (LAZY_MODE) {
+                offerOnDemand(file.getName());
+            } else {
+                queueMissingVariants(file.getName());
             }
         }
+    }
 
-        // Generate missing resolutions for each video
-        for (String name : existing.keySet()) {
-            int maxResIndex = existing.get(name).keySet().stream()
-                    .mapToInt(this::getResolutionIndex)
-                    .max()
-                    .orElse(-1);
-
-            for (int i = 0; i <= maxResIndex; i++) {
-                String res = RESOLUTIONS_ORDERED.get(i);
-                for (String fmt : FORMATS) {
-                    boolean alreadyExists = existing.get(name).containsKey(res)
-                            && existing.get(name).get(res).contains(fmt);
-                    if (!alreadyExists) {
-                        Optional<VideoFile> source = availableFiles.stream()
-                                .filter(f -> f.getName().equals(name)
-                                        && getResolutionIndex(f.getResolution()) == maxResIndex)
-                                .findFirst();
-
-                        if (source.isPresent()) {
-                            String inputFile = VIDEO_DIR + source.get().getFilename();
-                            String outputFile = VIDEO_DIR + name + "-" + res + "." + fmt;
-                            logger.info("Creation : " + outputFile);
-                            FfmpegCommandRunner.convert(inputFile, outputFile, res);
-                            availableFiles.add(new VideoFile(name, fmt, res));
-                        }
-                    }
-                }
+    // In lazy mode a removed variant (e.g. evicted from the on-demand cache) stays offered while its title has a source
+    private void onFileRemoved(VideoFile file) {
+        hlsSegmenter.invalidate(file);
+        nativeStreams.invalidate(file);
+        availableFiles.remove(file);
+        if (LAZY_MODE) {
+            offerOnDemand(file.getName());
+        }
+    }
+
+    // Lazy mode: every resolution up to the highest one on disk is offered in every format, the missing ones being
+    // produced by JitTranscoder when first played. Offers above the highest resolution left on disk are withdrawn.
+    private void offerOnDemand(String name) {
+        List<VideoFile> files = availableFiles.getByName(name);
+        int maxResIndex = files.stream()
+                .filter(jit::isOnDisk)
+                .mapToInt(file -> getResolutionIndex(file.getResolution()))
+                .max()
+                .orElse(-1);
+        for (VideoFile file : files) {
+            if (getResolutionIndex(file.getResolution()) > maxResIndex && !jit.isOnDisk(file)) {
+                availableFiles.remove(file);
             }
         }
 
+        List<VideoFile> offers = new ArrayList<>();
+        for (int i = 0; i <= maxResIndex; i++) {
+            for (String fmt : FORMATS) {
+                VideoFile offer = new VideoFile(name, fmt, RESOLUTIONS_ORDERED.get(i));
+                if (!availableFiles.contains(offer)) offers.add(offer);
+            }
+        }
+        if (!offers.isEmpty()) {
+            availableFiles.addAll(offers);
+        }
     }
 
-    // Handles client connections and processes requests
-    private void handleClient(Socket socket) {
-        try (
-                ObjectInputStream input = new ObjectInputStream(socket.getInputStream());
-                ObjectOutputStream output = new ObjectOutputStream(socket.getOutputStream())
-        ) {
-            Object command = input.readObject();
-
-            if ("play_request".equals(command)) {
-                VideoFile file = (VideoFile) input.readObject();
-                String protoStr = (String) input.readObject();
-                Protocol protocol = Protocol.valueOf(protoStr);
-                logger.info("Streaming requested: " + file.getFilename() + " via " + protocol);
-                startStreaming(file, protocol);
+    // What a missing variant is made from: the same resolution in another container when there is one on disk
+    // (stream copy), else the highest resolution of the title; null if no file of the title is on disk
+    private VideoFile sourceFor(VideoFile variant) {
+        List<VideoFile> onDisk = availableFiles.getByName(variant.getName()).stream().filter(jit::isOnDisk).toList();
+        return onDisk.stream()
+                .filter(file -> file.getResolution().equals(variant.getResolution()))
+                .findFirst()
+                .or(() -> onDisk.stream().max(Comparator.comparingInt(file -> getResolutionIndex(file.getResolution()))))
+                .orElse(null);
+    }
 
-                // Wait for the client to close the connection
-                try {
-                    socket.getInputStream().read();
-                } catch (IOException ignored) {}
+    // Generate missing resolutions (up to the highest one available) for one video
+    private void queueMissingVariants(String name) {
+        Map<String, Set<String>> existing = new HashMap<>();
+        for (VideoFile file : availableFiles.getByName(name)) {
+            existing.computeIfAbsent(file.getResolution(), k -> new HashSet<>()).add(file.getFormat());
+        }
 
-                // Stop the FFMPEG process when the client disconnects
-                if (ffmpegProcess != null && ffmpegProcess.isAlive()) {
-                    ffmpegProcess.destroy();
-                    logger.info("FFMPEG process stopped.");
+        int maxResIndex = existing.keySet().stream()
+                .mapToInt(this::getResolutionIndex)
+                .max()
+                .orElse(-1);
+        if (maxResIndex < 0) return;
+
+        String maxRes = RESOLUTIONS_ORDERED.get(maxResIndex);
+        Path inputFile = Path.of(VIDEO_DIR, new VideoFile(name, existing.get(maxRes).iterator().next(), maxRes).getFilename());
+
+        List<VideoFile> encodes = new ArrayList<>();
+        List<VideoFile> remuxes = new ArrayList<>();
+        int firstEncodeIndex = -1;
+        for (int i = 0; i <= maxResIndex; i++) {
+            String res = RESOLUTIONS_ORDERED.get(i);
+            Set<String> present = existing.getOrDefault(res, Set.of());
+            List<String> missing = FORMATS.stream()
+                    .filter(fmt -> !present.contains(fmt) && !transcoder.isScheduled(new VideoFile(name, fmt, res)))
+                    .toList();
+            if (missing.isEmpty()) continue;
+
+            if (!LADDER_MODE) {
+                for (String fmt : missing) {
+                    transcoder.submit(inputFile, Path.of(VIDEO_DIR), new VideoFile(name, fmt, res), i);
                 }
+            } else if (!present.isEmpty()) {
+                // Same resolution already exists in another container: copy the streams, no re-encode
+                Path sameResolution = Path.of(VIDEO_DIR, new VideoFile(name, present.iterator().next(), res).getFilename());
+                for (String fmt : missing) {
+                    transcoder.submitRemux(sameResolution, Path.of(VIDEO_DIR), new VideoFile(name, fmt, res), i);
+                }
+            } else {
+                // Encode this resolution once in the ladder, the other containers are remuxed from it
+                encodes.add(new VideoFile(name, missing.get(0), res));
+                for (String fmt : missing.subList(1, missing.size())) {
+                    remuxes.add(new VideoFile(name, fmt, res));
+                }
+                if (firstEncodeIndex < 0) firstEncodeIndex = i;
+            }
+        }
 
-            } else if (command instanceof String format) {
-                double bitrateMbps = (Double) input.readObject();
-                logger.info("Client requested format=" + format + ", bitrate=" + bitrateMbps + " Mbps");
+        if (!encodes.isEmpty()) {
+            transcoder.submitLadder(inputFile, Path.of(VIDEO_DIR), encodes, remuxes, firstEncodeIndex);
+        }
+    }
+
+    // Handles one client connection for its whole lifetime. Requests are read in order but each one runs on its
+    // own virtual thread, so a client can pipeline a catalog refresh behind a slow play request. At most
+    // MAX_REQUESTS_IN_FLIGHT run at once; past that the connection is not read, and TCP holds the client back.
+    private void handleClient(SocketChannel channel) {
+        try (SocketChannel clientChannel = channel) {
+            ClientConnection connection = new ClientConnection(clientChannel,
+                    new WireCodec(clientChannel, WireCodec.MAX_REQUEST_FRAME_SIZE));
+            try {
+                WireCodec.Frame frame;
+                while ((frame = connection.codec.read()) != null) {
+                    WireCodec.Frame request = frame;
+                    connection.inFlight.acquire();
+                    clientExecutor.submit(() -> {
+                        try {
+                            handleRequest(connection, request);
+                        } finally {
+                            connection.inFlight.release();
+                        }
+                    });
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                // Arrêter ffmpeg en cas d'erreur/fermeture. Play requests still running close their session
+                // themselves when they see the connection closed (see openStream).
+                connection.closed = true;
+                connection.sessions.values().forEach(sessionManager::close);
+            }
+        } catch (IOException e) {
+            logger.severe("Client communication error: " + e.getMessage());
+        }
+    }
 
-                List<VideoFile> suitable = getFilesByFormatAndBitrate(format, bitrateMbps);
-                output.writeObject(suitable);
-                output.flush();
+    // Processes a single request and writes its response with the same request id
+    private void handleRequest(ClientConnection connection, WireCodec.Frame frame) {
+        try {
+            Message response = switch (frame.message()) {
+                case Message.PlayRequest play -> startSession(connection, play);
+                case Message.CatalogQuery query -> {
+                    if (query.offset() == 0) {
+                        logger.info("Client requested format=" + query.format() + ", bitrate=" + query.bitrateMbps() + " Mbps");
+                    }
+                    long start = System.nanoTime();
+                    // Later pages of a load come from the snapshot of its first page, as long as it is retained
+                    Catalog.Result result = availableFiles.query(query.format(), query.bitrateMbps(), query.version());
+                    List<VideoFile> files = result.files();
+                    int from = Math.clamp(query.offset(), 0, files.size());
+                    int to = (int) Math.min(files.size(), (long) from + Math.max(0, query.limit()));
+                    Message.CatalogResponse catalog = new Message.CatalogResponse(files.subList(from, to), from,
+                            files.size(), result.version());
+                    CATALOG_QUERY_DURATION.record((System.nanoTime() - start) / 1000);
+                    yield catalog;
+                }
+                case Message.Stop stop -> {
+                    StreamSession session = connection.sessions.remove(stop.sessionId());
+                    if (session != null) {
+                        sessionManager.close(session);
+                    } else {
+                        adaptiveStreams.close(stop.sessionId());
+                    }
+                    yield null;
+                }
+                case Message.PlaybackReport report -> {
+                    adaptiveStreams.report(report.sessionId(), report.throughputMbps(), report.bufferSeconds());
+                    yield null;
+                }
+                case Message.StatsRequest stats -> new Message.StatsResponse(getStats());
+                default -> new Message.Error("unexpected_message");
+            };
+            if (response != null) {
+                connection.codec.write(frame.requestId(), response);
             }
+        } catch (IOException e) {
+            logger.warning("Could not answer request " + frame.requestId() + ": " + e.getMessage());
+        }
+    }
 
+    // Opens a stream session for a play request; the session lives until Stop, disconnect, FFMPEG exit or timeout
+    private Message startSession(ClientConnection connection, Message.PlayRequest play) throws IOException {
+        Protocol protocol = play.protocol();
+        logger.info("Streaming requested: " + play.file().getFilename() + " via " + protocol
+                + (play.startSeconds() > 0 ? " from " + play.startSeconds() + " s" : ""));
+        PLAY_REQUESTS.get(protocol).increment();
+
+        // Only catalog entries may be streamed, never an arbitrary path sent by the client; the catalog's instance
+        // is used from here on, so metadata sent by the client is ignored
+        VideoFile file = availableFiles.get(play.file());
+        if (file == null) {
+            return new Message.Error("unknown_file");
+        }
+        // Adaptive sessions switch between every rendition of a title, so they are placed by title
+        if (cluster != null) {
+            InetSocketAddress owner = cluster.redirectFor(protocol == Protocol.ADAPTIVE ? file.getName() : file.getFilename());
+            if (owner != null) {
+                logger.info("Redirecting " + file.getFilename() + " to " + owner.getHostString() + ":" + owner.getPort());
+                return new Message.Redirect(owner.getHostString(), owner.getPort());
+            }
+        }
+        transcoder.recordRequest(file.getName());
+        if (!LAZY_MODE || edge) {
+            return openStream(connection, protocol, file, null, play.startSeconds(), play.recovery());
+        }
 
-        } catch (IOException | ClassNotFoundException e) {
-            logger.severe("Client communication error: " + e.getMessage());
-            // Arrêter ffmpeg en cas d'erreur/fermeture
-            if (ffmpegProcess != null && ffmpegProcess.isAlive()) {
-                ffmpegProcess.destroy();
-                logger.info("FFMPEG process stopped (on error).");
+        // Lazy mode: produce the variant if it is missing; a growing encode is streamed as it is written
+        long requestStart = System.nanoTime();
+        boolean miss = !jit.isOnDisk(file);
+        Path growing = null;
+        if (miss) {
+            VideoFile source = sourceFor(file);
+            if (source == null) {
+                return new Message.Error("unknown_file");
             }
+            try {
+                JitTranscoder.Job job = jit.request(source, file);
+                if (protocol == Protocol.HLS || protocol == Protocol.ADAPTIVE) {
+                    job.getDone().join();
+                } else {
+                    growing = job.awaitStreamable();
+                }
+            } catch (ProcessSupervisor.BusyException e) {
+                logger.warning("On demand variant refused: " + e.getMessage());
+                return new Message.Busy(BUSY_RETRY_SECONDS);
+            } catch (IOException | CompletionException e) {
+                logger.warning("On demand variant unavailable: " + e.getMessage());
+                return new Message.Error("stream_failed");
+            }
+        }
+        jit.touch(file);
+        Message response = openStream(connection, protocol, file, growing, play.startSeconds(), play.recovery());
+        if (response instanceof Message.StreamReady) {
+            jit.recordFirstByte(miss, System.nanoTime() - requestStart);
+        }
+        return response;
+    }
+
+    // Starts streaming a catalog file; growing, when set, is an encode in progress to stream instead of the file.
+    // HLS and adaptive players seek by themselves in the playlist, so startSeconds only applies to sessions.
+    // Loss recovery only applies to native UDP/RTP streams, others get Recovery.NONE in their endpoint.
+    private Message openStream(ClientConnection connection, Protocol protocol, VideoFile file, Path growing,
+                               double startSeconds, Recovery recovery) throws IOException {
+        String advertisedHost = ((InetSocketAddress) connection.channel.getLocalAddress()).getAddress().getHostAddress();
+        if (protocol == Protocol.HLS) {
+            return startHls(file, advertisedHost);
+        }
+        if (protocol == Protocol.ADAPTIVE) {
+            return startAdaptive(file, advertisedHost);
+        }
+
+        // Forget sessions of this connection that already ended (FFMPEG exit, timeout, dropped viewer)
+        connection.sessions.values().removeIf(StreamSession::isClosed);
+
+        InetAddress clientAddress = ((InetSocketAddress) connection.channel.getRemoteAddress()).getAddress();
+        StreamSession session = sessionManager.open(file, protocol, clientAddress);
+        if (session == null) {
+            logger.warning("No free stream port, rejecting " + file.getFilename());
+            return new Message.Error("no_free_port");
+        }
+
+        StreamEndpoint endpoint;
+        try {
+            endpoint = startStreaming(session, advertisedHost, growing, startSeconds, recovery);
+        } catch (ProcessSupervisor.BusyException e) {
+            logger.warning("Rejecting " + file.getFilename() + ": " + e.getMessage());
+            sessionManager.close(session);
+            return new Message.Busy(BUSY_RETRY_SECONDS);
+        }
+        if (endpoint == null) {
+            sessionManager.close(session);
+            return new Message.Error("stream_failed");
+        }
+        // Registered once started, then checked against a disconnect: either handleClient still finds it in the
+        // map, or the closed flag is already visible here
+        connection.sessions.put(session.getId(), session);
+        if (connection.closed) {
+            sessionManager.close(session);
+        }
+        return new Message.StreamReady(endpoint);
+    }
+
+    // HLS viewers share the segments and the HTTP server: no ports, process or session per viewer
+    private Message startHls(VideoFile file, String advertisedHost) {
+        try {
+            hlsSegmenter.segment(file).join();
+        } catch (CompletionException e) {
+            logger.warning(e.getCause().getMessage());
+            return new Message.Error("stream_failed");
+        }
+        String url = hlsUrl(advertisedHost, HlsHttpServer.playlistPath(file.getFilename()));
+        return new Message.StreamReady(new StreamEndpoint("-", Protocol.HLS, advertisedHost, hlsServer.getPort(), 0, null, url));
+    }
+
+    // Adaptive viewers read an HLS playlist whose segments the server takes from the rendition that fits the
+    // throughput and buffer level the client reports
+    private Message startAdaptive(VideoFile file, String advertisedHost) {
+        AdaptiveSession session;
+        try {
+            // Only renditions on disk can be segmented; in lazy mode the others are not produced for this.
+            // An edge pulls any rendition of the catalog from the origin.
+            List<VideoFile> renditions = availableFiles.getByName(file.getName());
+            session = adaptiveStreams.open(file, edge ? renditions : renditions.stream().filter(jit::isOnDisk).toList());
+        } catch (IOException e) {
+            logger.warning("Adaptive session failed: " + e.getMessage());
+            return new Message.Error("stream_failed");
         }
+        String url = hlsUrl(advertisedHost, HlsHttpServer.adaptivePlaylistPath(session.getId()));
+        return new Message.StreamReady(new StreamEndpoint(session.getId(), Protocol.ADAPTIVE, advertisedHost, hlsServer.getPort(), 0, null, url));
     }
 
+    private String hlsUrl(String advertisedHost, String path) {
+        String host = advertisedHost.contains(":") ? "[" + advertisedHost + "]" : advertisedHost;
+        return "http://" + host + ":" + hlsServer.getPort() + path;
+    }
+
+    // Gauges and counters kept by the components themselves, read when /metrics is scraped
+    private void registerMetrics() {
+        for (Protocol protocol : List.of(Protocol.TCP, Protocol.UDP, Protocol.RTP_UDP)) {
+            Metrics.gauge("stream_sessions_active", "Open stream sessions by protocol",
+                    () -> sessionManager.getActiveSessionCount(protocol), "protocol", protocol.name());
+        }
+        Metrics.gauge("stream_sessions_active", "Open stream sessions by protocol",
+                adaptiveStreams::getSessionCount, "protocol", Protocol.ADAPTIVE.name());
+        Metrics.gauge("hls_connections_open", "Open HTTP connections of HLS and ADAPTIVE players",
+                hlsServer::getOpenConnectionCount);
+        Metrics.gauge("broadcasts_active", "Shared FFMPEG broadcasts running", broadcastManager::getBroadcastCount);
+        Metrics.gauge("native_streams_active", "Streams sent by the Java paced sender", nativeStreams::getStreamCount);
+        Metrics.counter("stream_bytes_sent_total", "Bytes sent to clients, by the component that sent them",
+                nativeStreams::getBytesSent, "path", "native");
+        Metrics.counter("native_fec_bytes_sent_total", "Bytes of FEC parity sent by the Java paced sender",
+                nativeStreams::getParityBytes);
+        Metrics.counter("native_retransmissions_total", "Datagrams sent again on a client NACK",
+                nativeStreams::getRetransmissionCount);
+        Metrics.gauge("catalog_files", "Files in the catalog", availableFiles::size);
+        Metrics.gauge("transcode_queue_depth", "Background conversions waiting for a worker", transcoder::getQueueDepth);
+        Metrics.gauge("segment_cache_bytes", "Bytes held by the segment cache", segmentCache::getBytes);
+        Metrics.counter("segment_cache_hits_total", "Segment cache hits", segmentCache::getHits);
+        Metrics.counter("segment_cache_misses_total", "Segment cache misses", segmentCache::getMisses);
+        if (LAZY_MODE) {
+            Metrics.gauge("transcode_on_demand_jobs", "On-demand productions running", jit::getJobCount);
+            Metrics.gauge("transcode_on_demand_cache_bytes", "Disk used by variants produced on demand", jit::getCachedBytes);
+        }
+    }
 
-    private List<VideoFile> getFilesByFormatAndBitrate(String format, double bitrate) {
-        Map<String, Double> resolutionBitrates = Map.of(
-                "240p", 0.7,
-                "360p", 1.0,
-                "480p", 2.0,
-                "720p", 4.0,
-                "1080p", 6.0
-        );
+    private Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("catalog_files", (long) availableFiles.size());
+        stats.put("active_sessions", (long) sessionManager.getActiveSessionCount());
+        stats.put("transcode_queue", (long) transcoder.getQueueDepth());
+        stats.put("broadcasts", (long) broadcastManager.getBroadcastCount());
+        stats.put("adaptive_sessions", (long) adaptiveStreams.getSessionCount());
+        stats.put("native_streams", (long) nativeStreams.getStreamCount());
+        stats.put("native_packets_sent", nativeStreams.getPacketCount());
+        stats.put("native_send_deviation_p99_us", nativeStreams.getDeviationP99Micros());
+        stats.put("native_fec_bytes_sent", nativeStreams.getParityBytes());
+        stats.put("native_retransmissions", nativeStreams.getRetransmissionCount());
+        stats.put("native_retransmitted_bytes", nativeStreams.getRetransmittedBytes());
+        stats.put("cache_hits", segmentCache.getHits());
+        stats.put("cache_misses", segmentCache.getMisses());
+        stats.put("cache_evictions", segmentCache.getEvictions());
+        stats.put("cache_bytes", segmentCache.getBytes());
+        if (LAZY_MODE) {
+            stats.put("jit_jobs", (long) jit.getJobCount());
+            stats.put("jit_cache_files", (long) jit.getCachedCount());
+            stats.put("jit_cache_bytes", jit.getCachedBytes());
+            stats.put("jit_evictions", jit.getEvictions());
+            stats.put("jit_disk_saved_estimate_bytes", estimateDiskSaved());
+            stats.put("jit_hits", jit.getHits());
+            stats.put("jit_misses", jit.getMisses());
+            stats.put("first_byte_hit_ms_avg", jit.getAverageHitMillis());
+            stats.put("first_byte_miss_ms_avg", jit.getAverageMissMillis());
+        }
+        return stats;
+    }
 
-        List<VideoFile> result = new ArrayList<>();
-        for (VideoFile file : availableFiles) {
-            if (file.getFormat().equals(format)) {
-                double required = resolutionBitrates.getOrDefault(file.getResolution(), Double.MAX_VALUE);
-                if (bitrate >= required) {
-                    result.add(file);
+    // Disk the offered-but-missing variants would take if produced up front: duration of the title times the
+    // nominal bitrate of their resolution
+    private long estimateDiskSaved() {
+        double bits = 0;
+        for (String name : availableFiles.getNames()) {
+            List<VideoFile> files = availableFiles.getByName(name);
+            double duration = files.stream()
+                    .filter(file -> file.getMediaInfo() != null)
+                    .mapToDouble(file -> file.getMediaInfo().durationSeconds())
+                    .max()
+                    .orElse(0);
+            for (VideoFile file : files) {
+                if (!jit.isOnDisk(file)) {
+                    bits += duration * file.getRequiredMbps() * 1_000_000;
                 }
             }
         }
-        return result;
+        return (long) (bits / 8);
     }
 
-    // Starts the FFMPEG streaming process based on the requested video file and protocol
-    private void startStreaming(VideoFile file, Protocol protocol) {
-        String filePath = VIDEO_DIR + file.getFilename();
-        String command = switch (protocol) {
-            case TCP -> "ffmpeg -re -i " + filePath + " -f mpegts tcp://localhost:8888?listen";
-            case UDP -> "ffmpeg -re -i " + filePath + " -f mpegts udp://localhost:8888";
-            case RTP_UDP -> "ffmpeg -re -i " + filePath +
-                    " -map 0:v:0 -c:v libx264 -f rtp rtp://localhost:5004" +
-                    " -map 0:a:0 -c:a aac -f rtp rtp://localhost:5006" +
-                    " -sdp_file sdp/stream_rtp.sdp";
+    // Starts the FFMPEG streaming process for a session and returns where the client can read it.
+    // A growing file (encode in progress) is read by FFMPEG in follow mode, until no data came for 10 s.
+    // A seek starts at the last keyframe at or before startSeconds, found in the catalog's keyframe index, and
+    // copies the streams from there instead of decoding up to the position; growing files are always played from
+    // the start. Throws BusyException when every stream slot stays taken; returns null on any other failure.
+    private StreamEndpoint startStreaming(StreamSession session, String advertisedHost, Path growing, double startSeconds,
+                                          Recovery recovery) throws ProcessSupervisor.BusyException {
+        if (startSeconds > 0 && growing != null) {
+            logger.info("Session " + session.getId() + ": " + session.getFile().getFilename()
+                    + " is still being encoded, playing it from the start");
+            startSeconds = 0;
+        }
+        double seekSeconds = startSeconds > 0 ? keyframeBefore(session.getFile(), startSeconds) : 0;
+        String source;
+        if (edge) {
+            // An edge reads the segments it pulls from the origin, through its own HLS server
+            try {
+                hlsSegmenter.segment(session.getFile()).join();
+            } catch (CompletionException e) {
+                logger.severe(e.getCause().getMessage());
+                return null;
+            }
+            source = "http://127.0.0.1:" + hlsServer.getPort() + HlsHttpServer.playlistPath(session.getFile().getFilename());
+        } else {
+            source = VIDEO_DIR + session.getFile().getFilename();
+        }
+        String input = growing != null
+                ? "-follow 1 -rw_timeout 10000000 -i file:" + growing
+                : (seekSeconds > 0 ? "-ss " + seekSeconds + " " : "") + "-i " + source;
+        String copy = seekSeconds > 0 ? " -c copy" : "";
+        String clientHost = session.getClientAddress().getHostAddress();
+        int videoPort = session.getVideoPort();
+        int audioPort = session.getAudioPort();
+
+        // A broadcast is shared from its current position, so a viewer that seeks gets a stream of its own
+        if (BROADCAST_MODE && !edge && growing == null && startSeconds == 0 && session.getProtocol() != Protocol.RTP_UDP) {
+            try {
+                broadcastManager.subscribe(session, sessionManager);
+                return new StreamEndpoint(session.getId(), session.getProtocol(), advertisedHost, videoPort, audioPort, null);
+            } catch (ProcessSupervisor.BusyException e) {
+                throw e;
+            } catch (IOException e) {
+                logger.severe("Broadcast subscription failed: " + e.getMessage());
+                return null;
+            }
+        }
+
+        if (NATIVE_SENDER && !edge && growing == null && session.getProtocol() != Protocol.TCP) {
+            try {
+                Recovery granted = nativeStreams.grant(recovery);
+                nativeStreams.start(session, sessionManager, startSeconds, granted);
+                String sdp = session.getProtocol() == Protocol.RTP_UDP ? NativeStreamManager.sdpFor(session) : null;
+                return new StreamEndpoint(session.getId(), session.getProtocol(), advertisedHost, videoPort, audioPort, sdp,
+                        null, granted);
+            } catch (IOException e) {
+                logger.severe("Native stream failed: " + e.getMessage());
+                return null;
+            }
+        }
+
+        String command = switch (session.getProtocol()) {
+            case TCP -> "ffmpeg -re " + input + copy + " -f mpegts tcp://0.0.0.0:" + videoPort + "?listen";
+            case UDP -> "ffmpeg -re " + input + copy + " -f mpegts udp://" + clientHost + ":" + videoPort;
+            case RTP_UDP -> "ffmpeg -re " + input +
+                    " -map 0:v:0 -c:v libx264 -f rtp rtp://" + clientHost + ":" + videoPort +
+                    " -map 0:a:0 -c:a aac -f rtp rtp://" + clientHost + ":" + audioPort +
+                    " -sdp_file " + session.getSdpPath();
+            case HLS, ADAPTIVE -> throw new IllegalArgumentException(session.getProtocol() + " is served by HlsHttpServer, not by a session");
         };
 
         try {
+            Files.createDirectories(session.getSdpPath().getParent());
             ProcessBuilder pb = new ProcessBuilder(command.split(" "));
-            pb.inheritIO();
-            ffmpegProcess = pb.start();
+            pb.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+            Process process = ProcessSupervisor.start(ProcessSupervisor.Kind.STREAM, pb);
+            session.setProcess(process);
             logger.info("FFMPEG command: " + command);
 
-            new Thread(() -> {
-                try {
-                    ffmpegProcess.waitFor();
-                    logger.info("End of FFMPEG stream");
-                } catch (InterruptedException e) {
-                    logger.warning("FFMPEG interrupted: " + e.getMessage());
-                }
-            }).start();
+            // Give the ports back as soon as the stream ends, even if the client keeps the connection open
+            process.onExit().thenRun(() -> {
+                logger.info("End of FFMPEG stream");
+                sessionManager.close(session);
+            });
+
+            String sdp = session.getProtocol() == Protocol.RTP_UDP ? waitForSdp(session, process) : null;
+            return new StreamEndpoint(session.getId(), session.getProtocol(), advertisedHost, videoPort, audioPort, sdp);
 
+        } catch (ProcessSupervisor.BusyException e) {
+            throw e;
         } catch (IOException e) {
             logger.severe("FFMPEG launch failed: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Time of the last keyframe at or before seconds; without an index (file not probed yet) FFMPEG seeks by itself
+    private double keyframeBefore(VideoFile file, double seconds) {
+        KeyframeIndex keyframes = catalogIndex.getKeyframes(file.getFilename());
+        int keyframe = keyframes == null ? -1 : keyframes.floor(seconds);
+        return keyframe >= 0 ? keyframes.timeAt(keyframe) : seconds;
+    }
+
+    // FFMPEG writes the SDP once its RTP outputs are open; poll for it for a few seconds
+    private String waitForSdp(StreamSession session, Process process) throws IOException {
+        for (int i = 0; i < 50 && process.isAlive(); i++) {
+            if (Files.exists(session.getSdpPath()) && Files.size(session.getSdpPath()) > 0) {
+                return Files.readString(session.getSdpPath());
+            }
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        throw new IOException("SDP file not produced for session " + session.getId());
+    }
+
+    // State of one control connection shared by its reader and the requests it runs
+    private static final class ClientConnection {
+        private final SocketChannel channel;
+        private final WireCodec codec;
+        // Sessions opened on this connection; they are stopped when the client disconnects
+        private final Map<String, StreamSession> sessions = new ConcurrentHashMap<>();
+        private final Semaphore inFlight = new Semaphore(MAX_REQUESTS_IN_FLIGHT);
+        private volatile boolean closed;
+
+        private ClientConnection(SocketChannel channel, WireCodec codec) {
+            this.channel = channel;
+            this.codec = codec;
         }
     }
 }
@@ -0,0 +1,208 @@
+package server;
+
+import shared.VideoFile;
+import utils.FfmpegCommandRunner;
+import utils.Metrics;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+
+// Runs FFMPEG conversions in the background on a bounded set of workers.
+// The next job is picked when a worker frees up, so titles that become popular while queued move ahead.
+public class TranscodeScheduler {
+
+    private static final Logger logger = Logger.getLogger(TranscodeScheduler.class.getName());
+    private static final String DURATION_HELP = "Wall time of successful background conversions";
+    private static final Metrics.Histogram ENCODE_DURATION = Metrics.histogram("transcode_duration_seconds",
+            DURATION_HELP, 1e-3, 3_600_000, "kind", "encode");
+    private static final Metrics.Histogram REMUX_DURATION = Metrics.histogram("transcode_duration_seconds",
+            DURATION_HELP, 1e-3, 3_600_000, "kind", "remux");
+    private static final Metrics.Histogram LADDER_DURATION = Metrics.histogram("transcode_duration_seconds",
+            DURATION_HELP, 1e-3, 3_600_000, "kind", "ladder");
+
+    private final List<Job> pending = new ArrayList<>();
+    private final Map<String, LongAdder> requestCounts = new ConcurrentHashMap<>();
+    // Targets queued or being produced, so the same variant is never planned twice
+    private final Set<VideoFile> scheduled = ConcurrentHashMap.newKeySet();
+    private final AtomicLong sequence = new AtomicLong();
+    private final Consumer<VideoFile> onVariantReady;
+    private final List<Thread> workers = new ArrayList<>();
+    private volatile boolean running = true;
+
+    // Most requested titles first, then lowest resolution (cheapest and playable on every connection), then FIFO
+    private final Comparator<Job> priority = Comparator
+            .comparingLong((Job job) -> -getRequestCount(job.title()))
+            .thenComparingInt(Job::resolutionIndex)
+            .thenComparingLong(Job::sequence);
+
+    public TranscodeScheduler(int workerCount, Consumer<VideoFile> onVariantReady) {
+        this.onVariantReady = onVariantReady;
+        for (int i = 0; i < workerCount; i++) {
+            Thread worker = new Thread(this::workLoop, "transcoder-" + i);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+        logger.info("Transcoding pool started with " + workerCount + " workers");
+    }
+
+    // Worker count: -Dtranscode.workers=N, defaults to half the cores since libx264 is itself multi-threaded
+    public static TranscodeScheduler fromSystemProperties(Consumer<VideoFile> onVariantReady) {
+        int defaultWorkers = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        return new TranscodeScheduler(Integer.getInteger("transcode.workers", defaultWorkers), onVariantReady);
+    }
+
+    // Queues the conversion of source into target; resolutionIndex orders jobs of equally popular titles
+    public void submit(Path source, Path outputDir, VideoFile target, int resolutionIndex) {
+        scheduled.add(target);
+        enqueue(target.getName(), resolutionIndex, () -> publish(outputDir, target, ENCODE_DURATION,
+                partial -> FfmpegCommandRunner.convert(source.toString(), partial.toString(), target.getResolution())));
+    }
+
+    // Queues a container change (e.g. mp4 -> mkv at the same resolution) done with stream copy.
+    // Falls back to a full conversion if the streams cannot be copied into the target container.
+    public void submitRemux(Path source, Path outputDir, VideoFile target, int resolutionIndex) {
+        scheduled.add(target);
+        enqueue(target.getName(), resolutionIndex, () -> publish(outputDir, target, REMUX_DURATION,
+                partial -> FfmpegCommandRunner.remux(source.toString(), partial.toString())
+                        || FfmpegCommandRunner.convert(source.toString(), partial.toString(), target.getResolution())));
+    }
+
+    // Queues one FFMPEG process that decodes the source once and encodes every target of the ladder.
+    // Once it succeeds, each remux target is produced from the encoded file of the same resolution.
+    public void submitLadder(Path source, Path outputDir, List<VideoFile> encodes, List<VideoFile> remuxes, int resolutionIndex) {
+        scheduled.addAll(encodes);
+        scheduled.addAll(remuxes);
+        enqueue(encodes.get(0).getName(), resolutionIndex, () -> {
+            List<String> partials = encodes.stream().map(target -> partialPath(outputDir, target).toString()).toList();
+            List<String> resolutions = encodes.stream().map(VideoFile::getResolution).toList();
+            logger.info("Creation : ladder " + encodes + " from " + source + " (" + getQueueDepth() + " queued)");
+
+            long start = System.nanoTime();
+            boolean converted = FfmpegCommandRunner.convertLadder(source.toString(), partials, resolutions);
+            boolean published = true;
+            for (VideoFile target : encodes) {
+                published &= publishPartial(outputDir, target, converted);
+            }
+            if (!published) {
+                remuxes.forEach(scheduled::remove);
+                return;
+            }
+            long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+            LADDER_DURATION.record(elapsedMillis);
+            logger.info("Created : ladder " + encodes + " in " + elapsedMillis + " ms");
+
+            for (VideoFile remux : remuxes) {
+                encodes.stream()
+                        .filter(encoded -> encoded.getResolution().equals(remux.getResolution()))
+                        .findFirst()
+                        .ifPresent(encoded -> submitRemux(outputDir.resolve(encoded.getFilename()), outputDir, remux, resolutionIndex));
+            }
+        });
+    }
+
+    public boolean isScheduled(VideoFile target) {
+        return scheduled.contains(target);
+    }
+
+    // Called on every play request so that popular titles get their variants first
+    public void recordRequest(String name) {
+        requestCounts.computeIfAbsent(name, k -> new LongAdder()).increment();
+    }
+
+    public int getQueueDepth() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        workers.forEach(Thread::interrupt);
+    }
+
+    private long getRequestCount(String name) {
+        LongAdder count = requestCounts.get(name);
+        return count == null ? 0 : count.sum();
+    }
+
+    private void enqueue(String title, int resolutionIndex, Runnable work) {
+        synchronized (pending) {
+            pending.add(new Job(title, resolutionIndex, sequence.getAndIncrement(), work));
+            pending.notify();
+        }
+    }
+
+    private Job take() throws InterruptedException {
+        synchronized (pending) {
+            while (pending.isEmpty()) {
+                pending.wait();
+            }
+            Job next = pending.stream().min(priority).orElseThrow();
+            pending.remove(next);
+            return next;
+        }
+    }
+
+    private void workLoop() {
+        while (running) {
+            try {
+                take().work().run();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // Runs a single-output conversion into a temporary file and publishes it
+    private void publish(Path outputDir, VideoFile target, Metrics.Histogram duration, Predicate<Path> conversion) {
+        logger.info("Creation : " + outputDir.resolve(target.getFilename()) + " (" + getQueueDepth() + " queued)");
+        long start = System.nanoTime();
+        if (publishPartial(outputDir, target, conversion.test(partialPath(outputDir, target)))) {
+            long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+            duration.record(elapsedMillis);
+            logger.info("Created : " + target + " in " + elapsedMillis + " ms");
+        }
+    }
+
+    // Renames the temporary file into place, so a half-written variant is never published
+    private boolean publishPartial(Path outputDir, VideoFile target, boolean converted) {
+        Path output = outputDir.resolve(target.getFilename());
+        Path partial = partialPath(outputDir, target);
+        try {
+            if (!converted) {
+                Files.deleteIfExists(partial);
+                logger.warning("Conversion failed: " + output);
+                return false;
+            }
+            Files.move(partial, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            onVariantReady.accept(target);
+            return true;
+        } catch (IOException e) {
+            logger.warning("Could not publish " + output + ": " + e.getMessage());
+            return false;
+        } finally {
+            scheduled.remove(target);
+        }
+    }
+
+    private static Path partialPath(Path outputDir, VideoFile target) {
+        return outputDir.resolve(target.getName() + "-" + target.getResolution() + ".part." + target.getFormat());
+    }
+
+    private record Job(String title, int resolutionIndex, long sequence, Runnable work) {
+    }
+}
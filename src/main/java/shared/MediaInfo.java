@@ -0,0 +1,8 @@
+package shared;
+
+// What ffprobe measured on a file, once, when it entered the catalog.
+// The peak bitrate is the highest rate over any 4 s window (about one HLS segment), audio included: a client
+// whose connection covers it can play the file without stalling, however low the average is.
+public record MediaInfo(double durationSeconds, long averageBitrateKbps, long peakBitrateKbps, String videoCodec,
+                        double keyframeIntervalSeconds) {
+}
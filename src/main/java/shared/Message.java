@@ -0,0 +1,73 @@
+package shared;
+
+import java.util.List;
+import java.util.Map;
+
+// Messages exchanged on the control connection (port 9090), encoded by WireCodec.
+// Every request gets exactly one response carrying the same request id, except Stop and PlaybackReport
+// which get none.
+public sealed interface Message {
+
+    // Client -> server: files of a format playable at the measured bitrate, at most limit of them from offset on
+    // (large catalogs are fetched page by page). version is the catalog version of the first page, so that every
+    // page of a load comes from the same catalog; 0 asks for the current one.
+    record CatalogQuery(String format, double bitrateMbps, int offset, int limit, long version) implements Message {
+        public CatalogQuery(String format, double bitrateMbps, int offset, int limit) {
+            this(format, bitrateMbps, offset, limit, 0);
+        }
+    }
+
+    // Server -> client: answer to a CatalogQuery, the files from offset on out of total matching ones in the
+    // catalog of this version. A version other than the one asked for means the server no longer has that
+    // catalog: the offset then points into another list, and a paged load has to start over.
+    record CatalogResponse(List<VideoFile> files, int offset, int total, long version) implements Message {
+        public CatalogResponse(List<VideoFile> files, int offset, int total) {
+            this(files, offset, total, 0);
+        }
+    }
+
+    // Client -> server: start streaming a file with a protocol, startSeconds into it (0 plays from the start),
+    // with the loss recovery the client can handle (UDP and RTP only; the server may grant less)
+    record PlayRequest(VideoFile file, Protocol protocol, double startSeconds, Recovery recovery) implements Message {
+        public PlayRequest(VideoFile file, Protocol protocol) {
+            this(file, protocol, 0);
+        }
+
+        public PlayRequest(VideoFile file, Protocol protocol, double startSeconds) {
+            this(file, protocol, startSeconds, Recovery.NONE);
+        }
+    }
+
+    // Server -> client: the stream is running, read it at this endpoint
+    record StreamReady(StreamEndpoint endpoint) implements Message {
+    }
+
+    // Client -> server: stop the stream of a session
+    record Stop(String sessionId) implements Message {
+    }
+
+    // Client -> server, during an ADAPTIVE session: throughput of the last segment download (0 when nothing was
+    // downloaded since the previous report) and seconds of media buffered ahead of the playback position
+    record PlaybackReport(String sessionId, double throughputMbps, double bufferSeconds) implements Message {
+    }
+
+    // Server -> client: the request could not be served
+    record Error(String reason) implements Message {
+    }
+
+    // Server -> client: the server has no capacity left for this stream right now; ask again after the delay
+    record Busy(int retryAfterSeconds) implements Message {
+    }
+
+    // Server -> client: another instance of the cluster serves this file; send the same request to it
+    record Redirect(String host, int port) implements Message {
+    }
+
+    // Client -> server: current server counters
+    record StatsRequest() implements Message {
+    }
+
+    // Server -> client: named counters (active sessions, queued conversions, ...)
+    record StatsResponse(Map<String, Long> values) implements Message {
+    }
+}
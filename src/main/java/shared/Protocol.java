@@ -3,7 +3,29 @@ package shared;
 public enum Protocol {
     TCP,
     UDP,
-    RTP_UDP;
+    RTP_UDP,
+    // Pre-built segments served over HTTP, no encoder running per viewer
+    HLS,
+    // HLS whose resolution the server switches at segment boundaries, following the client's playback reports
+    ADAPTIVE;
+
+    // A stream needing more than this share of the measured bandwidth goes over TCP
+    private static final double UDP_MAX_LINK_SHARE = 0.7;
+
+    // Picks a transport from the bitrate the file really needs: a stream that leaves little headroom on the
+    // link goes over TCP, whose flow control absorbs bitrate peaks instead of losing packets; otherwise low
+    // bitrates use TCP, medium ones UDP and high ones RTP. Files not probed yet are judged by resolution.
+    public static Protocol getDefaultFor(VideoFile file, double bandwidthMbps) {
+        MediaInfo info = file.getMediaInfo();
+        if (info == null || info.peakBitrateKbps() <= 0) {
+            return getDefaultForResolution(file.getResolution());
+        }
+        double peakMbps = info.peakBitrateKbps() / 1000.0;
+        if (peakMbps < 1.0 || (bandwidthMbps > 0 && peakMbps > UDP_MAX_LINK_SHARE * bandwidthMbps)) {
+            return TCP;
+        }
+        return peakMbps < 4.0 ? UDP : RTP_UDP;
+    }
 
     public static Protocol getDefaultForResolution(String resolution) {
         return switch (resolution) {
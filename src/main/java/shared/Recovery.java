@@ -0,0 +1,71 @@
+package shared;
+
+import java.nio.ByteBuffer;
+import java.util.function.IntConsumer;
+
+// Loss recovery of a native UDP/RTP stream: asked for by the client in its PlayRequest, granted (possibly reduced)
+// by the server in the StreamEndpoint. With any of it on, every datagram carries a 12-byte RTP header, UDP streams
+// included (the client strips it before the player), so losses show up as gaps in the sequence numbers.
+//   fecGroupSize: after every group of that many media datagrams comes a parity datagram, the XOR of the group,
+//                 from which any single lost datagram of the group is rebuilt without a round trip (0: no FEC)
+//   nack:         the client reports the sequence numbers still missing (RTCP generic NACK, RFC 4585), and the
+//                 server sends those datagrams again from its recent send history
+// Parity datagrams have payload type 127 and a sequence of their own; their payload is the sequence number of
+// the first datagram of the group (2 bytes), the group size (1), a reserved byte, the XOR of the payload lengths
+// (2), then the XOR of the payloads, each padded with zeros to the longest.
+public record Recovery(int fecGroupSize, boolean nack) {
+
+    public static final Recovery NONE = new Recovery(0, false);
+    public static final int RTP_HEADER_SIZE = 12;
+    public static final int FEC_PAYLOAD_TYPE = 127;
+    public static final int FEC_HEADER_SIZE = 6;
+    private static final int RTCP_RTPFB = 205;
+    private static final int FMT_GENERIC_NACK = 1;
+
+    public boolean isEnabled() {
+        return fecGroupSize > 0 || nack;
+    }
+
+    // Writes a generic NACK for the given sequence numbers (sorted), grouped 17 to an entry: a sequence number
+    // and a bitmask of the 16 following it. Returns false when they do not all fit in the buffer.
+    public static boolean writeNack(ByteBuffer out, int ssrc, int[] sequences, int count) {
+        int start = out.position();
+        if (out.remaining() < 12) return false;
+        out.put((byte) (0x80 | FMT_GENERIC_NACK)).put((byte) RTCP_RTPFB).putShort((short) 0)
+                .putInt(0) // sender SSRC: the receiver has none
+                .putInt(ssrc);
+        for (int i = 0; i < count; ) {
+            if (out.remaining() < 4) {
+                out.position(start);
+                return false;
+            }
+            int first = sequences[i++] & 0xFFFF;
+            int mask = 0;
+            while (i < count && ((sequences[i] - first) & 0xFFFF) <= 16) {
+                mask |= 1 << (((sequences[i] - first) & 0xFFFF) - 1);
+                i++;
+            }
+            out.putShort((short) first).putShort((short) mask);
+        }
+        out.putShort(start + 2, (short) ((out.position() - start) / 4 - 1)); // length in 32-bit words minus one
+        return true;
+    }
+
+    // Calls back with every sequence number of a generic NACK; returns false if the packet is not one
+    public static boolean readNack(ByteBuffer in, IntConsumer sequence) {
+        if (in.remaining() < 12 || (in.get(in.position()) & 0x1F) != FMT_GENERIC_NACK
+                || (in.get(in.position() + 1) & 0xFF) != RTCP_RTPFB) {
+            return false;
+        }
+        int end = Math.min(in.limit(), in.position() + ((in.getShort(in.position() + 2) & 0xFFFF) + 1) * 4);
+        for (int entry = in.position() + 12; entry + 4 <= end; entry += 4) {
+            int first = in.getShort(entry) & 0xFFFF;
+            int mask = in.getShort(entry + 2) & 0xFFFF;
+            sequence.accept(first);
+            for (int bit = 0; bit < 16; bit++) {
+                if ((mask & 1 << bit) != 0) sequence.accept((first + bit + 1) & 0xFFFF);
+            }
+        }
+        return true;
+    }
+}
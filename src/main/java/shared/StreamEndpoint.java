@@ -0,0 +1,76 @@
+package shared;
+
+// Where the client has to read a stream started by the server for one play session
+public class StreamEndpoint {
+    private final String sessionId;
+    private final Protocol protocol;
+    private final String host;
+    private final int videoPort;
+    private final int audioPort;
+    private final String sdp;
+    private final String url;
+    private final Recovery recovery;
+
+    public StreamEndpoint(String sessionId, Protocol protocol, String host, int videoPort, int audioPort, String sdp) {
+        this(sessionId, protocol, host, videoPort, audioPort, sdp, null);
+    }
+
+    public StreamEndpoint(String sessionId, Protocol protocol, String host, int videoPort, int audioPort, String sdp, String url) {
+        this(sessionId, protocol, host, videoPort, audioPort, sdp, url, Recovery.NONE);
+    }
+
+    public StreamEndpoint(String sessionId, Protocol protocol, String host, int videoPort, int audioPort, String sdp,
+                          String url, Recovery recovery) {
+        this.sessionId = sessionId;
+        this.protocol = protocol;
+        this.host = host;
+        this.videoPort = videoPort;
+        this.audioPort = audioPort;
+        this.sdp = sdp;
+        this.url = url;
+        this.recovery = recovery;
+    }
+
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    public Protocol getProtocol() {
+        return protocol;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getVideoPort() {
+        return videoPort;
+    }
+
+    public int getAudioPort() {
+        return audioPort;
+    }
+
+    // SDP body describing the RTP session, null for TCP/UDP streams
+    public String getSdp() {
+        return sdp;
+    }
+
+    // URL the player opens directly (HLS playlist), null for pushed TCP/UDP/RTP streams
+    public String getUrl() {
+        return url;
+    }
+
+    // Loss recovery applied to the stream, Recovery.NONE unless the client asked for it and the server sends it
+    public Recovery getRecovery() {
+        return recovery;
+    }
+
+    @Override
+    public String toString() {
+        if (url != null) {
+            return protocol + " " + url;
+        }
+        return protocol + " " + host + ":" + videoPort + " (session " + sessionId + ")";
+    }
+}
@@ -1,17 +1,35 @@
 package shared;
 
-import java.io.Serializable;
+import java.util.Map;
 import java.util.Objects;
 
-public class VideoFile implements Serializable {
+// A catalog entry, identified by name, format and resolution. Probed metadata travels with it but is not
+// part of its identity: the same file before and after probing is equal.
+public class VideoFile {
+
+    // Connection speed (Mbps) assumed for a resolution until the file has been probed
+    private static final Map<String, Double> RESOLUTION_MBPS = Map.of(
+            "240p", 0.7,
+            "360p", 1.0,
+            "480p", 2.0,
+            "720p", 4.0,
+            "1080p", 6.0
+    );
+
     private String name;
     private String format;
     private String resolution;
+    private MediaInfo mediaInfo; // null until probed
 
     public VideoFile(String name, String format, String resolution) {
+        this(name, format, resolution, null);
+    }
+
+    public VideoFile(String name, String format, String resolution, MediaInfo mediaInfo) {
         this.name = name;
         this.format = format;
         this.resolution = resolution;
+        this.mediaInfo = mediaInfo;
     }
 
     public String getName() {
@@ -26,6 +44,34 @@ public class VideoFile implements Serializable {
         return resolution;
     }
 
+    public MediaInfo getMediaInfo() {
+        return mediaInfo;
+    }
+
+    public VideoFile withMediaInfo(MediaInfo mediaInfo) {
+        return new VideoFile(name, format, resolution, mediaInfo);
+    }
+
+    // Connection speed needed to play the file: its measured peak bitrate once probed, otherwise the figure
+    // assumed for its resolution
+    public double getRequiredMbps() {
+        if (mediaInfo != null && mediaInfo.peakBitrateKbps() > 0) {
+            return mediaInfo.peakBitrateKbps() / 1000.0;
+        }
+        return RESOLUTION_MBPS.getOrDefault(resolution, Double.MAX_VALUE);
+    }
+
+    // Parses "<name>-<resolution>.<format>", returns null when the filename does not follow that pattern.
+    // The name may itself contain dashes, only the last one separates the resolution.
+    public static VideoFile fromFilename(String filename) {
+        int dot = filename.lastIndexOf('.');
+        int dash = filename.lastIndexOf('-', dot);
+        if (dash <= 0 || dot < dash + 2 || dot == filename.length() - 1) {
+            return null;
+        }
+        return new VideoFile(filename.substring(0, dash), filename.substring(dot + 1), filename.substring(dash + 1, dot));
+    }
+
     public String getFilename() {
         return name + "-" + resolution + "." + format;
     }
@@ -0,0 +1,333 @@
+package shared;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Length-prefixed binary codec for the control connection.
+// Frame layout: int length (of what follows) | byte version | byte message type | int request id | payload.
+// The request id lets several requests be in flight on one connection: responses carry the id of their request.
+// Strings are an unsigned short byte length followed by UTF-8 bytes; a VideoFile is its three identifying strings
+// and a presence byte followed by its MediaInfo. One codec per connection; it keeps
+// its buffers between messages, so reads must come from a single thread (writes are synchronized).
+public class WireCodec {
+
+    public static final byte VERSION = 11;
+    // Largest frame a codec accepts: catalog responses read by clients and edges can be large, requests read by
+    // the server never are, so the server side caps them low and a bare length prefix cannot make it allocate much
+    public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+    public static final int MAX_REQUEST_FRAME_SIZE = 8 * 1024;
+
+    private static final byte CATALOG_QUERY = 1;
+    private static final byte CATALOG_RESPONSE = 2;
+    private static final byte PLAY_REQUEST = 3;
+    private static final byte STREAM_READY = 4;
+    private static final byte STOP = 5;
+    private static final byte ERROR = 6;
+    private static final byte STATS_REQUEST = 7;
+    private static final byte STATS_RESPONSE = 8;
+    private static final byte PLAYBACK_REPORT = 9;
+    private static final byte BUSY = 10;
+    private static final byte REDIRECT = 11;
+
+    private final ByteChannel channel;
+    private final int maxFrameSize;
+    private final ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+    private ByteBuffer readBuffer = ByteBuffer.allocate(4096);
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(4096);
+
+    public WireCodec(ByteChannel channel) {
+        this(channel, MAX_FRAME_SIZE);
+    }
+
+    public WireCodec(ByteChannel channel, int maxFrameSize) {
+        this.channel = channel;
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    // Writes one message as a single frame
+    public synchronized void write(int requestId, Message message) throws IOException {
+        while (true) {
+            try {
+                writeBuffer.clear();
+                encode(requestId, message, writeBuffer);
+                break;
+            } catch (BufferOverflowException e) {
+                writeBuffer = ByteBuffer.allocate(writeBuffer.capacity() * 2);
+            }
+        }
+        writeBuffer.flip();
+        while (writeBuffer.hasRemaining()) {
+            channel.write(writeBuffer);
+        }
+    }
+
+    // Reads the next frame, or returns null when the peer closed the connection between frames
+    public Frame read() throws IOException {
+        lengthBuffer.clear();
+        if (!readFully(lengthBuffer, true)) {
+            return null;
+        }
+        int length = lengthBuffer.flip().getInt();
+        if (length < 6 || length > maxFrameSize) {
+            throw new ProtocolException("Invalid frame length: " + length);
+        }
+
+        // The buffer grows with the bytes that actually arrive, not with the announced length
+        readBuffer.clear().limit(Math.min(length, readBuffer.capacity()));
+        while (true) {
+            readFully(readBuffer, false);
+            if (readBuffer.position() == length) break;
+            ByteBuffer larger = ByteBuffer.allocate(Math.min(length, readBuffer.capacity() * 2));
+            readBuffer = larger.put(readBuffer.flip());
+            readBuffer.limit(readBuffer.capacity());
+        }
+        readBuffer.flip();
+        return decode(readBuffer);
+    }
+
+    // Encodes a full frame (length prefix included) at the buffer position
+    public static void encode(int requestId, Message message, ByteBuffer out) {
+        int start = out.position();
+        out.position(start + 4);
+        out.put(VERSION);
+        out.put(typeOf(message));
+        out.putInt(requestId);
+        switch (message) {
+            case Message.CatalogQuery query -> {
+                putString(out, query.format());
+                out.putDouble(query.bitrateMbps());
+                out.putInt(query.offset());
+                out.putInt(query.limit());
+                out.putLong(query.version());
+            }
+            case Message.CatalogResponse response -> {
+                out.putInt(response.offset());
+                out.putInt(response.total());
+                out.putLong(response.version());
+                out.putInt(response.files().size());
+                for (VideoFile file : response.files()) {
+                    putVideoFile(out, file);
+                }
+            }
+            case Message.PlayRequest request -> {
+                putVideoFile(out, request.file());
+                out.put((byte) request.protocol().ordinal());
+                out.putDouble(request.startSeconds());
+                putRecovery(out, request.recovery());
+            }
+            case Message.StreamReady ready -> {
+                StreamEndpoint endpoint = ready.endpoint();
+                putString(out, endpoint.getSessionId());
+                out.put((byte) endpoint.getProtocol().ordinal());
+                putString(out, endpoint.getHost());
+                out.putInt(endpoint.getVideoPort());
+                out.putInt(endpoint.getAudioPort());
+                putNullableString(out, endpoint.getSdp());
+                putNullableString(out, endpoint.getUrl());
+                putRecovery(out, endpoint.getRecovery());
+            }
+            case Message.Stop stop -> putString(out, stop.sessionId());
+            case Message.PlaybackReport report -> {
+                putString(out, report.sessionId());
+                out.putDouble(report.throughputMbps());
+                out.putDouble(report.bufferSeconds());
+            }
+            case Message.Error error -> putString(out, error.reason());
+            case Message.Busy busy -> out.putInt(busy.retryAfterSeconds());
+            case Message.Redirect redirect -> {
+                putString(out, redirect.host());
+                out.putInt(redirect.port());
+            }
+            case Message.StatsRequest stats -> {
+            }
+            case Message.StatsResponse stats -> {
+                out.putShort((short) stats.values().size());
+                stats.values().forEach((name, value) -> {
+                    putString(out, name);
+                    out.putLong(value);
+                });
+            }
+        }
+        out.putInt(start, out.position() - start - 4);
+    }
+
+    // Decodes one frame (everything after the length prefix)
+    public static Frame decode(ByteBuffer in) throws ProtocolException {
+        try {
+            byte version = in.get();
+            if (version != VERSION) {
+                throw new ProtocolException("Unsupported protocol version: " + version);
+            }
+            byte type = in.get();
+            int requestId = in.getInt();
+            Message message = switch (type) {
+                case CATALOG_QUERY -> new Message.CatalogQuery(getString(in), in.getDouble(), in.getInt(), in.getInt(), in.getLong());
+                case CATALOG_RESPONSE -> {
+                    int offset = in.getInt();
+                    int total = in.getInt();
+                    long catalogVersion = in.getLong();
+                    int count = in.getInt();
+                    // Each entry takes at least 7 bytes, so a count larger than that is a lie
+                    if (count < 0 || count > in.remaining() / 7) {
+                        throw new ProtocolException("Invalid catalog size: " + count);
+                    }
+                    List<VideoFile> files = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        files.add(getVideoFile(in));
+                    }
+                    yield new Message.CatalogResponse(files, offset, total, catalogVersion);
+                }
+                case PLAY_REQUEST -> new Message.PlayRequest(getVideoFile(in), getProtocol(in), in.getDouble(), getRecovery(in));
+                case STREAM_READY -> {
+                    String sessionId = getString(in);
+                    Protocol protocol = getProtocol(in);
+                    String host = getString(in);
+                    int videoPort = in.getInt();
+                    int audioPort = in.getInt();
+                    String sdp = getNullableString(in);
+                    String url = getNullableString(in);
+                    Recovery recovery = getRecovery(in);
+                    yield new Message.StreamReady(new StreamEndpoint(sessionId, protocol, host, videoPort, audioPort, sdp, url, recovery));
+                }
+                case STOP -> new Message.Stop(getString(in));
+                case PLAYBACK_REPORT -> new Message.PlaybackReport(getString(in), in.getDouble(), in.getDouble());
+                case ERROR -> new Message.Error(getString(in));
+                case BUSY -> new Message.Busy(in.getInt());
+                case REDIRECT -> new Message.Redirect(getString(in), in.getInt());
+                case STATS_REQUEST -> new Message.StatsRequest();
+                case STATS_RESPONSE -> {
+                    int count = Short.toUnsignedInt(in.getShort());
+                    Map<String, Long> values = new LinkedHashMap<>();
+                    for (int i = 0; i < count; i++) {
+                        values.put(getString(in), in.getLong());
+                    }
+                    yield new Message.StatsResponse(values);
+                }
+                default -> throw new ProtocolException("Unknown message type: " + type);
+            };
+            if (in.hasRemaining()) {
+                throw new ProtocolException("Trailing bytes after message type " + type);
+            }
+            return new Frame(requestId, message);
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("Truncated frame");
+        }
+    }
+
+    private static byte typeOf(Message message) {
+        return switch (message) {
+            case Message.CatalogQuery query -> CATALOG_QUERY;
+            case Message.CatalogResponse response -> CATALOG_RESPONSE;
+            case Message.PlayRequest request -> PLAY_REQUEST;
+            case Message.StreamReady ready -> STREAM_READY;
+            case Message.Stop stop -> STOP;
+            case Message.PlaybackReport report -> PLAYBACK_REPORT;
+            case Message.Error error -> ERROR;
+            case Message.Busy busy -> BUSY;
+            case Message.Redirect redirect -> REDIRECT;
+            case Message.StatsRequest stats -> STATS_REQUEST;
+            case Message.StatsResponse stats -> STATS_RESPONSE;
+        };
+    }
+
+    private static void putVideoFile(ByteBuffer out, VideoFile file) {
+        putString(out, file.getName());
+        putString(out, file.getFormat());
+        putString(out, file.getResolution());
+        MediaInfo info = file.getMediaInfo();
+        out.put((byte) (info != null ? 1 : 0));
+        if (info != null) {
+            out.putDouble(info.durationSeconds());
+            out.putLong(info.averageBitrateKbps());
+            out.putLong(info.peakBitrateKbps());
+            putString(out, info.videoCodec());
+            out.putDouble(info.keyframeIntervalSeconds());
+        }
+    }
+
+    private static VideoFile getVideoFile(ByteBuffer in) {
+        VideoFile file = new VideoFile(getString(in), getString(in), getString(in));
+        if (in.get() == 0) {
+            return file;
+        }
+        return file.withMediaInfo(new MediaInfo(in.getDouble(), in.getLong(), in.getLong(), getString(in), in.getDouble()));
+    }
+
+    private static Protocol getProtocol(ByteBuffer in) throws ProtocolException {
+        int ordinal = in.get();
+        Protocol[] values = Protocol.values();
+        if (ordinal < 0 || ordinal >= values.length) {
+            throw new ProtocolException("Unknown protocol: " + ordinal);
+        }
+        return values[ordinal];
+    }
+
+    // Recovery: unsigned byte FEC group size, then a NACK flag byte
+    private static void putRecovery(ByteBuffer out, Recovery recovery) {
+        out.put((byte) Math.clamp(recovery.fecGroupSize(), 0, 255));
+        out.put((byte) (recovery.nack() ? 1 : 0));
+    }
+
+    private static Recovery getRecovery(ByteBuffer in) {
+        int fecGroupSize = Byte.toUnsignedInt(in.get());
+        boolean nack = in.get() != 0;
+        return fecGroupSize == 0 && !nack ? Recovery.NONE : new Recovery(fecGroupSize, nack);
+    }
+
+    private static void putString(ByteBuffer out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("String too long for the wire: " + bytes.length + " bytes");
+        }
+        out.putShort((short) bytes.length);
+        out.put(bytes);
+    }
+
+    // A presence byte, then the string if present
+    private static void putNullableString(ByteBuffer out, String value) {
+        out.put((byte) (value != null ? 1 : 0));
+        if (value != null) {
+            putString(out, value);
+        }
+    }
+
+    private static String getNullableString(ByteBuffer in) {
+        return in.get() != 0 ? getString(in) : null;
+    }
+
+    private static String getString(ByteBuffer in) {
+        int length = Short.toUnsignedInt(in.getShort());
+        if (length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private boolean readFully(ByteBuffer buffer, boolean eofAllowedAtStart) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                if (eofAllowedAtStart && buffer.position() == 0) {
+                    return false;
+                }
+                throw new EOFException("Connection closed in the middle of a frame");
+            }
+        }
+        return true;
+    }
+
+    // A decoded message with the id of the request it belongs to
+    public record Frame(int requestId, Message message) {
+    }
+}
@@ -1,12 +1,161 @@
 package utils;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public class FfmpegCommandRunner {
 
-    // Converts a video file to a specified resolution using ffmpeg
-    public static void convert(String inputPath, String outputPath, String resolution) {
-        String scale = switch (resolution) {
+    // Encodes place a keyframe every 2 s of source time, so every rendition of a title is cut into HLS segments
+    // at the same instants and a player can switch rendition between any two segments
+    private static final String FORCED_KEYFRAMES = "expr:gte(t,n_forced*2)";
+
+    // Converts a video file to a specified resolution using ffmpeg, returns true when ffmpeg succeeded
+    public static boolean convert(String inputPath, String outputPath, String resolution) {
+        return run(ProcessSupervisor.Kind.ENCODE, List.of(
+                "ffmpeg", "-y", "-i", inputPath, "-c:v", "libx264", "-crf", "25", "-force_key_frames", FORCED_KEYFRAMES,
+                "-vf", "scale=" + scaleFor(resolution), outputPath
+        ));
+    }
+
+    // Decodes the source once and encodes every requested resolution in the same ffmpeg process
+    // (split + scale filter graph), instead of one full decode per output.
+    public static boolean convertLadder(String inputPath, List<String> outputPaths, List<String> resolutions) {
+        int count = outputPaths.size();
+        StringBuilder graph = new StringBuilder("[0:v]split=" + count);
+        for (int i = 0; i < count; i++) {
+            graph.append("[v").append(i).append("]");
+        }
+        for (int i = 0; i < count; i++) {
+            graph.append(";[v").append(i).append("]scale=").append(scaleFor(resolutions.get(i))).append("[o").append(i).append("]");
+        }
+
+        List<String> command = new ArrayList<>(List.of("ffmpeg", "-y", "-i", inputPath, "-filter_complex", graph.toString()));
+        for (int i = 0; i < count; i++) {
+            command.addAll(List.of("-map", "[o" + i + "]", "-map", "0:a?", "-c:v", "libx264", "-crf", "25",
+                    "-force_key_frames", FORCED_KEYFRAMES, outputPaths.get(i)));
+        }
+        return run(ProcessSupervisor.Kind.ENCODE, command);
+    }
+
+    // Encodes to MPEG-TS at the given resolution, writing each packet out as soon as it is muxed so the file can
+    // be streamed while it grows. The fast preset keeps the encode ahead of its viewers.
+    public static boolean convertToTs(String inputPath, String outputPath, String resolution) {
+        return run(ProcessSupervisor.Kind.ENCODE, List.of(
+                "ffmpeg", "-y", "-i", inputPath, "-map", "0:v:0", "-map", "0:a?", "-c:v", "libx264", "-preset", "veryfast",
+                "-crf", "25", "-force_key_frames", FORCED_KEYFRAMES, "-vf", "scale=" + scaleFor(resolution), "-c:a", "aac",
+                "-flush_packets", "1", "-f", "mpegts", outputPath
+        ));
+    }
+
+    // Changes only the container: streams are copied as they are, nothing is decoded or encoded
+    public static boolean remux(String inputPath, String outputPath) {
+        return run(ProcessSupervisor.Kind.COPY, List.of("ffmpeg", "-y", "-i", inputPath, "-map", "0", "-c", "copy", outputPath));
+    }
+
+    // Rewrites the first video stream and the audio into one MPEG-TS file, copying the streams
+    public static boolean remuxToTs(String inputPath, String outputPath) {
+        return run(ProcessSupervisor.Kind.COPY, List.of("ffmpeg", "-y", "-i", inputPath, "-map", "0:v:0", "-map", "0:a?", "-c", "copy",
+                "-f", "mpegts", outputPath));
+    }
+
+    // Cuts a video into MPEG-TS segments of about segmentSeconds plus a VOD playlist, copying the streams.
+    // Segments can only start on keyframes, so their real duration follows the source GOP structure.
+    public static boolean segment(String inputPath, String playlistPath, String segmentPattern, int segmentSeconds) {
+        return run(ProcessSupervisor.Kind.COPY, List.of(
+                "ffmpeg", "-y", "-i", inputPath, "-map", "0:v:0", "-map", "0:a?", "-c", "copy",
+                "-f", "hls", "-hls_time", String.valueOf(segmentSeconds), "-hls_playlist_type", "vod",
+                "-hls_segment_filename", segmentPattern, playlistPath
+        ));
+    }
+
+    // Reads container-level metadata with ffprobe (duration in seconds, bit_rate in bits/s, codec_name of the
+    // first video stream). Returns an empty map when ffprobe fails.
+    public static Map<String, String> probe(String inputPath) {
+        ProcessBuilder builder = new ProcessBuilder(
+                "ffprobe", "-v", "error", "-select_streams", "v:0", "-show_entries", "format=duration,bit_rate:stream=codec_name",
+                "-of", "default=noprint_wrappers=1", inputPath
+        );
+        builder.redirectErrorStream(true);
+        Map<String, String> values = new HashMap<>();
+        try {
+            Process process = ProcessSupervisor.start(ProcessSupervisor.Kind.COPY, builder);
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int eq = line.indexOf('=');
+                    if (eq > 0) {
+                        values.put(line.substring(0, eq), line.substring(eq + 1));
+                    }
+                }
+            }
+            if (ProcessSupervisor.waitFor(process) != 0) {
+                return Map.of();
+            }
+        } catch (IOException e) {
+            System.err.println("FFPROBE error: " + e.getMessage());
+            return Map.of();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("FFPROBE interrupted");
+            return Map.of();
+        }
+        return values;
+    }
+
+    // Receives the packets of a file in demux order: stream type, timestamp in seconds, size in bytes, keyframe flag
+    // and byte offset in the file (-1 when the container does not give one)
+    public interface PacketVisitor {
+        void packet(boolean video, double timeSeconds, int size, boolean keyframe, long position);
+    }
+
+    // Lists every packet of a file with ffprobe. Nothing is decoded, so this reads the file about as fast as
+    // the disk allows. Returns false when ffprobe fails.
+    public static boolean probePackets(String inputPath, PacketVisitor visitor) {
+        ProcessBuilder builder = new ProcessBuilder(
+                "ffprobe", "-v", "error", "-show_entries", "packet=codec_type,pts_time,dts_time,size,pos,flags",
+                "-of", "compact=p=0", inputPath
+        );
+        builder.redirectError(ProcessBuilder.Redirect.DISCARD);
+        try {
+            Process process = ProcessSupervisor.start(ProcessSupervisor.Kind.COPY, builder);
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    // codec_type=video|pts_time=0.040000|dts_time=0.000000|size=1234|pos=48|flags=K__
+                    Map<String, String> fields = new HashMap<>();
+                    for (String field : line.split("\\|")) {
+                        int eq = field.indexOf('=');
+                        if (eq > 0) fields.put(field.substring(0, eq), field.substring(eq + 1));
+                    }
+                    String time = fields.getOrDefault("pts_time", "N/A").equals("N/A") ? fields.get("dts_time") : fields.get("pts_time");
+                    String size = fields.get("size");
+                    if (time == null || time.equals("N/A") || size == null) {
+                        continue; // packet without timestamp or size, nothing to count
+                    }
+                    String position = fields.getOrDefault("pos", "N/A");
+                    visitor.packet("video".equals(fields.get("codec_type")), Double.parseDouble(time),
+                            Integer.parseInt(size), fields.getOrDefault("flags", "").startsWith("K"),
+                            position.equals("N/A") ? -1 : Long.parseLong(position));
+                }
+            }
+            return ProcessSupervisor.waitFor(process) == 0;
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("FFPROBE error: " + e.getMessage());
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("FFPROBE interrupted");
+            return false;
+        }
+    }
+
+    private static String scaleFor(String resolution) {
+        return switch (resolution) {
             case "240p" -> "-2:240";
             case "360p" -> "-2:360";
             case "480p" -> "-2:480";
@@ -14,17 +163,24 @@ public class FfmpegCommandRunner {
             case "1080p" -> "-2:1080";
             default -> "";
         };
+    }
 
-        ProcessBuilder builder = new ProcessBuilder(
-                "ffmpeg", "-y", "-i", inputPath, "-c:v", "libx264", "-crf", "25", "-vf", "scale="+scale, outputPath
-        );
+    // Runs FFMPEG in a slot of the given kind; stderr goes to the supervisor, which logs it when FFMPEG fails
+    private static boolean run(ProcessSupervisor.Kind kind, List<String> command) {
+        ProcessBuilder builder = new ProcessBuilder(command);
 
-        builder.inheritIO();
+        builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
         try {
-            Process process = builder.start();
-            process.waitFor();
-        } catch (IOException | InterruptedException e) {
+            Process process = ProcessSupervisor.start(kind, builder);
+            return ProcessSupervisor.waitFor(process) == 0;
+        } catch (IOException e) {
             System.err.println("FFMPEG conversion error: " + e.getMessage());
+            return false;
+        } catch (InterruptedException e) {
+            // waitFor already stopped FFMPEG; the interrupt is kept for the caller, as ProcessSupervisor.start does
+            Thread.currentThread().interrupt();
+            System.err.println("FFMPEG conversion interrupted");
+            return false;
         }
     }
 }
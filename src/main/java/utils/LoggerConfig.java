@@ -1,10 +1,16 @@
 package utils;
 
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.logging.*;
 
 public class LoggerConfig {
 
-    // Configures global logging to show only the log message (no timestamps, class, or method names).
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS")
+            .withZone(ZoneId.systemDefault());
+
+    // Configures global logging to one line per record: timestamp, level and message (no class or method names).
     public static void configureSimpleLogging() {
         Logger rootLogger = Logger.getLogger("");
         Handler[] handlers = rootLogger.getHandlers();
@@ -13,7 +19,8 @@ public class LoggerConfig {
             handler.setFormatter(new SimpleFormatter() {
                 @Override
                 public synchronized String format(LogRecord record) {
-                    return record.getMessage() + "\n";
+                    return TIMESTAMP.format(Instant.ofEpochMilli(record.getMillis())) + " " + record.getLevel() + " "
+                            + record.getMessage() + "\n";
                 }
             });
         }
@@ -0,0 +1,282 @@
+package utils;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+// Process-wide metrics registry, exported in the Prometheus text format and optionally logged as JSON.
+// Like loggers, metrics are looked up once by name (plus label pairs) and kept in static fields:
+//   private static final Metrics.Counter ACCEPTED = Metrics.counter("server_connections_accepted_total", "...");
+// Recording never allocates: counters are LongAdders (striped per contending thread) and histograms are fixed
+// arrays of log-linear buckets (4 per power of two, so any recorded value is known within 25%).
+public final class Metrics {
+
+    private static final Logger logger = Logger.getLogger(Metrics.class.getName());
+
+    // Registration order is export order
+    private static final Map<String, Family> families = new LinkedHashMap<>();
+
+    private Metrics() {
+    }
+
+    // Monotonic count; labels are name/value pairs
+    public static Counter counter(String name, String help, String... labels) {
+        return (Counter) register(name, help, "counter", labels, Counter::new);
+    }
+
+    // Distribution of values recorded in some unit; scale converts that unit to the exported one
+    // (e.g. 1e-6 for microseconds exported as seconds). Buckets are exported up to exportMax (in recorded units).
+    public static Histogram histogram(String name, String help, double scale, long exportMax, String... labels) {
+        return (Histogram) register(name, help, "histogram", labels, () -> new Histogram(scale, exportMax));
+    }
+
+    // Value read at export time, e.g. a queue length; registering the same name and labels again replaces it
+    public static void gauge(String name, String help, DoubleSupplier value, String... labels) {
+        replace(name, help, "gauge", labels, new Sampled(value));
+    }
+
+    // Monotonic count kept elsewhere (e.g. in a component's own statistics), read at export time
+    public static void counter(String name, String help, DoubleSupplier value, String... labels) {
+        replace(name, help, "counter", labels, new Sampled(value));
+    }
+
+    // All metrics in the Prometheus text exposition format (version 0.0.4)
+    public static String prometheus() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Family family : snapshot()) {
+            out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            family.series().forEach((labels, metric) -> metric.writePrometheus(out, family.name, labels));
+        }
+        return out.toString();
+    }
+
+    // All metrics as one JSON object; histograms give count, sum, p50, p99 and max (in exported units)
+    public static String json() {
+        StringBuilder out = new StringBuilder(2048).append('{');
+        for (Family family : snapshot()) {
+            family.series().forEach((labels, metric) -> {
+                if (out.length() > 1) out.append(',');
+                out.append('"').append(family.name).append(labels.replace("\"", "\\\"")).append("\":");
+                metric.writeJson(out);
+            });
+        }
+        return out.append('}').toString();
+    }
+
+    // Logs json() every period seconds on a daemon thread
+    public static void startJsonLogging(int periodSeconds) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-log");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleAtFixedRate(() -> logger.info("metrics " + json()), periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    private static synchronized Metric register(String name, String help, String type, String[] labels,
+                                                Supplier<Metric> factory) {
+        Family family = families.computeIfAbsent(name, n -> new Family(n, help, type));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException(name + " is already registered as a " + family.type);
+        }
+        return family.metrics.computeIfAbsent(formatLabels(labels), k -> factory.get());
+    }
+
+    private static synchronized void replace(String name, String help, String type, String[] labels, Metric metric) {
+        Family family = families.computeIfAbsent(name, n -> new Family(n, help, type));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException(name + " is already registered as a " + family.type);
+        }
+        family.metrics.put(formatLabels(labels), metric);
+    }
+
+    private static synchronized List<Family> snapshot() {
+        return new ArrayList<>(families.values());
+    }
+
+    // {key="value",...} or "" without labels
+    private static String formatLabels(String[] labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels come in name/value pairs");
+        }
+        if (labels.length == 0) return "";
+        StringBuilder out = new StringBuilder("{");
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) out.append(',');
+            out.append(labels[i]).append("=\"").append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+        }
+        return out.append('}').toString();
+    }
+
+    private static String number(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return Double.isNaN(value) ? "NaN" : value > 0 ? "+Inf" : "-Inf";
+        }
+        // 6 significant digits, so that 0.004096 does not come out as 0.0040960000000000004
+        return new BigDecimal(value, new MathContext(6)).stripTrailingZeros().toString();
+    }
+
+    private static final class Family {
+        private final String name;
+        private final String help;
+        private final String type;
+        private final Map<String, Metric> metrics = new LinkedHashMap<>();
+
+        Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+
+        Map<String, Metric> series() {
+            synchronized (Metrics.class) {
+                return new LinkedHashMap<>(metrics);
+            }
+        }
+    }
+
+    private interface Metric {
+        void writePrometheus(StringBuilder out, String name, String labels);
+
+        void writeJson(StringBuilder out);
+    }
+
+    public static final class Counter implements Metric {
+        private final LongAdder value = new LongAdder();
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+
+        @Override
+        public void writePrometheus(StringBuilder out, String name, String labels) {
+            out.append(name).append(labels).append(' ').append(value.sum()).append('\n');
+        }
+
+        @Override
+        public void writeJson(StringBuilder out) {
+            out.append(value.sum());
+        }
+    }
+
+    private record Sampled(DoubleSupplier value) implements Metric {
+        @Override
+        public void writePrometheus(StringBuilder out, String name, String labels) {
+            out.append(name).append(labels).append(' ').append(number(value.getAsDouble())).append('\n');
+        }
+
+        @Override
+        public void writeJson(StringBuilder out) {
+            out.append(number(value.getAsDouble()));
+        }
+    }
+
+    // Log-linear buckets: values 0-3 exactly, then 4 buckets per power of two up to Long.MAX_VALUE.
+    // Exported cumulatively at every power of two up to exportMax; "le" bounds are exclusive by one recorded unit.
+    public static final class Histogram implements Metric {
+        private static final int BUCKETS = 4 + 61 * 4;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final double scale;
+        private final long exportMax;
+
+        private Histogram(double scale, long exportMax) {
+            this.scale = scale;
+            this.exportMax = exportMax;
+        }
+
+        public void record(long value) {
+            long v = Math.max(0, value);
+            buckets.incrementAndGet(index(v));
+            count.increment();
+            sum.add(v);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        // Upper bound (recorded units) of the bucket holding the given percentile, 0 when empty
+        public long getPercentile(double percent) {
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                total += buckets.get(i);
+            }
+            long rank = Math.max(1, (long) Math.ceil(percent / 100 * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS && total > 0; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) return upperBound(i);
+            }
+            return 0;
+        }
+
+        @Override
+        public void writePrometheus(StringBuilder out, String name, String labels) {
+            String prefix = labels.isEmpty() ? "{" : labels.substring(0, labels.length() - 1) + ",";
+            long cumulative = 0;
+            int next = 0;
+            for (int power = 0; power < 63 && (1L << power) <= Math.max(1, exportMax) * 2; power++) {
+                // Buckets below 2^power
+                int limit = power < 2 ? (int) (1L << power) : 4 + (power - 2) * 4;
+                for (; next < limit; next++) {
+                    cumulative += buckets.get(next);
+                }
+                out.append(name).append("_bucket").append(prefix).append("le=\"").append(number((1L << power) * scale))
+                        .append("\"} ").append(cumulative).append('\n');
+            }
+            long total = count.sum();
+            out.append(name).append("_bucket").append(prefix).append("le=\"+Inf\"} ").append(total).append('\n');
+            out.append(name).append("_sum").append(labels).append(' ').append(number(sum.sum() * scale)).append('\n');
+            out.append(name).append("_count").append(labels).append(' ').append(total).append('\n');
+        }
+
+        @Override
+        public void writeJson(StringBuilder out) {
+            out.append("{\"count\":").append(count.sum())
+                    .append(",\"sum\":").append(number(sum.sum() * scale))
+                    .append(",\"p50\":").append(number(getPercentile(50) * scale))
+                    .append(",\"p99\":").append(number(getPercentile(99) * scale))
+                    .append(",\"max\":").append(number(getPercentile(100) * scale)).append('}');
+        }
+
+        private static int index(long v) {
+            if (v < 4) return (int) v;
+            int exponent = 63 - Long.numberOfLeadingZeros(v);
+            return 4 + (exponent - 2) * 4 + (int) ((v >>> (exponent - 2)) & 3);
+        }
+
+        // Largest value falling into a bucket
+        private static long upperBound(int index) {
+            if (index < 4) return index;
+            int exponent = (index - 4) / 4 + 2;
+            int sub = (index - 4) % 4;
+            return exponent == 62 && sub == 3 ? Long.MAX_VALUE : ((5L + sub) << (exponent - 2)) - 1;
+        }
+    }
+}
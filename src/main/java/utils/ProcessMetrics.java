@@ -0,0 +1,63 @@
+package utils;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Counts the FFMPEG/FFPROBE processes the server starts: how many run, how they exit and the CPU time they use.
+// CPU time can only be read while a process is alive, so running processes are sampled every 2 s and the last
+// sample of a process is added to the total when it exits.
+public final class ProcessMetrics {
+
+    private static final long SAMPLE_SECONDS = 2;
+
+    private static final Metrics.Counter STARTED = Metrics.counter("ffmpeg_processes_started_total",
+            "FFMPEG and FFPROBE processes started");
+    private static final Map<ProcessHandle, Long> running = new ConcurrentHashMap<>(); // last CPU sample, ns
+    private static final AtomicLong exitedCpuNanos = new AtomicLong();
+    private static final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "process-metrics");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        Metrics.gauge("ffmpeg_processes_running", "FFMPEG and FFPROBE processes currently running", running::size);
+        Metrics.counter("ffmpeg_cpu_seconds_total", "CPU time used by FFMPEG and FFPROBE processes",
+                () -> (exitedCpuNanos.get() + sampleAll()) / 1e9);
+        sampler.scheduleAtFixedRate(ProcessMetrics::sampleAll, SAMPLE_SECONDS, SAMPLE_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private ProcessMetrics() {
+    }
+
+    // Starts accounting for a process that was just started; returns it for chaining
+    public static Process track(Process process) {
+        ProcessHandle handle = process.toHandle();
+        STARTED.increment();
+        running.put(handle, 0L);
+        process.onExit().thenRun(() -> {
+            Long cpu = running.remove(handle);
+            exitedCpuNanos.addAndGet(cpu == null ? 0 : cpu);
+            Metrics.counter("ffmpeg_process_exits_total", "Exited FFMPEG and FFPROBE processes by exit code",
+                    "code", String.valueOf(process.exitValue())).increment();
+        });
+        return process;
+    }
+
+    // Refreshes the CPU sample of every running process; returns their sum in ns
+    private static long sampleAll() {
+        long total = 0;
+        for (Map.Entry<ProcessHandle, Long> entry : running.entrySet()) {
+            long cpu = entry.getKey().info().totalCpuDuration().map(Duration::toNanos).orElse(entry.getValue());
+            // Not entry.setValue: that would put back a process whose exit just removed it
+            running.computeIfPresent(entry.getKey(), (handle, previous) -> cpu);
+            total += cpu;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,300 @@
+package utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+// Starts every FFMPEG/FFPROBE process of the server. Each kind of process has its own cap on how many run at once:
+// background encodes and copies queue for a slot, a viewer's stream waits a few seconds and is refused with
+// BusyException beyond that, so a burst of requests cannot start more encoders than the machine can run.
+// The stderr of a process is read for its progress line (fps, speed, bitrate), which feeds the metrics and a
+// watchdog that kills processes making no progress; the last other lines are logged when a process fails.
+// Processes still running when the JVM exits are killed along with their children.
+public final class ProcessSupervisor {
+
+    private static final Logger logger = Logger.getLogger(ProcessSupervisor.class.getName());
+
+    // -Dffmpeg.stallSeconds: a process whose stderr is read and that printed no progress for this long is killed
+    private static final long STALL_NANOS = TimeUnit.SECONDS.toNanos(Integer.getInteger("ffmpeg.stallSeconds", 60));
+    // -Dffmpeg.copyTimeoutMinutes: longest a copy or probe may run
+    private static final long COPY_TIMEOUT_NANOS = TimeUnit.MINUTES.toNanos(Integer.getInteger("ffmpeg.copyTimeoutMinutes", 30));
+    private static final long KILL_GRACE_SECONDS = 5;
+    private static final int TAIL_LINES = 20;
+
+    // Kind must not read the static fields of ProcessSupervisor: the two classes would wait on each other's
+    // initialization when a first start() and a first use of a Kind happen on two threads at once
+    public enum Kind {
+        // libx264 encodes: conversions and on-demand variants; queued without limit
+        ENCODE("encode", Integer.getInteger("ffmpeg.maxEncodes", Math.max(1, Runtime.getRuntime().availableProcessors() / 2)), -1),
+        // One real-time FFMPEG per viewer or per broadcast; refused after -Dffmpeg.streamQueueSeconds
+        STREAM("stream", Integer.getInteger("ffmpeg.maxStreams", 64),
+                TimeUnit.SECONDS.toMillis(Integer.getInteger("ffmpeg.streamQueueSeconds", 5))),
+        // Stream copies (remux, HLS segmenting) and probes: nothing is decoded, they are bound by the disk
+        COPY("copy", Integer.getInteger("ffmpeg.maxCopies", Math.max(2, Runtime.getRuntime().availableProcessors())), -1);
+
+        private final String label;
+        private final int limit;
+        private final long queueMillis; // -1: wait as long as it takes
+        private final Semaphore slots;
+        private final Metrics.Counter rejected;
+        private final Metrics.Counter killed;
+        private final Metrics.Histogram queueWait;
+
+        Kind(String label, int limit, long queueMillis) {
+            this.label = label;
+            this.limit = limit;
+            this.queueMillis = queueMillis;
+            this.slots = new Semaphore(limit, true);
+            this.rejected = Metrics.counter("ffmpeg_busy_rejections_total",
+                    "Processes refused because every slot of their kind stayed taken", "kind", label);
+            this.killed = Metrics.counter("ffmpeg_timeouts_total",
+                    "Processes killed for making no progress or running too long", "kind", label);
+            this.queueWait = Metrics.histogram("ffmpeg_queue_wait_seconds", "Time spent waiting for a process slot",
+                    1e-3, 600_000, "kind", label);
+        }
+    }
+
+    // Thrown when a stream would have to wait longer than its kind allows for a slot
+    public static class BusyException extends IOException {
+        public BusyException(String message) {
+            super(message);
+        }
+    }
+
+    private static final Map<Process, Supervised> running = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "process-watchdog");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        for (Kind kind : Kind.values()) {
+            Metrics.gauge("ffmpeg_slots_used", "Process slots taken, by kind", () -> kind.limit - kind.slots.availablePermits(),
+                    "kind", kind.label);
+            Metrics.gauge("ffmpeg_slots_limit", "Process slots, by kind", () -> kind.limit, "kind", kind.label);
+            Metrics.gauge("ffmpeg_slots_waiting", "Processes waiting for a slot, by kind", kind.slots::getQueueLength,
+                    "kind", kind.label);
+            Metrics.gauge("ffmpeg_progress_fps", "Frames per second summed over running processes, by kind",
+                    () -> running.values().stream().filter(s -> s.kind == kind).mapToDouble(s -> s.fps).sum(),
+                    "kind", kind.label);
+            Metrics.gauge("ffmpeg_progress_bitrate_kbps", "Output bitrate summed over running processes, by kind",
+                    () -> running.values().stream().filter(s -> s.kind == kind).mapToDouble(s -> s.bitrateKbps).sum(),
+                    "kind", kind.label);
+            // Below 1 a real-time stream falls behind its viewers
+            Metrics.gauge("ffmpeg_progress_speed_min", "Slowest processing speed (x real time) of running processes, by kind",
+                    () -> running.values().stream().filter(s -> s.kind == kind && s.speed > 0).mapToDouble(s -> s.speed)
+                            .min().orElse(0), "kind", kind.label);
+        }
+        watchdog.scheduleAtFixedRate(ProcessSupervisor::checkTimeouts, 5, 5, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(ProcessSupervisor::killAll, "process-shutdown"));
+    }
+
+    private ProcessSupervisor() {
+    }
+
+    // Starts a process once a slot of its kind is free. Its stderr is read for progress unless the builder
+    // redirects it elsewhere. The slot is given back when the process exits.
+    public static Process start(Kind kind, ProcessBuilder builder) throws IOException {
+        long waitStart = System.nanoTime();
+        try {
+            if (kind.queueMillis < 0) {
+                kind.slots.acquire();
+            } else if (!kind.slots.tryAcquire(kind.queueMillis, TimeUnit.MILLISECONDS)) {
+                kind.rejected.increment();
+                throw new BusyException("all " + kind.limit + " " + kind.label + " slots are taken");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for a " + kind.label + " slot");
+        }
+        kind.queueWait.record((System.nanoTime() - waitStart) / 1_000_000);
+
+        Process process;
+        try {
+            process = ProcessMetrics.track(builder.start());
+        } catch (IOException | RuntimeException e) {
+            kind.slots.release();
+            throw e;
+        }
+        boolean readStderr = builder.redirectError() == ProcessBuilder.Redirect.PIPE && !builder.redirectErrorStream();
+        Supervised supervised = new Supervised(kind, builder.command(), process, readStderr);
+        running.put(process, supervised);
+        process.onExit().thenRun(() -> {
+            running.remove(process);
+            kind.slots.release();
+            if (process.exitValue() != 0 && !supervised.stopped) {
+                logger.warning(supervised.name() + " exited with code " + process.exitValue() + supervised.tail());
+            }
+        });
+        if (readStderr) {
+            Thread.ofVirtual().name("ffmpeg-stderr-" + process.pid()).start(() -> readStderr(supervised));
+        }
+        return process;
+    }
+
+    // Waits for a process started by start(); an interrupted caller kills it instead of leaving it behind
+    public static int waitFor(Process process) throws InterruptedException {
+        try {
+            return process.waitFor();
+        } catch (InterruptedException e) {
+            stop(process);
+            throw e;
+        }
+    }
+
+    // True when a process of this kind would start without waiting
+    public static boolean hasFreeSlot(Kind kind) {
+        return kind.slots.availablePermits() > 0;
+    }
+
+    // Asks a process and its children to exit, and kills them if they are still there after a few seconds
+    public static void stop(Process process) {
+        Supervised supervised = running.get(process);
+        if (supervised != null) {
+            supervised.stopped = true;
+        }
+        if (!process.isAlive()) {
+            return;
+        }
+        List<ProcessHandle> children = process.descendants().toList();
+        process.destroy();
+        children.forEach(ProcessHandle::destroy);
+        watchdog.schedule(() -> {
+            children.forEach(ProcessHandle::destroyForcibly);
+            process.destroyForcibly();
+        }, KILL_GRACE_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private static void checkTimeouts() {
+        long now = System.nanoTime();
+        for (Supervised supervised : running.values()) {
+            String reason = null;
+            if (supervised.kind == Kind.COPY && now - supervised.startNanos > COPY_TIMEOUT_NANOS) {
+                reason = "running for " + TimeUnit.NANOSECONDS.toMinutes(now - supervised.startNanos) + " min";
+            } else if (supervised.readsStderr && now - supervised.lastProgressNanos > STALL_NANOS) {
+                reason = "no progress for " + TimeUnit.NANOSECONDS.toSeconds(now - supervised.lastProgressNanos) + " s";
+            }
+            if (reason != null && !supervised.stopped) {
+                supervised.kind.killed.increment();
+                logger.warning("Killing " + supervised.name() + ": " + reason + supervised.tail());
+                stop(supervised.process);
+            }
+        }
+    }
+
+    private static void killAll() {
+        if (running.isEmpty()) return;
+        logger.info("Stopping " + running.size() + " FFMPEG processes");
+        for (Supervised supervised : running.values()) {
+            supervised.stopped = true;
+            supervised.process.descendants().forEach(ProcessHandle::destroy);
+            supervised.process.destroy();
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        for (Supervised supervised : running.values()) {
+            try {
+                supervised.process.waitFor(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            supervised.process.descendants().forEach(ProcessHandle::destroyForcibly);
+            supervised.process.destroyForcibly();
+        }
+    }
+
+    // FFMPEG rewrites its progress line in place with \r, other messages end with \n
+    private static void readStderr(Supervised supervised) {
+        StringBuilder line = new StringBuilder(256);
+        byte[] buffer = new byte[4096];
+        try (InputStream in = supervised.process.getErrorStream()) {
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                for (int i = 0; i < read; i++) {
+                    char c = (char) (buffer[i] & 0xFF);
+                    if (c == '\r' || c == '\n') {
+                        if (!line.isEmpty()) supervised.onLine(line.toString());
+                        line.setLength(0);
+                    } else if (line.length() < 4096) {
+                        line.append(c);
+                    }
+                }
+            }
+        } catch (IOException ignored) {
+            // process gone
+        }
+        if (!line.isEmpty()) supervised.onLine(line.toString());
+    }
+
+    // "frame=  240 fps= 48 q=28.0 size=     512kB time=00:00:08.00 bitrate= 524.3kbits/s speed=1.6x"
+    private static double field(String line, String name) {
+        int start = line.indexOf(name);
+        if (start < 0) return -1;
+        start += name.length();
+        while (start < line.length() && line.charAt(start) == ' ') start++;
+        int end = start;
+        while (end < line.length() && (Character.isDigit(line.charAt(end)) || line.charAt(end) == '.')) end++;
+        try {
+            return end > start ? Double.parseDouble(line.substring(start, end)) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static final class Supervised {
+        private final Kind kind;
+        private final List<String> command;
+        private final Process process;
+        private final boolean readsStderr;
+        private final long startNanos = System.nanoTime();
+        private final Deque<String> tail = new ArrayDeque<>();
+        private volatile long lastProgressNanos = startNanos;
+        private volatile double fps;
+        private volatile double speed;
+        private volatile double bitrateKbps;
+        private volatile boolean stopped; // stopped on purpose, its exit code means nothing
+
+        Supervised(Kind kind, List<String> command, Process process, boolean readsStderr) {
+            this.kind = kind;
+            this.command = List.copyOf(command);
+            this.process = process;
+            this.readsStderr = readsStderr;
+        }
+
+        void onLine(String line) {
+            if ((line.startsWith("frame=") || line.startsWith("size=")) && line.contains("speed=")) {
+                lastProgressNanos = System.nanoTime();
+                fps = Math.max(0, field(line, "fps="));
+                speed = Math.max(0, field(line, "speed="));
+                bitrateKbps = Math.max(0, field(line, "bitrate="));
+                return;
+            }
+            logger.fine(name() + ": " + line);
+            synchronized (tail) {
+                if (tail.size() == TAIL_LINES) tail.removeFirst();
+                tail.addLast(line);
+            }
+        }
+
+        String name() {
+            return command.get(0) + " " + kind.label + " (pid " + process.pid() + ")";
+        }
+
+        // Last stderr lines, one per log line, to explain a failure
+        String tail() {
+            synchronized (tail) {
+                return tail.isEmpty() ? "" : "\n  " + String.join("\n  ", tail);
+            }
+        }
+    }
+}